@@ -0,0 +1,270 @@
+/*
+ * Hl7Bytes.java
+ *
+ * Copyright (C) 2004-2012 M Litherland
+ */
+
+package org.nule.lighthl7lib.hl7;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *
+ * @author mike
+ *
+ * Raw HL7 bytes presented as a character sequence so the same scanning code
+ * can run over them.  This only works for charsets where the ASCII range
+ * (and so every HL7 delimiter) encodes to the same single bytes and no
+ * other character uses those bytes, which means UTF-8 or a single byte
+ * charset like ISO-8859-1 or windows-1252.  charAt() hands back each raw byte as a
+ * char, which is all delimiter scanning needs; it is toString() that decodes
+ * the bytes with the real charset, so only the pieces someone actually
+ * reads ever get decoded.
+ */
+public final class Hl7Bytes implements CharSequence, Serializable {
+    private static final long serialVersionUID = 4620183541934706581L;
+
+    private static final Map asciiCompatible = new ConcurrentHashMap();
+
+    private transient ByteBuffer buffer;
+    private transient byte[] array;
+    private transient int offset;
+    private transient int length;
+    private transient Charset charset;
+
+    /**
+     * Wrap the bytes between position and limit of a buffer.  The buffer is
+     * not copied, so it must not be changed while this (or any record made
+     * from it) is in use.
+     *
+     * @param data the bytes
+     * @param cs the charset used to decode values
+     * @throws IllegalArgumentException if the charset isn't ASCII compatible
+     */
+    public Hl7Bytes(ByteBuffer data, Charset cs) {
+        checkCharset(cs);
+        init(data.slice(), cs);
+    }
+
+    /**
+     * Wrap part of a byte array.  The array is not copied.
+     *
+     * @param data the bytes
+     * @param off offset of the first byte
+     * @param len number of bytes
+     * @param cs the charset used to decode values
+     * @throws IllegalArgumentException if the charset isn't ASCII compatible
+     */
+    public Hl7Bytes(byte[] data, int off, int len, Charset cs) {
+        this(ByteBuffer.wrap(data, off, len), cs);
+    }
+
+    private Hl7Bytes(ByteBuffer slice, int off, int len, Charset cs) {
+        buffer = slice;
+        array = slice.hasArray() ? slice.array() : null;
+        offset = off;
+        length = len;
+        charset = cs;
+    }
+
+    private void init(ByteBuffer slice, Charset cs) {
+        buffer = slice;
+        array = slice.hasArray() ? slice.array() : null;
+        offset = slice.hasArray() ? slice.arrayOffset() : 0;
+        length = slice.remaining();
+        charset = cs;
+    }
+
+    /**
+     * Make sure every ASCII character encodes to the same single byte in the
+     * given charset, and that those bytes never turn up inside another
+     * character, otherwise byte level delimiter scanning would be wrong.
+     * Multi-byte charsets like Shift_JIS or GBK fail the second test, since
+     * their trail bytes can be a delimiter; UTF-8 is the one that passes.
+     *
+     * @param cs the charset to check
+     * @throws IllegalArgumentException if it isn't ASCII compatible
+     */
+    public static void checkCharset(Charset cs) {
+        Boolean ok = (Boolean) asciiCompatible.get(cs.name());
+        if (ok == null) {
+            char[] ascii = new char[0x7f - 0x0a];
+            for (int i = 0; i < ascii.length; i++) {
+                ascii[i] = (char) (i + 0x0a);
+            }
+            byte[] encoded = new String(ascii).getBytes(cs);
+            boolean same = encoded.length == ascii.length;
+            for (int i = 0; same && i < ascii.length; i++) {
+                same = encoded[i] == ascii[i];
+            }
+            if (same && !StandardCharsets.UTF_8.equals(cs)) {
+                same = cs.canEncode() && cs.newEncoder().maxBytesPerChar() == 1;
+            }
+            ok = Boolean.valueOf(same);
+            asciiCompatible.put(cs.name(), ok);
+        }
+        if (!ok.booleanValue()) {
+            throw new IllegalArgumentException("Charset " + cs.name()
+                    + " is not ASCII compatible");
+        }
+    }
+
+    /**
+     * Return the charset values are decoded with.
+     *
+     * @return Charset
+     */
+    public Charset getCharset() {
+        return charset;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Return the raw byte at the index as a char (0 - 255).  This is not a
+     * decoded character, multi-byte characters show up as several chars.
+     */
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("index " + index + ", length "
+                    + length);
+        }
+        if (array != null) {
+            return (char) (array[offset + index] & 0xff);
+        }
+        return (char) (buffer.get(offset + index) & 0xff);
+    }
+
+    /**
+     * Find an ASCII character between from and end, or -1 if it isn't there.
+     *
+     * @param c the character to look for
+     * @param from offset to start at
+     * @param end offset to stop at
+     * @return the offset of the character or -1
+     */
+    public int indexOf(char c, int from, int end) {
+        if (c > 0x7f) {
+            return -1;
+        }
+        byte b = (byte) c;
+        if (array != null) {
+            int base = offset;
+            for (int i = from; i < end; i++) {
+                if (array[base + i] == b) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        for (int i = from; i < end; i++) {
+            if (buffer.get(offset + i) == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Return true if charAt() gives the real characters between start and
+     * end, which is so when they are all ASCII or the charset is ISO-8859-1.
+     *
+     * @param start offset of the first byte
+     * @param end offset after the last byte
+     * @return boolean
+     */
+    public boolean isCharMapped(int start, int end) {
+        if (StandardCharsets.ISO_8859_1.equals(charset)) {
+            return true;
+        }
+        for (int i = start; i < end; i++) {
+            byte b = array != null ? array[offset + i] : buffer.get(offset + i);
+            if (b < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return a view of part of these bytes, nothing is copied.
+     */
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException("start " + start + ", end "
+                    + end + ", length " + length);
+        }
+        return new Hl7Bytes(buffer, offset + start, end - start, charset);
+    }
+
+    /**
+     * Decode part of the bytes into a string.
+     *
+     * @param start offset of the first byte
+     * @param end offset after the last byte
+     * @return the decoded string
+     */
+    public String decode(int start, int end) {
+        if (array != null) {
+            return new String(array, offset + start, end - start, charset);
+        }
+        byte[] copy = new byte[end - start];
+        ByteBuffer dup = buffer.duplicate();
+        dup.position(offset + start);
+        dup.get(copy);
+        return new String(copy, charset);
+    }
+
+    /**
+     * Copy part of the bytes out into a new array.
+     *
+     * @param start offset of the first byte
+     * @param end offset after the last byte
+     * @return the bytes
+     */
+    public byte[] toByteArray(int start, int end) {
+        byte[] copy = new byte[end - start];
+        if (array != null) {
+            System.arraycopy(array, offset + start, copy, 0, copy.length);
+        } else {
+            ByteBuffer dup = buffer.duplicate();
+            dup.position(offset + start);
+            dup.get(copy);
+        }
+        return copy;
+    }
+
+    /**
+     * Decode all of the bytes into a string.
+     */
+    @Override
+    public String toString() {
+        return decode(0, length);
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeUTF(charset.name());
+        out.writeInt(length);
+        out.write(toByteArray(0, length));
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException,
+            ClassNotFoundException {
+        in.defaultReadObject();
+        Charset cs = Charset.forName(in.readUTF());
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        init(ByteBuffer.wrap(data), cs);
+    }
+}
@@ -0,0 +1,398 @@
+/*
+ * Hl7Cursor.java
+ *
+ * Copyright (C) 2004-2012 M Litherland
+ */
+
+package org.nule.lighthl7lib.hl7;
+
+/**
+ *
+ * @author mike
+ *
+ * A cursor that is moved through a record by the caller, for code that
+ * would rather ask for the next value than be called with it.  next()
+ * steps through every segment, field, repetition, component and
+ * subcomponent in order; nextSegment(), nextField() and so on move along
+ * one level and skip everything below it, so a mapper that wants PID-3 and
+ * PID-5 never splits anything else.
+ *
+ * The current value is a window onto the record that moves with the
+ * cursor, so nothing is allocated as it goes.  Numbers follow
+ * Hl7Segment.field(): MSH-1 is the field separator and MSH-2 the encoding
+ * characters, and like MshFieldOne neither is broken down any further.
+ * Unlike Hl7Record, empty fields at the end of a segment are still
+ * visited.
+ *
+ * A cursor can be pointed at any number of records with reset(), but used
+ * by one thread at a time.
+ */
+public class Hl7Cursor {
+
+    /** No current value: before the first segment or after the last. */
+    public static final int NONE = 0;
+    public static final int SEGMENT = 1;
+    public static final int FIELD = 2;
+    public static final int REPETITION = 3;
+    public static final int COMPONENT = 4;
+    public static final int SUBCOMPONENT = 5;
+
+    private final Hl7TextWindow window = new Hl7TextWindow();
+    private final SegmentIdCache ids = new SegmentIdCache();
+
+    private CharSequence text;
+    private String[] seps;
+    // Separator for each level, segments first.
+    private final char[] levelSep = new char[6];
+    // Bounds and number of the current value at each level; a number of 0
+    // means the level hasn't been entered yet.
+    private final int[] starts = new int[6];
+    private final int[] ends = new int[6];
+    private final int[] nums = new int[6];
+    private int level;
+    private String segId;
+    private boolean msh;
+
+    /**
+     * Create a cursor with no record, see reset().
+     */
+    public Hl7Cursor() {
+    }
+
+    /**
+     * Create a cursor before the first segment of a record.
+     *
+     * @param record the record text
+     */
+    public Hl7Cursor(CharSequence record) {
+        reset(record);
+    }
+
+    /**
+     * Point the cursor before the first segment of a record.
+     *
+     * @param record the record text
+     * @throws IllegalArgumentException if the text doesn't start with an
+     *         HL7 header
+     */
+    public void reset(CharSequence record) {
+        seps = Hl7Delimiters.fromHeader(record).array();
+        text = record;
+        levelSep[SEGMENT] = Hl7RecordUtil.sep0.charAt(0);
+        levelSep[FIELD] = Hl7Tokenizer.separator(seps, 0);
+        levelSep[REPETITION] = Hl7Tokenizer.separator(seps, 2);
+        levelSep[COMPONENT] = Hl7Tokenizer.separator(seps, 1);
+        levelSep[SUBCOMPONENT] = Hl7Tokenizer.separator(seps, 3);
+        starts[NONE] = 0;
+        ends[NONE] = record.length();
+        nums[NONE] = 1;
+        for (int i = SEGMENT; i <= SUBCOMPONENT; i++) {
+            nums[i] = 0;
+        }
+        level = NONE;
+        segId = null;
+    }
+
+    /**
+     * Return the separators of the record, as Hl7Record.getSeparators().
+     *
+     * @return String[]
+     */
+    public String[] getSeparators() {
+        return seps.clone();
+    }
+
+    /**
+     * Move to the next value of any kind: the first part of the current
+     * value if it has one, otherwise the next value at the same level or
+     * above.
+     *
+     * @return the kind of value we are now on, or NONE at the end of the
+     *         record
+     */
+    public int next() {
+        if (level < SUBCOMPONENT && move(level + 1)) {
+            return level;
+        }
+        while (level > NONE) {
+            if (move(level)) {
+                return level;
+            }
+            level--;
+        }
+        // The end of the record; stay there
+        nums[SEGMENT] = Integer.MAX_VALUE;
+        return NONE;
+    }
+
+    /**
+     * Move to the next segment.
+     *
+     * @return false if there are no more
+     */
+    public boolean nextSegment() {
+        return move(SEGMENT);
+    }
+
+    /**
+     * Move to the next segment with the given ID.
+     *
+     * @param id the segment ID
+     * @return false if there are no more
+     */
+    public boolean nextSegment(String id) {
+        while (move(SEGMENT)) {
+            if (id.equals(segId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Move to the next field of the current segment.
+     *
+     * @return false if there are no more
+     * @throws IllegalStateException if not on a segment
+     */
+    public boolean nextField() {
+        return move(FIELD);
+    }
+
+    /**
+     * Move to the next repetition of the current field.
+     *
+     * @return false if there are no more
+     * @throws IllegalStateException if not on a field
+     */
+    public boolean nextRepetition() {
+        return move(REPETITION);
+    }
+
+    /**
+     * Move to the next component of the current repetition.
+     *
+     * @return false if there are no more
+     * @throws IllegalStateException if not on a repetition
+     */
+    public boolean nextComponent() {
+        return move(COMPONENT);
+    }
+
+    /**
+     * Move to the next subcomponent of the current component.
+     *
+     * @return false if there are no more
+     * @throws IllegalStateException if not on a component
+     */
+    public boolean nextSubcomponent() {
+        return move(SUBCOMPONENT);
+    }
+
+    /*
+     * Move along one level.  On success the level becomes current and
+     * everything below it is reset; on failure nothing changes.
+     */
+    private boolean move(int at) {
+        if (text == null) {
+            throw new IllegalStateException("Cursor has no record");
+        }
+        if (at > SEGMENT && (level < at - 1 || nums[at - 1] == 0)) {
+            throw new IllegalStateException("Cursor is not inside a value to move through");
+        }
+        int parentEnd = ends[at - 1];
+        int start;
+        int end;
+        if (at == SEGMENT) {
+            if (nums[SEGMENT] == Integer.MAX_VALUE) {
+                return false;
+            }
+            start = nums[SEGMENT] == 0 ? 0 : ends[SEGMENT] + 1;
+            // Skip blank lines
+            while (start < parentEnd && text.charAt(start) == levelSep[SEGMENT]) {
+                start++;
+            }
+            if (start >= parentEnd) {
+                return false;
+            }
+            end = next(SEGMENT, start, parentEnd);
+            segId = ids.get(text, start, end);
+            msh = "MSH".equals(segId);
+        } else if (at == FIELD) {
+            int segStart = starts[SEGMENT];
+            int num = nums[FIELD];
+            if (num == 0) {
+                start = segStart + 3;
+                if (start >= parentEnd) {
+                    return false;
+                }
+                if (msh) {
+                    end = start + 1;
+                } else {
+                    start++;
+                    end = next(FIELD, start, parentEnd);
+                }
+            } else if (msh && num == 1) {
+                start = segStart + 4;
+                end = next(FIELD, start, parentEnd);
+            } else {
+                if (ends[FIELD] >= parentEnd) {
+                    return false;
+                }
+                start = ends[FIELD] + 1;
+                end = next(FIELD, start, parentEnd);
+            }
+        } else {
+            if (nums[at] == 0) {
+                start = starts[at - 1];
+            } else if (ends[at] >= parentEnd || isLiteral()) {
+                return false;
+            } else {
+                start = ends[at] + 1;
+            }
+            end = isLiteral() ? parentEnd : next(at, start, parentEnd);
+        }
+        starts[at] = start;
+        ends[at] = end;
+        nums[at]++;
+        for (int i = at + 1; i <= SUBCOMPONENT; i++) {
+            nums[i] = 0;
+        }
+        level = at;
+        return true;
+    }
+
+    /*
+     * MSH-1 and MSH-2 hold separators, so they aren't split any further.
+     */
+    private boolean isLiteral() {
+        return msh && nums[FIELD] <= 2;
+    }
+
+    private int next(int at, int from, int end) {
+        int e = Hl7Tokenizer.indexOf(text, levelSep[at], from, end);
+        return e == -1 ? end : e;
+    }
+
+    /**
+     * Return what kind of value the cursor is on.
+     *
+     * @return SEGMENT through SUBCOMPONENT, or NONE
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Return the current value, still escaped.  The same window is returned
+     * every time and moves with the cursor, so call toString() on it to keep
+     * the value.
+     *
+     * @return the value
+     * @throws IllegalStateException if not on a value
+     */
+    public CharSequence getValue() {
+        if (level == NONE) {
+            throw new IllegalStateException("Cursor is not on a value");
+        }
+        window.set(text, starts[level], ends[level]);
+        return window;
+    }
+
+    /**
+     * Return the current value as a String, still escaped.
+     *
+     * @return String
+     */
+    public String getString() {
+        return getValue().toString();
+    }
+
+    /**
+     * Return true if the current value is the given text, without making a
+     * String of it.
+     *
+     * @param s the text to compare with
+     * @return boolean
+     */
+    public boolean valueEquals(String s) {
+        return ((Hl7TextWindow) getValue()).contentEquals(s);
+    }
+
+    /**
+     * Return where the current value starts in the record text.
+     *
+     * @return the offset
+     */
+    public int getStart() {
+        return starts[level];
+    }
+
+    /**
+     * Return where the current value ends in the record text.
+     *
+     * @return the offset after the last character
+     */
+    public int getEnd() {
+        return ends[level];
+    }
+
+    /**
+     * Return the ID of the current segment.
+     *
+     * @return the ID, or null before the first segment
+     */
+    public String getSegmentId() {
+        return level == NONE ? null : segId;
+    }
+
+    /**
+     * Return the position of the current segment in the record, counting
+     * from 1 and not counting blank lines.
+     *
+     * @return the position, or 0 if not on a segment
+     */
+    public int getSegmentNumber() {
+        return number(SEGMENT);
+    }
+
+    /**
+     * Return the current field number, as Hl7Segment.field() counts them.
+     *
+     * @return the field number, or 0 if not on a field
+     */
+    public int getFieldNumber() {
+        return number(FIELD);
+    }
+
+    /**
+     * Return the current repetition number, counting from 1.
+     *
+     * @return the repetition number, or 0 if not on a repetition
+     */
+    public int getRepetitionNumber() {
+        return number(REPETITION);
+    }
+
+    /**
+     * Return the current component number, counting from 1.
+     *
+     * @return the component number, or 0 if not on a component
+     */
+    public int getComponentNumber() {
+        return number(COMPONENT);
+    }
+
+    /**
+     * Return the current subcomponent number, counting from 1.
+     *
+     * @return the subcomponent number, or 0 if not on a subcomponent
+     */
+    public int getSubcomponentNumber() {
+        return number(SUBCOMPONENT);
+    }
+
+    private int number(int at) {
+        return level >= at ? nums[at] : 0;
+    }
+}
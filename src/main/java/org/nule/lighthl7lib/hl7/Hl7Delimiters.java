@@ -0,0 +1,199 @@
+/*
+ * Hl7Delimiters.java
+ *
+ * Copyright (C) 2004-2012 M Litherland
+ */
+
+package org.nule.lighthl7lib.hl7;
+
+import java.util.Arrays;
+
+/**
+ *
+ * @author mike
+ *
+ * The five delimiters of a record, along with the separator array
+ * Hl7RecordUtil.setSeparators makes from them.  Delimiters are interned, so
+ * every record with the same header gets the same object, and every segment
+ * and field in those records shares its one separator array instead of
+ * carrying a copy.  That array is never handed out where it could be
+ * changed; getSeparators() on the nodes returns a copy.
+ *
+ * The standard |^~\& set is always cached, along with the first few others
+ * that turn up.
+ */
+public final class Hl7Delimiters {
+
+    private static final int CACHE_SIZE = 32;
+
+    /** The standard delimiters, |^~\&. */
+    public static final Hl7Delimiters DEFAULT = new Hl7Delimiters('|', '^', '~', '\\', '&');
+
+    private static volatile Hl7Delimiters[] cache = {DEFAULT};
+
+    private final char field;
+    private final char component;
+    private final char repetition;
+    private final char escape;
+    private final char subcomponent;
+    private final String[] seps;
+
+    private Hl7Delimiters(char f, char c, char r, char e, char s) {
+        field = f;
+        component = c;
+        repetition = r;
+        escape = e;
+        subcomponent = s;
+        seps = Hl7RecordUtil.setSeparators(new String(new char[] {'M', 'S', 'H', f, c, r, e, s}));
+    }
+
+    /**
+     * Return the delimiters with the given characters, in the order they
+     * appear in MSH-1 and MSH-2.
+     *
+     * @return Hl7Delimiters
+     */
+    public static Hl7Delimiters of(char f, char c, char r, char e, char s) {
+        Hl7Delimiters[] known = cache;
+        for (int i = 0; i < known.length; i++) {
+            if (known[i].matches(f, c, r, e, s)) {
+                return known[i];
+            }
+        }
+        return add(new Hl7Delimiters(f, c, r, e, s));
+    }
+
+    private static synchronized Hl7Delimiters add(Hl7Delimiters d) {
+        Hl7Delimiters[] known = cache;
+        for (int i = 0; i < known.length; i++) {
+            if (known[i].matches(d.field, d.component, d.repetition, d.escape, d.subcomponent)) {
+                return known[i];
+            }
+        }
+        if (known.length < CACHE_SIZE) {
+            Hl7Delimiters[] grown = Arrays.copyOf(known, known.length + 1);
+            grown[known.length] = d;
+            cache = grown;
+        }
+        return d;
+    }
+
+    /**
+     * Return the delimiters from the header at the start of a record.
+     *
+     * @param header text starting with an MSH, BHS or FHS segment
+     * @return Hl7Delimiters
+     * @throws IllegalArgumentException if it doesn't, or is too short to
+     *         hold all five delimiters
+     */
+    public static Hl7Delimiters fromHeader(CharSequence header) {
+        if (header.length() < 8) {
+            throw new IllegalArgumentException("Record not HL7");
+        }
+        char a = header.charAt(0);
+        char b = header.charAt(1);
+        char c = header.charAt(2);
+        if (!(a == 'M' && b == 'S' && c == 'H') && !((a == 'B' || a == 'F') && b == 'H' && c == 'S')) {
+            throw new IllegalArgumentException("Record not HL7");
+        }
+        return of(header.charAt(3), header.charAt(4), header.charAt(5),
+                header.charAt(6), header.charAt(7));
+    }
+
+    /**
+     * Return the shared array with the same contents as the separators
+     * given, or a copy of them if they aren't an array setSeparators would
+     * make.  An array that is already shared is returned as it is without
+     * looking any further, which is the usual case.
+     */
+    static String[] intern(String[] separators) {
+        Hl7Delimiters d = forArray(separators);
+        return d != null ? d.seps : separators.clone();
+    }
+
+    /**
+     * Return the delimiters whose separator array has the same contents as
+     * the one given, or null if it isn't an array setSeparators would make.
+     */
+    static Hl7Delimiters forArray(String[] separators) {
+        Hl7Delimiters[] known = cache;
+        for (int i = 0; i < known.length; i++) {
+            if (known[i].seps == separators) {
+                return known[i];
+            }
+        }
+        if (separators.length != 10) {
+            return null;
+        }
+        Hl7Delimiters d = of(Hl7Tokenizer.separator(separators, 0),
+                Hl7Tokenizer.separator(separators, 1), Hl7Tokenizer.separator(separators, 2),
+                Hl7Tokenizer.separator(separators, 4), Hl7Tokenizer.separator(separators, 3));
+        return Arrays.equals(d.seps, separators) ? d : null;
+    }
+
+    private boolean matches(char f, char c, char r, char e, char s) {
+        return field == f && component == c && repetition == r && escape == e
+                && subcomponent == s;
+    }
+
+    /**
+     * The shared separator array, which must not be changed.
+     */
+    String[] array() {
+        return seps;
+    }
+
+    /**
+     * Return a copy of the separators as Hl7RecordUtil.setSeparators makes
+     * them.
+     *
+     * @return String[]
+     */
+    public String[] toArray() {
+        return seps.clone();
+    }
+
+    public char getField() {
+        return field;
+    }
+
+    public char getComponent() {
+        return component;
+    }
+
+    public char getRepetition() {
+        return repetition;
+    }
+
+    public char getEscape() {
+        return escape;
+    }
+
+    public char getSubcomponent() {
+        return subcomponent;
+    }
+
+    /**
+     * Return the delimiters as they appear in MSH-1 and MSH-2.
+     *
+     * @return String
+     */
+    @Override
+    public String toString() {
+        return new String(new char[] {field, component, repetition, escape, subcomponent});
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Hl7Delimiters)) {
+            return false;
+        }
+        Hl7Delimiters d = (Hl7Delimiters) o;
+        return d.matches(field, component, repetition, escape, subcomponent);
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Hl7Escape.java
+ *
+ * Copyright (C) 2004-2012 M Litherland
+ */
+
+package org.nule.lighthl7lib.hl7;
+
+/**
+ *
+ * @author mike
+ *
+ * Convert HL7 escape sequences to and from plain text in a single pass over
+ * the value, using whatever separators the record declared.  Values with
+ * nothing to convert are handed back as the same String, so the common case
+ * costs one scan and no copies.
+ *
+ * Unescaping understands the delimiter escapes (\F\ \S\ \R\ \T\ \E\), hex
+ * data (\Xhh..\, one character per byte), the formatting commands \.br\,
+ * \.sp n\, \.sk n\ and \.ce\ (which become line breaks or spaces), and
+ * silently drops the commands that only affect presentation (\H\ \N\ \.fi\
+ * \.nf\ \.in n\ \.ti n\ and character set switches \C..\ \M..\).  Anything
+ * else, including locally defined \Z..\ escapes and unterminated sequences,
+ * is left exactly as it was.  Escaping turns the five delimiters into their
+ * escapes and line breaks into \.br\.
+ */
+public final class Hl7Escape {
+
+    // Largest line or space count we will expand a \.sp n\ or \.sk n\ to.
+    private static final int MAX_REPEAT = 999;
+
+    private Hl7Escape() {
+    }
+
+    /**
+     * Replace escape sequences in a value with the text they stand for.
+     *
+     * @param text the escaped value
+     * @param seps the separators of the record the value came from
+     * @return the plain text, or text itself if there was nothing to do
+     */
+    public static String unescape(String text, String[] seps) {
+        return unescape(text, Hl7Tokenizer.separator(seps, 0),
+                Hl7Tokenizer.separator(seps, 1), Hl7Tokenizer.separator(seps, 2),
+                Hl7Tokenizer.separator(seps, 3), Hl7Tokenizer.separator(seps, 4));
+    }
+
+    /**
+     * Replace escape sequences in a value with the text they stand for.
+     *
+     * @param text the escaped value
+     * @param field field separator
+     * @param comp component separator
+     * @param rep repetition separator
+     * @param sub subcomponent separator
+     * @param esc escape character
+     * @return the plain text, or text itself if there was nothing to do
+     */
+    public static String unescape(String text, char field, char comp, char rep,
+            char sub, char esc) {
+        int first = text.indexOf(esc);
+        if (first == -1) {
+            return text;
+        }
+        int len = text.length();
+        StringBuilder sb = new StringBuilder(len);
+        sb.append(text, 0, first);
+        int pos = first;
+        while (pos < len) {
+            char c = text.charAt(pos);
+            if (c != esc) {
+                sb.append(c);
+                pos++;
+                continue;
+            }
+            int close = text.indexOf(esc, pos + 1);
+            if (close == -1) {
+                // Unterminated, keep the rest as it is
+                sb.append(text, pos, len);
+                break;
+            }
+            if (!decode(text, pos + 1, close, field, comp, rep, sub, esc, sb)) {
+                sb.append(text, pos, close + 1);
+            }
+            pos = close + 1;
+        }
+        return sb.toString();
+    }
+
+    /*
+     * Append what the sequence between start and end (the escape characters
+     * excluded) stands for, or return false if we don't recognize it.
+     */
+    private static boolean decode(String text, int start, int end, char field,
+            char comp, char rep, char sub, char esc, StringBuilder sb) {
+        int len = end - start;
+        if (len == 0) {
+            return false;
+        }
+        char code = text.charAt(start);
+        if (len == 1) {
+            switch (code) {
+                case 'F':
+                    sb.append(field);
+                    return true;
+                case 'S':
+                    sb.append(comp);
+                    return true;
+                case 'R':
+                    sb.append(rep);
+                    return true;
+                case 'T':
+                    sb.append(sub);
+                    return true;
+                case 'E':
+                    sb.append(esc);
+                    return true;
+                case 'H':
+                case 'N':
+                    return true;
+                default:
+                    return false;
+            }
+        }
+        switch (code) {
+            case 'X':
+                return decodeHex(text, start + 1, end, sb);
+            case 'C':
+            case 'M':
+                return isHex(text, start + 1, end);
+            case '.':
+                return decodeFormat(text, start + 1, end, sb);
+            default:
+                return false;
+        }
+    }
+
+    private static boolean decodeHex(String text, int start, int end,
+            StringBuilder sb) {
+        if (!isHex(text, start, end)) {
+            return false;
+        }
+        for (int i = start; i < end; i += 2) {
+            sb.append((char) ((hex(text.charAt(i)) << 4) | hex(text.charAt(i + 1))));
+        }
+        return true;
+    }
+
+    private static boolean isHex(String text, int start, int end) {
+        if (start == end || (end - start) % 2 != 0) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (hex(text.charAt(i)) == -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hex(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        return -1;
+    }
+
+    private static boolean decodeFormat(String text, int start, int end,
+            StringBuilder sb) {
+        if (end - start < 2) {
+            return false;
+        }
+        String cmd = text.substring(start, start + 2);
+        int count = 1;
+        boolean signed = false;
+        int pos = start + 2;
+        if (pos < end) {
+            // Commands that take a number have it after optional spaces
+            while (pos < end && text.charAt(pos) == ' ') {
+                pos++;
+            }
+            signed = pos < end && (text.charAt(pos) == '-' || text.charAt(pos) == '+');
+            if (signed) {
+                pos++;
+            }
+            if (pos == end) {
+                return false;
+            }
+            count = 0;
+            for (; pos < end; pos++) {
+                char c = text.charAt(pos);
+                if (c < '0' || c > '9') {
+                    return false;
+                }
+                count = count * 10 + (c - '0');
+                if (count > MAX_REPEAT) {
+                    return false;
+                }
+            }
+        }
+        if ("br".equals(cmd) || "ce".equals(cmd)) {
+            if (start + 2 != end) {
+                return false;
+            }
+            sb.append('\n');
+        } else if (signed && ("sp".equals(cmd) || "sk".equals(cmd))) {
+            return false;
+        } else if ("sp".equals(cmd)) {
+            for (int i = 0; i < count; i++) {
+                sb.append('\n');
+            }
+        } else if ("sk".equals(cmd)) {
+            for (int i = 0; i < count; i++) {
+                sb.append(' ');
+            }
+        } else if ("fi".equals(cmd) || "nf".equals(cmd)) {
+            return start + 2 == end;
+        } else if (!"in".equals(cmd) && !"ti".equals(cmd)) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Escape the separators and line breaks in a value so it can be stored
+     * in a field.
+     *
+     * @param text the plain text
+     * @param seps the separators of the record the value is going into
+     * @return the escaped value, or text itself if there was nothing to do
+     */
+    public static String escape(String text, String[] seps) {
+        return escape(text, Hl7Tokenizer.separator(seps, 0),
+                Hl7Tokenizer.separator(seps, 1), Hl7Tokenizer.separator(seps, 2),
+                Hl7Tokenizer.separator(seps, 3), Hl7Tokenizer.separator(seps, 4));
+    }
+
+    /**
+     * Escape the separators and line breaks in a value so it can be stored
+     * in a field.  A carriage return, a line feed or the two together each
+     * become one \.br\.
+     *
+     * @param text the plain text
+     * @param field field separator
+     * @param comp component separator
+     * @param rep repetition separator
+     * @param sub subcomponent separator
+     * @param esc escape character
+     * @return the escaped value, or text itself if there was nothing to do
+     */
+    public static String escape(String text, char field, char comp, char rep,
+            char sub, char esc) {
+        int len = text.length();
+        int first = 0;
+        while (first < len) {
+            char c = text.charAt(first);
+            if (c == field || c == comp || c == rep || c == sub || c == esc
+                    || c == '\r' || c == '\n') {
+                break;
+            }
+            first++;
+        }
+        if (first == len) {
+            return text;
+        }
+        StringBuilder sb = new StringBuilder(len + 16);
+        sb.append(text, 0, first);
+        for (int i = first; i < len; i++) {
+            char c = text.charAt(i);
+            char code;
+            if (c == esc) {
+                code = 'E';
+            } else if (c == field) {
+                code = 'F';
+            } else if (c == comp) {
+                code = 'S';
+            } else if (c == rep) {
+                code = 'R';
+            } else if (c == sub) {
+                code = 'T';
+            } else if (c == '\r' || c == '\n') {
+                if (c == '\r' && i + 1 < len && text.charAt(i + 1) == '\n') {
+                    i++;
+                }
+                sb.append(esc).append(".br").append(esc);
+                continue;
+            } else {
+                sb.append(c);
+                continue;
+            }
+            sb.append(esc).append(code).append(esc);
+        }
+        return sb.toString();
+    }
+}
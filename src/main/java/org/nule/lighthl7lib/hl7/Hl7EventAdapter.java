@@ -0,0 +1,47 @@
+/*
+ * Hl7EventAdapter.java
+ *
+ * Copyright (C) 2004-2012 M Litherland
+ */
+
+package org.nule.lighthl7lib.hl7;
+
+/**
+ *
+ * @author mike
+ *
+ * An Hl7EventHandler that does nothing, so a subclass only has to override
+ * what it is interested in.  Every segment is visited and values are not
+ * broken down.
+ */
+public class Hl7EventAdapter implements Hl7EventHandler {
+
+    public void startRecord(String[] separators) {
+    }
+
+    public boolean startSegment(String id, int position) {
+        return true;
+    }
+
+    public int field(int field, CharSequence value) {
+        return NEXT;
+    }
+
+    public int repetition(int field, int rep, CharSequence value) {
+        return NEXT;
+    }
+
+    public int component(int field, int rep, int comp, CharSequence value) {
+        return NEXT;
+    }
+
+    public int subcomponent(int field, int rep, int comp, int subcomp, CharSequence value) {
+        return NEXT;
+    }
+
+    public void endSegment(String id) {
+    }
+
+    public void endRecord() {
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Hl7EventHandler.java
+ *
+ * Copyright (C) 2004-2012 M Litherland
+ */
+
+package org.nule.lighthl7lib.hl7;
+
+/**
+ *
+ * @author mike
+ *
+ * Receives the pieces of a record from Hl7EventParser as it finds them.
+ * The value callbacks return one of SKIP, NEXT or DESCEND to say where the
+ * parser should go next.  Values are handed over as a window onto the
+ * record that is only good for the length of the call, and are still
+ * escaped.  Field numbers follow Hl7Segment.field(), so MSH-1 is the field
+ * separator and MSH-2 the encoding characters.
+ *
+ * Extend Hl7EventAdapter to only implement the callbacks you need.
+ */
+public interface Hl7EventHandler {
+
+    /** Skip the rest of this segment. */
+    int SKIP = 0;
+    /** Carry on with the next value at the same level. */
+    int NEXT = 1;
+    /** Break this value down into its parts before moving on. */
+    int DESCEND = 2;
+
+    /**
+     * Called before anything else for each record.
+     *
+     * @param separators the separators as Hl7RecordUtil.setSeparators finds them
+     */
+    void startRecord(String[] separators);
+
+    /**
+     * Called at the start of every segment.
+     *
+     * @param id the segment ID
+     * @param position the segment's position in the record, counting from 1
+     * @return false to skip the segment entirely, including endSegment
+     */
+    boolean startSegment(String id, int position);
+
+    /**
+     * Called for each field.  DESCEND gives repetition events; it is ignored
+     * for MSH-1 and MSH-2.
+     */
+    int field(int field, CharSequence value);
+
+    /**
+     * Called for each repetition of a field, only if the field callback
+     * asked for them.  A field without repetitions has one.  DESCEND gives
+     * component events.
+     */
+    int repetition(int field, int rep, CharSequence value);
+
+    /**
+     * Called for each component of a repetition, if asked for.  DESCEND
+     * gives subcomponent events.
+     */
+    int component(int field, int rep, int comp, CharSequence value);
+
+    /**
+     * Called for each subcomponent of a component, if asked for.  DESCEND is
+     * the same as NEXT.
+     */
+    int subcomponent(int field, int rep, int comp, int subcomp, CharSequence value);
+
+    /**
+     * Called at the end of every segment that wasn't skipped by
+     * startSegment, even if the rest of it was skipped later.
+     *
+     * @param id the segment ID
+     */
+    void endSegment(String id);
+
+    /**
+     * Called after everything else for each record.
+     */
+    void endRecord();
+}
@@ -0,0 +1,183 @@
+/*
+ * Hl7EventParser.java
+ *
+ * Copyright (C) 2004-2012 M Litherland
+ */
+
+package org.nule.lighthl7lib.hl7;
+
+import java.nio.charset.Charset;
+
+/**
+ *
+ * @author mike
+ *
+ * Walk a record and report its segments, fields, repetitions, components
+ * and subcomponents to an Hl7EventHandler, without building any Hl7Segment
+ * or Hl7Field objects.  Values are passed as one window that moves along
+ * the text, and segment IDs are shared from a small cache, so a handler
+ * that only looks at a few values costs next to nothing in garbage.  The
+ * handler decides how deep to go and can skip the rest of any segment.
+ *
+ * A parser can be used for any number of records, but by one thread at a
+ * time.
+ */
+public class Hl7EventParser {
+
+    private final Hl7TextWindow window = new Hl7TextWindow();
+    private final SegmentIdCache ids = new SegmentIdCache();
+
+    /**
+     * Parse a record held as raw bytes in an ASCII compatible charset.
+     * Values are only decoded if the handler calls toString() on them.
+     *
+     * @param data the record bytes
+     * @param cs the charset
+     * @param handler who to tell
+     */
+    public void parse(byte[] data, Charset cs, Hl7EventHandler handler) {
+        parse(new Hl7Bytes(data, 0, data.length, cs), handler);
+    }
+
+    /**
+     * Parse a record.
+     *
+     * @param text the record
+     * @param handler who to tell
+     * @throws IllegalArgumentException if the text doesn't start with an
+     *         HL7 header
+     */
+    public void parse(CharSequence text, Hl7EventHandler handler) {
+        int len = text.length();
+        String[] seps = Hl7Delimiters.fromHeader(text).array();
+        char fs = Hl7Tokenizer.separator(seps, 0);
+        char cs = Hl7Tokenizer.separator(seps, 1);
+        char rs = Hl7Tokenizer.separator(seps, 2);
+        char ss = Hl7Tokenizer.separator(seps, 3);
+        char segSep = Hl7RecordUtil.sep0.charAt(0);
+        handler.startRecord(seps.clone());
+        int pos = 0;
+        int position = 0;
+        while (pos < len) {
+            int segEnd = Hl7Tokenizer.indexOf(text, segSep, pos, len);
+            if (segEnd == -1) {
+                segEnd = len;
+            }
+            if (segEnd > pos) {
+                position++;
+                String id = ids.get(text, pos, segEnd);
+                if (handler.startSegment(id, position)) {
+                    segment(text, pos, segEnd, "MSH".equals(id), fs, cs, rs, ss, handler);
+                    handler.endSegment(id);
+                }
+            }
+            pos = segEnd + 1;
+        }
+        handler.endRecord();
+    }
+
+    private void segment(CharSequence text, int start, int end, boolean msh,
+            char fs, char cs, char rs, char ss, Hl7EventHandler handler) {
+        // sep is always sitting on the field separator before the next field
+        int sep = start + 3;
+        if (sep >= end) {
+            return;
+        }
+        int field = 1;
+        if (msh) {
+            window.set(text, sep, sep + 1);
+            if (handler.field(1, window) == Hl7EventHandler.SKIP) {
+                return;
+            }
+            int e = next(text, fs, sep + 1, end);
+            window.set(text, sep + 1, e);
+            if (handler.field(2, window) == Hl7EventHandler.SKIP) {
+                return;
+            }
+            sep = e;
+            field = 3;
+        }
+        while (sep < end) {
+            int s = sep + 1;
+            int e = next(text, fs, s, end);
+            window.set(text, s, e);
+            int action = handler.field(field, window);
+            if (action == Hl7EventHandler.SKIP) {
+                return;
+            }
+            if (action == Hl7EventHandler.DESCEND
+                    && !repetitions(text, s, e, field, cs, rs, ss, handler)) {
+                return;
+            }
+            sep = e;
+            field++;
+        }
+    }
+
+    /*
+     * Each of these returns false if the handler wants to skip the rest of
+     * the segment.
+     */
+    private boolean repetitions(CharSequence text, int start, int end, int field,
+            char cs, char rs, char ss, Hl7EventHandler handler) {
+        int s = start;
+        for (int rep = 1; ; rep++) {
+            int e = next(text, rs, s, end);
+            window.set(text, s, e);
+            int action = handler.repetition(field, rep, window);
+            if (action == Hl7EventHandler.SKIP) {
+                return false;
+            }
+            if (action == Hl7EventHandler.DESCEND
+                    && !components(text, s, e, field, rep, cs, ss, handler)) {
+                return false;
+            }
+            if (e == end) {
+                return true;
+            }
+            s = e + 1;
+        }
+    }
+
+    private boolean components(CharSequence text, int start, int end, int field,
+            int rep, char cs, char ss, Hl7EventHandler handler) {
+        int s = start;
+        for (int comp = 1; ; comp++) {
+            int e = next(text, cs, s, end);
+            window.set(text, s, e);
+            int action = handler.component(field, rep, comp, window);
+            if (action == Hl7EventHandler.SKIP) {
+                return false;
+            }
+            if (action == Hl7EventHandler.DESCEND
+                    && !subcomponents(text, s, e, field, rep, comp, ss, handler)) {
+                return false;
+            }
+            if (e == end) {
+                return true;
+            }
+            s = e + 1;
+        }
+    }
+
+    private boolean subcomponents(CharSequence text, int start, int end,
+            int field, int rep, int comp, char ss, Hl7EventHandler handler) {
+        int s = start;
+        for (int sub = 1; ; sub++) {
+            int e = next(text, ss, s, end);
+            window.set(text, s, e);
+            if (handler.subcomponent(field, rep, comp, sub, window) == Hl7EventHandler.SKIP) {
+                return false;
+            }
+            if (e == end) {
+                return true;
+            }
+            s = e + 1;
+        }
+    }
+
+    private static int next(CharSequence text, char sep, int from, int end) {
+        int e = Hl7Tokenizer.indexOf(text, sep, from, end);
+        return e == -1 ? end : e;
+    }
+}
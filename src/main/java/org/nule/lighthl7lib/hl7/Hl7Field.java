@@ -8,6 +8,7 @@
 
 package org.nule.lighthl7lib.hl7;
 
+import java.io.ObjectStreamException;
 import java.io.Serializable;
 import java.util.ArrayList;
 
@@ -18,13 +19,23 @@ import java.util.ArrayList;
  * This class abstracts an HL7 field.
  */
 public class Hl7Field  implements Serializable {
-    private static final long serialVersionUID = 7911530595925374499L;
+    private static final long serialVersionUID = -7334132384946414283L;
 
+    // Like segments, a field is a window onto src until it is changed or
+    // turned into a string.
+    private CharSequence src;
+    private int start;
+    private int end;
     private String field;
-    protected String[] seps;
+    // Shared by every node of the record, and perhaps other records too, so
+    // it is never handed to anything that could change it
+    private String[] seps;
     private ArrayList comps = null;
-    private String compSep = null;
+    // The separator comps was split on, 0 when comps hasn't been made.
+    private char compSep = 0;
     protected boolean existing = false;
+    // Set by changeField, cleared when the record is rebuilt.
+    private boolean changed = false;
     
     /**
      * Create a new Hl7Field object from a string and our separators.
@@ -33,9 +44,7 @@ public class Hl7Field  implements Serializable {
      * @param separators
      */
     public Hl7Field(String newField, String[] separators) {
-        field = newField;
-        seps = separators.clone();
-        existing = true;
+        this(newField, separators, true);
     }
 
     /**
@@ -51,11 +60,47 @@ public class Hl7Field  implements Serializable {
      * @param isExisting
      */
     public Hl7Field(String newField, String[] separators, boolean existing) {
+        this(newField, 0, newField.length(), separators, existing);
         field = newField;
-        seps = separators.clone();
+    }
+
+    /**
+     * Create a field that is a view onto part of a larger piece of text,
+     * normally the record or segment it came from.
+     *
+     * @param text the backing text
+     * @param start offset of the field in the text
+     * @param end offset after the end of the field
+     * @param separators
+     * @param isExisting
+     */
+    Hl7Field(CharSequence text, int start, int end, String[] separators,
+            boolean existing) {
+        src = text;
+        this.start = start;
+        this.end = end;
+        seps = Hl7Delimiters.intern(separators);
         this.existing = existing;
     }
 
+    /**
+     * Point a field that is no longer in use at a new piece of text, as if it
+     * had just been made.  Used by segments that are reused for the next
+     * record.
+     */
+    void reset(CharSequence text, int newStart, int newEnd, String[] separators,
+            boolean isExisting) {
+        src = text;
+        start = newStart;
+        end = newEnd;
+        field = null;
+        seps = Hl7Delimiters.intern(separators);
+        comps = null;
+        compSep = 0;
+        existing = isExisting;
+        changed = false;
+    }
+
     /**
      * Return the field as a string.
      * 
@@ -63,9 +108,34 @@ public class Hl7Field  implements Serializable {
      */
     @Override
     public String toString() {
+        if (field == null) {
+            field = Hl7Text.substring(src, start, end);
+        }
     	return field;
     }
 
+    /**
+     * The shared separator array, which must not be changed.
+     */
+    String[] separators() {
+        return seps;
+    }
+
+    /**
+     * Return the field as a read only character sequence without copying it
+     * out of the record.  It always reads the same as toString(), so in a
+     * record made from bytes in a charset like UTF-8 a field that isn't all
+     * ASCII is decoded instead.
+     *
+     * @return the field text.
+     */
+    public CharSequence getText() {
+        if (field != null) {
+            return field;
+        }
+        return Hl7Text.view(src, start, end);
+    }
+
     /**
      * Return the field as a string, but convert escaped characters to their
      * original form.
@@ -73,11 +143,7 @@ public class Hl7Field  implements Serializable {
      * @return the field with escapes converted.
      */
     public String toStringEsc() {
-        return field.replaceAll(seps[8]+"F"+seps[8], seps[4])
-                .replaceAll(seps[8]+"S"+seps[8], seps[5])
-                .replaceAll(seps[8]+"R"+seps[8], seps[6])
-                .replaceAll(seps[8]+"T"+seps[8], seps[7])
-                .replaceAll(seps[8]+"E"+seps[8], seps[9]);
+        return Hl7Escape.unescape(toString(), seps);
     }
 
     /**
@@ -100,12 +166,14 @@ public class Hl7Field  implements Serializable {
      * @return The requested Hl7Field
      */
     protected Hl7Field getReal(int id, int sep) {
-    	if (comps == null || !seps[sep + 4].equals(compSep)) {
-            comps = new ArrayList();
-            compSep = seps[sep + 4];
-            String[] fields = field.split(seps[sep]);
-            for (int i = 0; i < fields.length; i++) {
-                comps.add(new Hl7Field(fields[i], seps, existing));
+        char sepChar = Hl7Tokenizer.separator(seps, sep);
+    	if (comps == null || sepChar != compSep) {
+            int[] bounds = Hl7Tokenizer.split(src, start, end, sepChar, null);
+            comps = new ArrayList(Math.max(bounds[0], id));
+            compSep = sepChar;
+            for (int i = 0; i < bounds[0]; i++) {
+                comps.add(new Hl7Field(src, bounds[i * 2 + 1], bounds[i * 2 + 2],
+                        seps, existing));
             }
     	}
         if (id >= comps.size()) {
@@ -131,8 +199,9 @@ public class Hl7Field  implements Serializable {
      * @return
      */
     protected int getRealCount(int sep) {
-    	if (comps == null || !seps[sep + 4].equals(compSep)) {
-            return field.split(seps[sep]).length;
+        char sepChar = Hl7Tokenizer.separator(seps, sep);
+    	if (comps == null || sepChar != compSep) {
+            return Hl7Tokenizer.count(src, start, end, sepChar);
     	}
         int lastExistingField = 0;
         for (int i = 0; i < comps.size(); i++) {
@@ -188,26 +257,42 @@ public class Hl7Field  implements Serializable {
      */
     public void changeField(String newField) {
     	field = newField;
+        src = newField;
+        start = 0;
+        end = newField.length();
     	comps = null;
-    	compSep = null;
+    	compSep = 0;
         existing = true;
+        changed = true;
+    }
+
+    /**
+     * Returns true if the field, or any part of it, has been changed since
+     * the record was last rebuilt.
+     *
+     * @return boolean
+     */
+    public boolean isChanged() {
+        if (changed) {
+            return true;
+        }
+        if (comps != null) {
+            for (int i = 0; i < comps.size(); i++) {
+                if (((Hl7Field) comps.get(i)).isChanged()) {
+                    return true;
+                }
+            }
+        }
+        return false;
     }
 
     /**
-     * Update a field, but ensure that
+     * Update a field, but ensure that separators and line breaks in the new
+     * value are escaped first.
      * @param newField
      */
     public void changeFieldEsc(String newField) {
-        changeField(newField.replaceAll(seps[8], seps[9]+"E"+seps[9])
-                .replaceAll(seps[3], seps[9]+"T"+seps[9])
-                .replaceAll(seps[2], seps[9]+"R"+seps[9])
-                .replaceAll(seps[1], seps[9]+"S"+seps[9])
-                .replaceAll(seps[0], seps[9]+"F"+seps[9]));
-//        return field.replaceAll(seps[8]+"F"+seps[8], seps[4])
-//                .replaceAll(seps[8]+"S"+seps[8], seps[5])
-//                .replaceAll(seps[8]+"R"+seps[8], seps[6])
-//                .replaceAll(seps[8]+"T"+seps[8], seps[7])
-//                .replaceAll(seps[8]+"E"+seps[8], seps[9]);
+        changeField(Hl7Escape.escape(newField, seps));
     }
     
     /**
@@ -217,10 +302,10 @@ public class Hl7Field  implements Serializable {
      * @return Newly constructed string of record.
      */
     public String rebuild() {
-    	if (comps == null) {
-            return field;
+    	if (comps == null || !isChanged()) {
+            return toString();
     	}
-    	StringBuilder newField = new StringBuilder();
+    	StringBuilder newField = new StringBuilder(end - start + 16);
         int lastExistingField = 0;
         for (int i = 0; i < comps.size(); i++) {
             if (((Hl7Field) comps.get(i)).isExisting()) {
@@ -231,10 +316,43 @@ public class Hl7Field  implements Serializable {
             if (i > 0) {
                 newField.append(compSep);
             }
-            newField.append(((Hl7Field) comps.get(i)).rebuild());
+            ((Hl7Field) comps.get(i)).rebuildTo(newField);
     	}
     	changeField(newField.toString());
-    	return newField.toString();
+    	return field;
+    }
+
+    /**
+     * Rebuild into a buffer.  An unchanged field is copied straight from its
+     * backing text rather than being made into a string first.
+     */
+    void rebuildTo(StringBuilder sb) {
+        if (isChanged()) {
+            sb.append(rebuild());
+        } else if (field != null) {
+            sb.append(field);
+        } else {
+            Hl7Text.append(sb, src, start, end);
+        }
+    }
+
+    /**
+     * Follow our segment to its place in a rebuilt record.  Only parts that
+     * are still views onto the old text need moving, and they are marked
+     * clean on the way.
+     */
+    void relocate(CharSequence oldSrc, CharSequence newSrc, int delta) {
+        changed = false;
+        if (src == oldSrc) {
+            src = newSrc;
+            start += delta;
+            end += delta;
+        }
+        if (comps != null) {
+            for (int i = 0; i < comps.size(); i++) {
+                ((Hl7Field) comps.get(i)).relocate(oldSrc, newSrc, delta);
+            }
+        }
     }
     
     /**
@@ -262,5 +380,12 @@ public class Hl7Field  implements Serializable {
         }
         return existing;
     }
-    
+
+    /**
+     * Serialize as the rebuilt field text and delimiters, see
+     * Hl7SerialForm.
+     */
+    private Object writeReplace() throws ObjectStreamException {
+        return new Hl7SerialForm(this);
+    }
 }
@@ -0,0 +1,204 @@
+/*
+ * Hl7Projection.java
+ *
+ * Copyright (C) 2004-2012 M Litherland
+ */
+
+package org.nule.lighthl7lib.hl7;
+
+import org.nule.lighthl7lib.util.*;
+
+/**
+ *
+ * @author mike
+ *
+ * The segments, and optionally the fields within them, that a piece of code
+ * is going to read from a record.  A record parsed with a projection only
+ * indexes the segment IDs in it and only splits the fields asked for, so a
+ * router that wants MSH, PID and PV1 doesn't pay for the other few hundred
+ * segments of a big result.
+ *
+ * A projection is only a hint.  The record keeps all of its text, so it
+ * still rebuilds and prints in full, and anything outside the projection
+ * can still be read; it just costs what it would have without one.
+ *
+ * Projections can't be changed once made, so one can be shared by any
+ * number of threads and records.
+ */
+public final class Hl7Projection {
+
+    private final String[] ids;
+    // The same IDs packed, -1 for any that can't be.
+    private final int[] codes;
+    // How many raw fields, counting the segment ID, to split for each ID;
+    // 0 means all of them.
+    private final int[] limits;
+
+    /**
+     * Create a projection of whole segments and of particular fields.
+     * Either array may be null.  Asking for a whole segment wins over
+     * asking for fields in it.
+     *
+     * @param segmentIds segments whose fields are all wanted
+     * @param paths fields that are wanted
+     * @throws IllegalArgumentException if a segment ID isn't three characters
+     */
+    public Hl7Projection(String[] segmentIds, FieldPath[] paths) {
+        int max = (segmentIds == null ? 0 : segmentIds.length)
+                + (paths == null ? 0 : paths.length);
+        String[] newIds = new String[max];
+        int[] newLimits = new int[max];
+        int count = 0;
+        if (segmentIds != null) {
+            for (int i = 0; i < segmentIds.length; i++) {
+                int at = indexOf(newIds, count, checkId(segmentIds[i]));
+                if (at < 0) {
+                    at = count++;
+                    newIds[at] = segmentIds[i];
+                }
+                newLimits[at] = 0;
+            }
+        }
+        if (paths != null) {
+            for (int i = 0; i < paths.length; i++) {
+                String id = checkId(paths[i].getSegment());
+                int limit = paths[i].getFieldNumber() < 1 ? 0 : paths[i].getFieldNumber() + 1;
+                int at = indexOf(newIds, count, id);
+                if (at < 0) {
+                    at = count++;
+                    newIds[at] = id;
+                    newLimits[at] = limit;
+                } else if (newLimits[at] != 0) {
+                    newLimits[at] = limit == 0 ? 0 : Math.max(newLimits[at], limit);
+                }
+            }
+        }
+        ids = new String[count];
+        codes = new int[count];
+        limits = new int[count];
+        System.arraycopy(newIds, 0, ids, 0, count);
+        System.arraycopy(newLimits, 0, limits, 0, count);
+        for (int i = 0; i < count; i++) {
+            codes[i] = SegmentId.pack(ids[i]);
+        }
+    }
+
+    /**
+     * Create a projection of whole segments.
+     *
+     * @param segmentIds the segment IDs
+     * @return Hl7Projection
+     */
+    public static Hl7Projection segments(String[] segmentIds) {
+        return new Hl7Projection(segmentIds, null);
+    }
+
+    /**
+     * Create a projection of the fields in a list of field definitions such
+     * as "PID:3-1-1", as FieldMatch.compile() reads them.
+     *
+     * @param fieldDefs the field definitions
+     * @return Hl7Projection
+     * @throws IllegalArgumentException if a definition isn't valid
+     */
+    public static Hl7Projection fields(String[] fieldDefs) {
+        FieldPath[] paths = new FieldPath[fieldDefs.length];
+        for (int i = 0; i < fieldDefs.length; i++) {
+            paths[i] = FieldMatch.compile(fieldDefs[i]);
+            if (paths[i] == null) {
+                throw new IllegalArgumentException("Invalid field definition: " + fieldDefs[i]);
+            }
+        }
+        return new Hl7Projection(null, paths);
+    }
+
+    private static String checkId(String id) {
+        if (id == null || id.length() != 3) {
+            throw new IllegalArgumentException("Segment ID must be three characters: " + id);
+        }
+        return id;
+    }
+
+    private static int indexOf(String[] list, int count, String id) {
+        for (int i = 0; i < count; i++) {
+            if (list[i].equals(id)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Return true if the segment ID is part of the projection.
+     *
+     * @param id the segment ID
+     * @return boolean
+     */
+    public boolean includes(String id) {
+        return indexOf(ids, ids.length, id) >= 0;
+    }
+
+    /**
+     * The same for an ID given packed, or as a string if it can't be.
+     */
+    boolean includes(int code, String id) {
+        if (code == -1) {
+            return includes(id);
+        }
+        for (int i = 0; i < codes.length; i++) {
+            if (codes[i] == code) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return the segment IDs in the projection.
+     *
+     * @return String[]
+     */
+    public String[] getSegmentIds() {
+        return (String[]) ids.clone();
+    }
+
+    /**
+     * Return which of our IDs the segment starting at start has, comparing
+     * packed IDs, or characters for those that can't be, so nothing is
+     * allocated.
+     *
+     * @return the index of the ID, or -1 if it isn't one of ours
+     */
+    int find(CharSequence text, int start, int end) {
+        if (end - start < 3) {
+            return -1;
+        }
+        int code = SegmentId.pack(text, start, end);
+        if (code != -1) {
+            for (int i = 0; i < codes.length; i++) {
+                if (codes[i] == code) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        char a = text.charAt(start);
+        char b = text.charAt(start + 1);
+        char c = text.charAt(start + 2);
+        for (int i = 0; i < ids.length; i++) {
+            String id = ids[i];
+            if (id.charAt(0) == a && id.charAt(1) == b && id.charAt(2) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * How many raw fields, counting the segment ID, to split out of
+     * segments with the indexed ID, or 0 for all of them.
+     */
+    int fieldLimit(int index) {
+        return limits[index];
+    }
+}
@@ -0,0 +1,395 @@
+/*
+ * Hl7PushParser.java
+ *
+ * Copyright (C) 2004-2012 M Litherland
+ */
+
+package org.nule.lighthl7lib.hl7;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.*;
+import java.util.*;
+
+/**
+ *
+ * @author mike
+ *
+ * Parse records out of data as it arrives, in whatever size pieces the
+ * network hands it over.  Each character is looked at once: segment and
+ * field boundaries and the segment ID index are worked out as the
+ * characters go by, so when a record is finished it is handed over with
+ * all of that already done and nothing is scanned a second time.
+ *
+ * A record is finished by an MLLP end block (0x1C), by the start of the
+ * next MSH segment, or by finish() at the end of the input.  MLLP start
+ * blocks are skipped, line feeds are taken as segment ends the same as
+ * carriage returns, blank lines are ignored, and anything before the first
+ * MSH, BHS or FHS segment of a record is thrown away.
+ *
+ * No attempt has been made to make this object thread safe.
+ */
+public class Hl7PushParser {
+
+    private static final char START_BLOCK = 0x0B;
+    private static final char END_BLOCK = 0x1C;
+    private static final char CR = '\r';
+
+    private final CharsetDecoder decoder;
+    private final boolean latin1;
+    private final ByteBuffer carry = ByteBuffer.allocate(16);
+    private final CharBuffer decoded = CharBuffer.allocate(8192);
+
+    // The record in progress, with the segments already ended in it.
+    private final StringBuilder sb = new StringBuilder(4096);
+    private int count;
+    private int[] starts = new int[16];
+    private int[] ends = new int[16];
+    private int[][] fields = new int[16][];
+    private SegmentIdIndex index = new SegmentIdIndex();
+    private boolean shortSegment;
+
+    // The segment in progress.
+    private int segStart;
+    private int[] fieldSeps = new int[32];
+    private int sepCount;
+    private boolean junk;
+
+    private char fieldSep;
+    private boolean lastCr;
+    private final Deque done = new ArrayDeque();
+    private int discarded;
+
+    /**
+     * Create a parser for ISO-8859-1 bytes, or characters.
+     */
+    public Hl7PushParser() {
+        this(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Create a parser for bytes in the given charset, or characters.
+     *
+     * @param cs the charset bytes are decoded with
+     */
+    public Hl7PushParser(Charset cs) {
+        latin1 = StandardCharsets.ISO_8859_1.equals(cs);
+        decoder = cs.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * Take the next piece of character data.
+     *
+     * @param chunk the characters
+     * @return how many records this finished
+     */
+    public int feed(CharSequence chunk) {
+        int before = done.size();
+        int len = chunk.length();
+        for (int i = 0; i < len; i++) {
+            accept(chunk.charAt(i));
+        }
+        return done.size() - before;
+    }
+
+    /**
+     * Take the next piece of character data.
+     *
+     * @param buf the characters
+     * @param off where they start
+     * @param len how many there are
+     * @return how many records this finished
+     */
+    public int feed(char[] buf, int off, int len) {
+        int before = done.size();
+        for (int i = off; i < off + len; i++) {
+            accept(buf[i]);
+        }
+        return done.size() - before;
+    }
+
+    /**
+     * Take the next piece of byte data.  A character split between pieces
+     * is put back together.
+     *
+     * @param buf the bytes
+     * @param off where they start
+     * @param len how many there are
+     * @return how many records this finished
+     */
+    public int feed(byte[] buf, int off, int len) {
+        if (latin1) {
+            int before = done.size();
+            for (int i = off; i < off + len; i++) {
+                accept((char) (buf[i] & 0xff));
+            }
+            return done.size() - before;
+        }
+        return feed(ByteBuffer.wrap(buf, off, len));
+    }
+
+    /**
+     * Take the bytes between the buffer's position and limit, which are all
+     * consumed.
+     *
+     * @param in the bytes
+     * @return how many records this finished
+     */
+    public int feed(ByteBuffer in) {
+        int before = done.size();
+        if (latin1) {
+            while (in.hasRemaining()) {
+                accept((char) (in.get() & 0xff));
+            }
+            return done.size() - before;
+        }
+        // Finish off a character left over from last time a byte at a time
+        while (carry.position() > 0 && in.hasRemaining()) {
+            carry.put(in.get());
+            carry.flip();
+            decode(carry);
+            carry.compact();
+        }
+        decode(in);
+        while (in.hasRemaining()) {
+            carry.put(in.get());
+        }
+        return done.size() - before;
+    }
+
+    private void decode(ByteBuffer in) {
+        while (true) {
+            CoderResult result = decoder.decode(in, decoded, false);
+            decoded.flip();
+            while (decoded.hasRemaining()) {
+                accept(decoded.get());
+            }
+            decoded.clear();
+            if (result.isUnderflow()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Signal the end of the input, finishing the record in progress.
+     *
+     * @return how many records this finished
+     */
+    public int finish() {
+        int before = done.size();
+        carry.clear();
+        decoder.reset();
+        endRecord();
+        lastCr = false;
+        return done.size() - before;
+    }
+
+    /**
+     * Return the next finished record, or null if there isn't one yet.
+     *
+     * @return Hl7Record
+     */
+    public Hl7Record next() {
+        return (Hl7Record) done.poll();
+    }
+
+    /**
+     * Return how many finished records are waiting to be collected.
+     *
+     * @return int
+     */
+    public int available() {
+        return done.size();
+    }
+
+    /**
+     * Return how many pieces of text have been thrown away because they
+     * weren't part of a record.
+     *
+     * @return int
+     */
+    public int getDiscarded() {
+        return discarded;
+    }
+
+    /**
+     * Forget everything, including finished records not yet collected.
+     */
+    public void reset() {
+        carry.clear();
+        decoder.reset();
+        clearRecord();
+        done.clear();
+        lastCr = false;
+        discarded = 0;
+    }
+
+    private void accept(char c) {
+        if (c == START_BLOCK || c == END_BLOCK) {
+            endRecord();
+            lastCr = false;
+            return;
+        }
+        if (c == '\n') {
+            if (lastCr) {
+                lastCr = false;
+                return;
+            }
+            c = CR;
+        }
+        lastCr = c == CR;
+        if (c == CR) {
+            endSegment();
+            return;
+        }
+        int pos = sb.length() - segStart;
+        sb.append(c);
+        if (pos == 2) {
+            if (count > 0 && isId(segStart, 'M', 'S', 'H')) {
+                // A new record begins with this segment
+                String text = sb.substring(0, segStart);
+                sb.delete(0, segStart);
+                segStart = 0;
+                sepCount = 0;
+                emit(text);
+            }
+            if (count == 0) {
+                junk = !isId(segStart, 'M', 'S', 'H') && !isId(segStart, 'B', 'H', 'S')
+                        && !isId(segStart, 'F', 'H', 'S');
+            }
+        } else if (pos == 3 && count == 0 && !junk) {
+            fieldSep = c;
+        }
+        if (c == fieldSep && fieldSep != 0 && !junk) {
+            if (sepCount == fieldSeps.length) {
+                fieldSeps = Arrays.copyOf(fieldSeps, sepCount * 2);
+            }
+            fieldSeps[sepCount++] = sb.length() - 1;
+        }
+    }
+
+    private boolean isId(int at, char a, char b, char c) {
+        return sb.charAt(at) == a && sb.charAt(at + 1) == b && sb.charAt(at + 2) == c;
+    }
+
+    private void endSegment() {
+        int end = sb.length();
+        if (end == segStart) {
+            // Blank line
+            return;
+        }
+        if (junk || (count == 0 && end - segStart < 3)) {
+            sb.setLength(segStart);
+            sepCount = 0;
+            junk = false;
+            discarded++;
+            return;
+        }
+        if (count == starts.length) {
+            starts = Arrays.copyOf(starts, count * 2);
+            ends = Arrays.copyOf(ends, count * 2);
+            fields = Arrays.copyOf(fields, count * 2);
+        }
+        starts[count] = segStart;
+        ends[count] = end;
+        fields[count] = fieldBounds(segStart, end);
+        if (end - segStart <= 2) {
+            shortSegment = true;
+        } else {
+            int code = SegmentId.pack(sb, segStart, end);
+            if (code != -1) {
+                index.add(code, count);
+            } else {
+                index.add(sb.substring(segStart, segStart + 3), count);
+            }
+        }
+        count++;
+        sb.append(CR);
+        segStart = sb.length();
+        sepCount = 0;
+    }
+
+    /*
+     * Turn the separator positions into bounds the way Hl7Tokenizer.split
+     * would, trailing empty fields and all.
+     */
+    private int[] fieldBounds(int start, int end) {
+        int n = sepCount + 1;
+        while (n > 0) {
+            int tokenEnd = n - 1 < sepCount ? fieldSeps[n - 1] : end;
+            int tokenStart = n - 1 == 0 ? start : fieldSeps[n - 2] + 1;
+            if (tokenEnd > tokenStart) {
+                break;
+            }
+            n--;
+        }
+        int[] bounds = new int[n * 2 + 1];
+        bounds[0] = n;
+        int from = start;
+        for (int i = 0; i < n; i++) {
+            int to = i < sepCount ? fieldSeps[i] : end;
+            bounds[i * 2 + 1] = from;
+            bounds[i * 2 + 2] = to;
+            from = to + 1;
+        }
+        return bounds;
+    }
+
+    private void endRecord() {
+        endSegment();
+        if (count == 0) {
+            clearRecord();
+            return;
+        }
+        emit(sb.toString());
+        sb.setLength(0);
+        segStart = 0;
+        sepCount = 0;
+        junk = false;
+    }
+
+    /*
+     * Hand over the record that has just been finished, made from text and
+     * the segment details collected for it.  Those are then reset for the
+     * next record, apart from the segment in progress if there is one.
+     */
+    private void emit(String text) {
+        int[] recStarts = starts;
+        int[] recEnds = ends;
+        int[][] recFields = fields;
+        SegmentIdIndex recIndex = index;
+        int recCount = count;
+        boolean tooShort = shortSegment;
+        starts = new int[16];
+        ends = new int[16];
+        fields = new int[16][];
+        index = new SegmentIdIndex();
+        count = 0;
+        shortSegment = false;
+        fieldSep = 0;
+        if (text.length() < 8) {
+            discarded++;
+            return;
+        }
+        if (tooShort) {
+            // Let the record complain about it the usual way when it's used
+            done.add(new Hl7Record(text));
+        } else {
+            done.add(new Hl7Record(text, recStarts, recEnds, recCount, recFields, recIndex));
+        }
+    }
+
+    private void clearRecord() {
+        sb.setLength(0);
+        segStart = 0;
+        sepCount = 0;
+        junk = false;
+        count = 0;
+        fieldSep = 0;
+        shortSegment = false;
+        index = new SegmentIdIndex();
+    }
+}
@@ -6,7 +6,10 @@
 
 package org.nule.lighthl7lib.hl7;
 
+import java.io.ObjectStreamException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.*;
 import java.util.regex.*;
 import org.nule.lighthl7lib.util.*;
@@ -20,12 +23,41 @@ import org.nule.lighthl7lib.util.*;
  * object thread safe.
  */
 public class Hl7Record implements Serializable {
-    private static final long serialVersionUID = -4985318546516958032L;
+    private static final long serialVersionUID = 3665129396869387592L;
 
     
+    // The text we parse from.  This is normally the record string, but a
+    // record made from bytes keeps them here and only decodes the record
+    // string if someone asks for all of it.
+    private CharSequence text;
     private String record;
     private String[] seps;
-    private List segs = null;
+    // Segment offsets into record, filled in by a single scan the first time
+    // the segments are needed.  A count of -1 means we haven't scanned yet.
+    private int segCount = -1;
+    private int[] segStart = null;
+    private int[] segEnd = null;
+    // Hl7Segment objects are only created for the offsets that are asked for.
+    private Hl7Segment[] segs = null;
+    // Where each segment ID occurs, built on the first lookup by ID.
+    private transient SegmentIdIndex idIndex = null;
+    // Field bounds worked out ahead of time by Hl7PushParser, in the form
+    // Hl7Tokenizer.split returns them.  Only good until the offsets move.
+    private transient int[][] segFields = null;
+    // What the caller said they'd read, if they said.  When partialIndex is
+    // set the ID index only covers the segments in the projection.
+    private transient Hl7Projection projection = null;
+    private transient boolean partialIndex = false;
+    // Set once the record has been reset to take another message.  Segments
+    // it is finished with wait in spareSegs for the next message, and
+    // offset arrays and the rebuild buffer are kept rather than thrown away.
+    private transient boolean reusing = false;
+    private transient Hl7Segment[] spareSegs = null;
+    private transient int spareCount = 0;
+    private transient SegmentIdIndex spareIndex = null;
+    private transient int[] spareStarts = null;
+    private transient int[] spareEnds = null;
+    private transient StringBuilder buffer = null;
     private List groups = new ArrayList();
     
     /**
@@ -35,7 +67,107 @@ public class Hl7Record implements Serializable {
      */
     public Hl7Record(String newRecord) {
         record = newRecord;
-        seps = Hl7RecordUtil.setSeparators(record);
+        text = record;
+        seps = Hl7Delimiters.fromHeader(record).array();
+    }
+    
+    /**
+     * Create a record that will only be read through the segments and fields
+     * in the projection.  Segments outside it are never indexed or split
+     * unless someone asks for them after all, and only the projected fields
+     * of the segments inside it are split out to begin with.  The record
+     * keeps all of its text, so it prints and rebuilds in full.
+     *
+     * @param newRecord the record text
+     * @param newProjection what will be read, null for everything
+     */
+    public Hl7Record(String newRecord, Hl7Projection newProjection) {
+        this(newRecord);
+        projection = newProjection;
+    }
+    
+    /**
+     * Create a new HL7 record straight from the raw bytes of the message.
+     * Delimiters are found in the bytes themselves, and only the segments and
+     * fields you read are decoded.  The array isn't copied, so don't change
+     * it while the record is in use.
+     *
+     * @param data the message bytes
+     * @param charset an ASCII compatible charset such as ISO-8859-1 or UTF-8
+     * @throws IllegalArgumentException if the charset isn't ASCII compatible
+     *         or the bytes don't look like HL7
+     */
+    public static Hl7Record fromBytes(byte[] data, Charset charset) {
+        return new Hl7Record(new Hl7Bytes(data, 0, data.length, charset));
+    }
+    
+    /**
+     * The same as fromBytes(byte[], Charset) for part of an array.
+     *
+     * @param data the message bytes
+     * @param offset offset of the start of the message
+     * @param length length of the message in bytes
+     * @param charset an ASCII compatible charset such as ISO-8859-1 or UTF-8
+     */
+    public static Hl7Record fromBytes(byte[] data, int offset, int length,
+            Charset charset) {
+        return new Hl7Record(new Hl7Bytes(data, offset, length, charset));
+    }
+    
+    /**
+     * Create a new HL7 record from the bytes between the buffer's position and
+     * limit.  This works the same for heap, direct and memory mapped buffers;
+     * nothing is copied and the buffer's position isn't moved.
+     *
+     * @param data the message bytes
+     * @param charset an ASCII compatible charset such as ISO-8859-1 or UTF-8
+     */
+    public static Hl7Record fromBytes(ByteBuffer data, Charset charset) {
+        return new Hl7Record(new Hl7Bytes(data, charset));
+    }
+    
+    /**
+     * The same as fromBytes(byte[], Charset), with a projection as for
+     * Hl7Record(String, Hl7Projection).
+     *
+     * @param data the message bytes
+     * @param charset an ASCII compatible charset such as ISO-8859-1 or UTF-8
+     * @param newProjection what will be read, null for everything
+     */
+    public static Hl7Record fromBytes(byte[] data, Charset charset,
+            Hl7Projection newProjection) {
+        Hl7Record rec = new Hl7Record(new Hl7Bytes(data, 0, data.length, charset));
+        rec.projection = newProjection;
+        return rec;
+    }
+    
+    /**
+     * Create a record on top of any character sequence, in practice either a
+     * String or Hl7Bytes.
+     */
+    Hl7Record(CharSequence newText) {
+        text = newText;
+        if (text instanceof String) {
+            record = (String) text;
+            seps = Hl7Delimiters.fromHeader(record).array();
+        } else {
+            seps = Hl7Delimiters.fromHeader(text).array();
+        }
+    }
+    
+    /**
+     * Create a record whose segment offsets, segment ID index and field bounds
+     * have already been worked out, so nothing needs to be scanned again.
+     */
+    Hl7Record(String newRecord, int[] starts, int[] ends, int count,
+            int[][] fields, SegmentIdIndex index) {
+        this(newRecord);
+        segStart = starts;
+        segEnd = ends;
+        segCount = count;
+        segs = new Hl7Segment[starts.length];
+        segFields = fields;
+        idIndex = index;
     }
     
     /**
@@ -56,7 +188,8 @@ public class Hl7Record implements Serializable {
             sb.append("\r");
         }
         record = sb.toString();
-        seps = Hl7RecordUtil.setSeparators(record);
+        text = record;
+        seps = Hl7Delimiters.fromHeader(record).array();
     }
     
     /**
@@ -77,7 +210,8 @@ public class Hl7Record implements Serializable {
             sb.append("\r");
         }
         record = sb.toString();
-        seps = Hl7RecordUtil.setSeparators(record);
+        text = record;
+        seps = Hl7Delimiters.fromHeader(record).array();
     }
     
     /**
@@ -87,7 +221,7 @@ public class Hl7Record implements Serializable {
      * @return String[]
      */
     public String[] getSeparators() {
-        return seps;
+        return seps.clone();
     }
     
     /**
@@ -98,29 +232,220 @@ public class Hl7Record implements Serializable {
     public List listSegments() {
         List l = new ArrayList();
         makeSegments();
-        for (int i = 0; i < segs.size(); i++) {
-            l.add(((Hl7Segment) segs.get(i)).getId());
+        for (int i = 0; i < segCount; i++) {
+            if (segs[i] != null) {
+                l.add(segs[i].getId());
+            } else {
+                l.add(Hl7Text.substring(text, segStart[i], segStart[i] + 3));
+            }
         }
         return l;
     }
     
     /**
-     * Parse the segments out of the record we were created with.
-     * Each segments becomes a new Hl7Segment object.
+     * Index the segments out of the record we were created with.  This is
+     * a single pass over the record that only records where each segment
+     * starts and ends; the Hl7Segment objects are created by segment(int)
+     * as they are asked for.
      */
     private void makeSegments() throws IllegalArgumentException {
-        if (segs != null) {
+        if (segCount >= 0) {
             return;
         }
-        segs = new ArrayList();
-        String[] segments = record.split(Hl7RecordUtil.sep0);
-        for (int i = 0; i < segments.length; i++) {
-            if (segments[i].length() > 2) {
-                segs.add(new Hl7Segment(segments[i], getSeparators()));
-            } else {
+        char sep = Hl7RecordUtil.sep0.charAt(0);
+        int len = text.length();
+        int[] starts = reusing && segStart != null ? segStart : new int[16];
+        int[] ends = reusing && segEnd != null ? segEnd : new int[16];
+        int count = 0;
+        int pos = 0;
+        while (pos < len) {
+            int end = Hl7Tokenizer.indexOf(text, sep, pos, len);
+            if (end == -1) {
+                end = len;
+            }
+            if (count == starts.length) {
+                starts = grow(starts);
+                ends = grow(ends);
+            }
+            starts[count] = pos;
+            ends[count] = end;
+            count++;
+            pos = end + 1;
+        }
+        // Like String.split we ignore trailing empty segments
+        while (count > 0 && starts[count - 1] == ends[count - 1]) {
+            count--;
+        }
+        for (int i = 0; i < count; i++) {
+            if (ends[i] - starts[i] <= 2) {
                 throw new IllegalArgumentException("Too short segment received.");
             }
         }
+        segStart = starts;
+        segEnd = ends;
+        if (!reusing || segs == null || segs.length != starts.length) {
+            segs = new Hl7Segment[starts.length];
+        }
+        segCount = count;
+    }
+    
+    private static int[] grow(int[] in) {
+        int[] out = new int[in.length * 2];
+        System.arraycopy(in, 0, out, 0, in.length);
+        return out;
+    }
+    
+    /**
+     * Return the zero indexed segment, creating the Hl7Segment object the
+     * first time it is asked for.
+     */
+    private Hl7Segment segment(int i) {
+        if (segs[i] == null) {
+            int[] bounds = segFields == null ? null : segFields[i];
+            if (spareCount > 0) {
+                Hl7Segment seg = spareSegs[--spareCount];
+                spareSegs[spareCount] = null;
+                seg.reset(text, segStart[i], segEnd[i], seps, bounds);
+                segs[i] = seg;
+            } else {
+                segs[i] = new Hl7Segment(text, segStart[i], segEnd[i], seps, bounds);
+            }
+            if (projection != null) {
+                int p = projection.find(text, segStart[i], segEnd[i]);
+                if (p >= 0 && projection.fieldLimit(p) > 0) {
+                    segs[i].limitFields(projection.fieldLimit(p));
+                }
+            }
+        }
+        return segs[i];
+    }
+    
+    /**
+     * Check the ID of the zero indexed segment without creating it.
+     */
+    private boolean idMatches(int i, String id) {
+        if (segs[i] != null) {
+            return segs[i].isId(id);
+        }
+        int code = SegmentId.pack(id);
+        if (code != -1) {
+            return idCode(i) == code;
+        }
+        return id != null && id.length() == 3 && text.charAt(segStart[i]) == id.charAt(0)
+                && text.charAt(segStart[i] + 1) == id.charAt(1)
+                && text.charAt(segStart[i] + 2) == id.charAt(2);
+    }
+
+    /**
+     * The packed ID of the zero indexed segment, or -1 if it can't be packed.
+     */
+    private int idCode(int i) {
+        if (segs[i] != null) {
+            return segs[i].idCode();
+        }
+        return SegmentId.pack(text, segStart[i], segEnd[i]);
+    }
+
+    /**
+     * The ID of the zero indexed segment as a string, only wanted for IDs
+     * that can't be packed.
+     */
+    private String idString(int i) {
+        if (segs[i] != null) {
+            return segs[i].getId();
+        }
+        return Hl7Text.substring(text, segStart[i], segStart[i] + 3);
+    }
+    
+    /**
+     * Insert a newly created segment at the zero indexed position, shifting
+     * the ones after it.
+     */
+    private void insertSegment(int position, Hl7Segment seg) {
+        if (position < 0 || position > segCount) {
+            throw new IndexOutOfBoundsException("Index: " + position + ", Size: " + segCount);
+        }
+        if (segCount == segs.length) {
+            segStart = grow(segStart);
+            segEnd = grow(segEnd);
+            Hl7Segment[] newSegs = new Hl7Segment[segs.length * 2];
+            System.arraycopy(segs, 0, newSegs, 0, segs.length);
+            segs = newSegs;
+        }
+        int move = segCount - position;
+        System.arraycopy(segStart, position, segStart, position + 1, move);
+        System.arraycopy(segEnd, position, segEnd, position + 1, move);
+        System.arraycopy(segs, position, segs, position + 1, move);
+        segStart[position] = -1;
+        segEnd[position] = -1;
+        segs[position] = seg;
+        segCount++;
+        idIndex = null;
+        segFields = null;
+    }
+    
+    /**
+     * Return an ID index that covers the given ID, building it if it is the
+     * first time we've been asked for a segment by ID since the segments
+     * last moved.  With a projection only the projected IDs are indexed, and
+     * the rest only if someone asks for one of them.
+     */
+    private SegmentIdIndex idIndex(String id) {
+        return idIndex(SegmentId.pack(id), id);
+    }
+
+    private SegmentIdIndex idIndex(SegmentId id) {
+        return idIndex(id.code(), id.getId());
+    }
+
+    /*
+     * The ID is given packed, and as a string for when it can't be.
+     */
+    private SegmentIdIndex idIndex(int code, String id) {
+        if (idIndex != null && partialIndex && !projection.includes(code, id)) {
+            idIndex = null;
+        }
+        if (idIndex == null && projection != null && projection.includes(code, id)) {
+            SegmentIdIndex index = newIndex();
+            for (int i = 0; i < segCount; i++) {
+                int segCode = idCode(i);
+                if (segCode != -1) {
+                    if (projection.includes(segCode, null)) {
+                        index.add(segCode, i);
+                    }
+                } else {
+                    String segId = idString(i);
+                    if (projection.includes(-1, segId)) {
+                        index.add(segId, i);
+                    }
+                }
+            }
+            idIndex = index;
+            partialIndex = true;
+        }
+        if (idIndex == null) {
+            SegmentIdIndex index = newIndex();
+            for (int i = 0; i < segCount; i++) {
+                int segCode = idCode(i);
+                if (segCode != -1) {
+                    index.add(segCode, i);
+                } else {
+                    index.add(idString(i), i);
+                }
+            }
+            idIndex = index;
+            partialIndex = false;
+        }
+        return idIndex;
+    }
+    
+    private SegmentIdIndex newIndex() {
+        SegmentIdIndex index = spareIndex;
+        if (index == null) {
+            return new SegmentIdIndex();
+        }
+        spareIndex = null;
+        return index;
     }
     
     /**
@@ -130,7 +455,29 @@ public class Hl7Record implements Serializable {
      */
     public int size() {
         makeSegments();
-        return segs.size();
+        return segCount;
+    }
+    
+    /**
+     * Returns the number of segments with the given ID.
+     *
+     * @param id the segment ID
+     * @return int
+     */
+    public int size(String id) {
+        makeSegments();
+        return idIndex(id).count(id);
+    }
+
+    /**
+     * Returns the number of segments with the given ID.
+     *
+     * @param id the segment ID
+     * @return int
+     */
+    public int size(SegmentId id) {
+        makeSegments();
+        return idIndex(id).count(id);
     }
     
     /**
@@ -144,7 +491,7 @@ public class Hl7Record implements Serializable {
         if (segHeader.length() != 3) {
             throw new IllegalArgumentException("Header must be three characters.");
         }
-        segs.add(new Hl7Segment(segHeader+"|", seps));
+        insertSegment(segCount, new Hl7Segment(segHeader+"|", seps));
         rebuild();
     }
     
@@ -161,7 +508,7 @@ public class Hl7Record implements Serializable {
         if (segHeader.length() != 3) {
             throw new IllegalArgumentException("Header must be three characters.");
         }
-        segs.add(position, new Hl7Segment(segHeader+"|", seps));
+        insertSegment(position, new Hl7Segment(segHeader+"|", seps));
         rebuild();
     }
     
@@ -191,16 +538,40 @@ public class Hl7Record implements Serializable {
      */
     public Hl7Segment get(String id, int count) {
         makeSegments();
-        int found = 0;
-        for (int i = 0; i < segs.size(); i++) {
-            if (id.equals(((Hl7Segment) segs.get(i)).getId())) {
-                found++;
-                if (found == count) {
-                    return (Hl7Segment) segs.get(i);
-                }
-            }
+        int i = idIndex(id).get(id, count);
+        if (i < 0) {
+            return null;
         }
-        return null;
+        return segment(i);
+    }
+
+    /**
+     * Returns the first segment with the given ID, or null if there isn't
+     * one.  The same as get(String) but nothing has to be done to the ID
+     * first; keep the SegmentId for IDs you look up often.
+     *
+     * @param id
+     * @return Hl7Segment
+     */
+    public Hl7Segment get(SegmentId id) {
+        return get(id, 1);
+    }
+
+    /**
+     * Returns a specified iteration of the requested segment, as
+     * get(String, int).
+     *
+     * @param id
+     * @param count
+     * @return Hl7Segment
+     */
+    public Hl7Segment get(SegmentId id, int count) {
+        makeSegments();
+        int i = idIndex(id).get(id, count);
+        if (i < 0) {
+            return null;
+        }
+        return segment(i);
     }
     
     /**
@@ -215,7 +586,46 @@ public class Hl7Record implements Serializable {
      */
     public Hl7Segment get(int id) {
         makeSegments();
-        return (Hl7Segment) segs.get(id - 1);
+        if (id < 1 || id > segCount) {
+            throw new IndexOutOfBoundsException("Index: " + (id - 1) + ", Size: " + segCount);
+        }
+        return segment(id - 1);
+    }
+    
+    /**
+     * Check whether the segment at a position (counted from 1, like
+     * get(int)) has the given ID, without creating the segment object.
+     *
+     * @param position the segment number, the first segment is 1
+     * @param segId the segment ID to compare with
+     * @return true if the IDs match
+     */
+    public boolean isSegment(int position, String segId) {
+        makeSegments();
+        if (position < 1 || position > segCount) {
+            throw new IndexOutOfBoundsException("Index: " + (position - 1) + ", Size: " + segCount);
+        }
+        return idMatches(position - 1, segId);
+    }
+
+    /**
+     * Check whether the segment at a position (counted from 1, like
+     * get(int)) has the given ID, without creating the segment object.
+     *
+     * @param position the segment number, the first segment is 1
+     * @param segId the segment ID to compare with
+     * @return true if the IDs match
+     */
+    public boolean isSegment(int position, SegmentId segId) {
+        makeSegments();
+        if (position < 1 || position > segCount) {
+            throw new IndexOutOfBoundsException("Index: " + (position - 1) + ", Size: " + segCount);
+        }
+        int code = idCode(position - 1);
+        if (code != -1 || segId.code() != -1) {
+            return code == segId.code();
+        }
+        return segId.getId().equals(idString(position - 1));
     }
     
     /**
@@ -225,9 +635,9 @@ public class Hl7Record implements Serializable {
      */
     public Hl7Segment[] getAll() {
         makeSegments();
-        Hl7Segment[] segments = new Hl7Segment[segs.size()];
-        for (int i = 0; i < segs.size(); i++) {
-            segments[i] = (Hl7Segment) segs.get(i);
+        Hl7Segment[] segments = new Hl7Segment[segCount];
+        for (int i = 0; i < segCount; i++) {
+            segments[i] = segment(i);
         }
         return segments;
     }
@@ -251,7 +661,7 @@ public class Hl7Record implements Serializable {
     public Hl7SegmentGroup getGroup(String segId, int count) {
         makeSegments();
         groups = new ArrayList();
-        Hl7SegmentGroup group = GroupBuilder.singleGroup(segs, segId, count, seps);
+        Hl7SegmentGroup group = GroupBuilder.singleGroup(Arrays.asList(getAll()), segId, count, seps);
         groups.add(group);
         return group;
     }
@@ -287,7 +697,7 @@ public class Hl7Record implements Serializable {
     public Hl7SegmentGroup[] getGroupAll(String segId) {
         makeSegments();
         groups = new ArrayList();
-        Hl7SegmentGroup[] groupArray = GroupBuilder.allGroups(segs, segId, seps);
+        Hl7SegmentGroup[] groupArray = GroupBuilder.allGroups(Arrays.asList(getAll()), segId, seps);
         groups.addAll(Arrays.asList(groupArray));
         return groupArray;
     }
@@ -319,8 +729,80 @@ public class Hl7Record implements Serializable {
      */
     public void changeRecord(String newRecord) {
         record = newRecord;
-        seps = Hl7RecordUtil.setSeparators(record);
+        text = record;
+        seps = Hl7Delimiters.fromHeader(record).array();
+        segCount = -1;
+        segStart = null;
+        segEnd = null;
         segs = null;
+        idIndex = null;
+        segFields = null;
+    }
+    
+    /**
+     * Point this record at the next message, reusing the segment and field
+     * objects, offset arrays and index it built for the last one.  A worker
+     * that keeps one record and resets it for each message it handles makes
+     * next to no garbage once it has seen a few messages.
+     *
+     * Anything handed out for the last message, segments and fields
+     * included, is either reused for this one or left pointing at the old
+     * text, so don't hold on to any of it across a reset.  Segment groups
+     * are dropped; a projection is kept.
+     *
+     * @param newRecord the next message
+     * @throws IllegalArgumentException if it doesn't look like HL7, in which
+     *         case the record is left as it was
+     */
+    public void reset(String newRecord) {
+        reuse(newRecord);
+        record = newRecord;
+    }
+    
+    /**
+     * The same as reset(String) for the raw bytes of a message, as for
+     * fromBytes(byte[], int, int, Charset).
+     *
+     * @param data the message bytes
+     * @param offset offset of the start of the message
+     * @param length length of the message in bytes
+     * @param charset an ASCII compatible charset such as ISO-8859-1 or UTF-8
+     */
+    public void reset(byte[] data, int offset, int length, Charset charset) {
+        reuse(new Hl7Bytes(data, offset, length, charset));
+    }
+    
+    private void reuse(CharSequence newText) {
+        String[] newSeps = Hl7Delimiters.fromHeader(newText).array();
+        if (!reusing) {
+            reusing = true;
+            spareSegs = new Hl7Segment[16];
+        }
+        if (segs != null) {
+            for (int i = 0; i < segs.length; i++) {
+                if (segs[i] != null) {
+                    if (spareCount == spareSegs.length) {
+                        Hl7Segment[] grown = new Hl7Segment[spareCount * 2];
+                        System.arraycopy(spareSegs, 0, grown, 0, spareCount);
+                        spareSegs = grown;
+                    }
+                    spareSegs[spareCount++] = segs[i];
+                    segs[i] = null;
+                }
+            }
+        }
+        if (idIndex != null) {
+            idIndex.clear();
+            spareIndex = idIndex;
+            idIndex = null;
+        }
+        text = newText;
+        record = null;
+        seps = newSeps;
+        segCount = -1;
+        segFields = null;
+        partialIndex = false;
+        groups.clear();
     }
     
     /**
@@ -330,25 +812,91 @@ public class Hl7Record implements Serializable {
      * @return Newly constructed string of record.
      */
     public String rebuild() {
-        // if segs is null, nothing to rebuild
-        if (segs == null) {
+        // if we never indexed the segments, nothing to rebuild
+        if (segCount < 0) {
             return toString();
         }
-        StringBuilder newRecord = new StringBuilder();
+        Hl7Segment[] list = segs;
+        int count = segCount;
         if (groups.size() > 0) {
-            Hl7Segment[] segArray = getAll();
-            segArray = GroupBuilder.rebuildSegmentsFromGroups(segArray, groups);
+            list = GroupBuilder.rebuildSegmentsFromGroups(getAll(), groups);
             groups = new ArrayList();
-            for (int i = 0; i < segArray.length; i++) {
-                newRecord.append(segArray[i].rebuild()).append(Hl7RecordUtil.sep0);
+            count = list.length;
+        }
+        // Only changed segments are serialized again, the rest are copied
+        // as they are, and everything we've already parsed is kept.
+        StringBuilder newRecord;
+        int size = Math.max(list.length, 16);
+        int[] starts;
+        int[] ends;
+        if (reusing) {
+            if (buffer == null) {
+                buffer = new StringBuilder(text.length() + 16);
             }
+            newRecord = buffer;
+            newRecord.setLength(0);
+            boolean fits = spareStarts != null && spareStarts.length >= size;
+            starts = fits ? spareStarts : new int[size];
+            ends = fits ? spareEnds : new int[size];
         } else {
-            for (int i = 0; i < segs.size(); i++) {
-                newRecord.append(((Hl7Segment) segs.get(i)).rebuild()).append(Hl7RecordUtil.sep0);
+            newRecord = new StringBuilder(text.length() + 16);
+            starts = new int[size];
+            ends = new int[size];
+        }
+        boolean anyChanged = false;
+        boolean split = false;
+        char segSep = Hl7RecordUtil.sep0.charAt(0);
+        for (int i = 0; i < count; i++) {
+            starts[i] = newRecord.length();
+            if (list[i] == null) {
+                // Never handed out, so it can't have changed
+                Hl7Text.append(newRecord, text, segStart[i], segEnd[i]);
+            } else if (list[i].isChanged()) {
+                anyChanged = true;
+                list[i].rebuildTo(newRecord);
+                split |= newRecord.length() - starts[i] <= 2
+                        || Hl7Tokenizer.indexOf(newRecord, segSep, starts[i],
+                        newRecord.length()) != -1;
+            } else {
+                list[i].rebuildTo(newRecord);
             }
+            ends[i] = newRecord.length();
+            newRecord.append(Hl7RecordUtil.sep0);
         }
-        changeRecord(newRecord.toString());
-        return newRecord.toString();
+        String newText = newRecord.toString();
+        String[] newSeps = Hl7Delimiters.fromHeader(newText).array();
+        if (split || !Arrays.equals(newSeps, seps)) {
+            // Someone changed MSH-1 or MSH-2, or gave a segment text that
+            // isn't one segment any more, so everything has to be parsed
+            // again.
+            changeRecord(newText);
+            return record;
+        }
+        if (anyChanged) {
+            // A changed segment may have a new ID
+            idIndex = null;
+        }
+        for (int i = 0; i < count; i++) {
+            if (list[i] != null) {
+                list[i].relocate(newText, starts[i]);
+            }
+        }
+        if (list != segs) {
+            segs = new Hl7Segment[starts.length];
+            System.arraycopy(list, 0, segs, 0, count);
+            idIndex = null;
+        }
+        if (reusing) {
+            spareStarts = segStart;
+            spareEnds = segEnd;
+        }
+        record = newText;
+        text = newText;
+        segStart = starts;
+        segEnd = ends;
+        segCount = count;
+        segFields = null;
+        return record;
     }
     
     /**
@@ -370,11 +918,11 @@ public class Hl7Record implements Serializable {
      * @param fieldDef a valid field definition.
      */
     public Hl7Field getFieldObj(String fieldDef) {
-        FieldMatch fm = FieldMatch.verifyFields(fieldDef);
-        if (fm == null) {
+        FieldPath fp = FieldMatch.compile(fieldDef);
+        if (fp == null) {
             return null;
         }
-        return fm.getFieldObj(this);
+        return fp.getFieldObj(this);
     }
     
     /**
@@ -395,6 +943,9 @@ public class Hl7Record implements Serializable {
      */
     @Override
     public String toString() {
+        if (record == null) {
+            record = text.toString();
+        }
         return record;
     }
     
@@ -407,9 +958,18 @@ public class Hl7Record implements Serializable {
      */
     public String getAllSegmentIds() {
         StringBuilder buffer = new StringBuilder();
-        String[] segments = record.split(Hl7RecordUtil.sep0);
-        for (int i = 0; i < segments.length; i++) {
-            buffer.append((segments[i].length()>=3) ?  segments[i].substring(0,3) : "");
+        char sep = Hl7RecordUtil.sep0.charAt(0);
+        int len = text.length();
+        int pos = 0;
+        while (pos < len) {
+            int end = Hl7Tokenizer.indexOf(text, sep, pos, len);
+            if (end == -1) {
+                end = len;
+            }
+            if (end - pos >= 3) {
+                Hl7Text.append(buffer, text, pos, pos + 3);
+            }
+            pos = end + 1;
         }
         return buffer.toString();
     }
@@ -573,4 +1133,11 @@ public class Hl7Record implements Serializable {
         return (hl7Field!=null ? hl7Field.toString() : "");
         
     }
+
+    /**
+     * Serialize as just the rebuilt record text, see Hl7SerialForm.
+     */
+    private Object writeReplace() throws ObjectStreamException {
+        return new Hl7SerialForm(this);
+    }
 }
@@ -7,6 +7,8 @@
  */
 package org.nule.lighthl7lib.hl7;
 
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.regex.*;
 
 /**
@@ -19,9 +21,6 @@ public class Hl7RecordUtil {
     public static final Pattern hl7match = Pattern.compile("(MSH[^\\r]+\\r(?:[A-Z0-9]{3}[^\\r]*\\r)+)");
     public static final String defaultDelims = "^~\\&|";
     
-    private static Pattern firstSeg = Pattern.compile(".*?(MSH\\W.*)");
-    private static Pattern nextSegs = Pattern.compile("[A-Z0-9]{3}.*");
-    
     /**
      * Accepts an HL7 record, sets the object separators based upon
      * those contained in the HL7 record.  If you data contains mixed
@@ -73,32 +72,232 @@ public class Hl7RecordUtil {
      * @return
      */
     public static String safeCleanString(String hl7) {
-        String[] all = hl7.split("\r");
-        StringBuilder sb = new StringBuilder();
-        int c;
-        for (c = 0; c < all.length; c++) {
-            Matcher m = firstSeg.matcher(all[c]);
-            if (m.matches()) {
-                sb.append(m.group(1)).append("\r");
+        int[] bounds = cleanBounds(hl7, 0, hl7.length());
+        if (bounds == null) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder(bounds[1] - bounds[0] + 1);
+        sb.append(hl7, bounds[0], bounds[1]).append('\r');
+        return sb.toString();
+    }
+
+    /**
+     * Find the HL7 in a noisy piece of text without copying it, in one pass
+     * and without regexes.  The rules are the ones safeCleanString has
+     * always used: the record starts at the first "MSH" followed by
+     * something other than a letter, digit or underscore, on a line with no
+     * line feed or other line terminator in it (except as that character
+     * straight after the "MSH"), and carries on through
+     * each following line that starts with three capital letters or digits
+     * and has no line terminator in it.  Lines are split on carriage
+     * returns only.
+     *
+     * safeCleanString returns text[start, end) with a carriage return on
+     * the end.
+     *
+     * @param text the text to search
+     * @param start offset to start searching at
+     * @param end offset to stop searching at
+     * @return the start offset of the record and the end offset of its
+     *         last segment, or null if there is no record
+     */
+    public static int[] cleanBounds(CharSequence text, int start, int end) {
+        int pos = start;
+        int first = -1;
+        while (pos < end) {
+            int lineEnd = lineEnd(text, pos, end);
+            first = headerIn(text, pos, lineEnd);
+            pos = lineEnd;
+            if (first >= 0) {
                 break;
             }
+            pos++;
+        }
+        if (first < 0) {
+            return null;
         }
-        if (sb.length() > 0) {
-            for (int i = c + 1; i < all.length; i++) {
-                try {
-                    if (nextSegs.matcher(all[i]).matches()) {
-                        sb.append(all[i]).append("\r");
-                    } else {
-                        // Don't keep capturing after a non-segment is found
-                        break;
-                    }
-                } catch (Exception e) {
-                    // that's OK too, except we're done with the message
-                    break;
-                }
+        int last = pos;
+        // pos is on the carriage return after the last line taken, if any
+        while (pos < end) {
+            int lineStart = pos + 1;
+            int lineEnd = lineEnd(text, lineStart, end);
+            if (lineEnd - lineStart < 3 || !isIdChar(text.charAt(lineStart))
+                    || !isIdChar(text.charAt(lineStart + 1))
+                    || !isIdChar(text.charAt(lineStart + 2))) {
+                break;
+            }
+            int i = lineStart + 3;
+            while (i < lineEnd && !isLineBreak(text.charAt(i))) {
+                i++;
             }
+            if (i < lineEnd) {
+                break;
+            }
+            last = lineEnd;
+            pos = lineEnd;
         }
-        return sb.toString();
+        return new int[] {first, last};
+    }
+
+    private static int lineEnd(CharSequence text, int from, int end) {
+        int e = Hl7Tokenizer.indexOf(text, '\r', from, end);
+        return e == -1 ? end : e;
+    }
+
+    /*
+     * The offset of the first header on the line, or -1 if there isn't one.
+     * A line terminator is only allowed straight after the header's "MSH",
+     * where the regex we replaced matched it as the non-word character.
+     */
+    private static int headerIn(CharSequence text, int start, int end) {
+        int found = -1;
+        int breaks = 0;
+        int lastBreak = -1;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (isLineBreak(c)) {
+                breaks++;
+                lastBreak = i;
+            } else if (found < 0 && c == 'M' && i + 3 < end && text.charAt(i + 1) == 'S'
+                    && text.charAt(i + 2) == 'H' && !isWordChar(text.charAt(i + 3))) {
+                found = i;
+            }
+        }
+        if (breaks == 0) {
+            return found;
+        }
+        if (breaks == 1 && lastBreak - 3 >= start && text.charAt(lastBreak - 3) == 'M'
+                && text.charAt(lastBreak - 2) == 'S' && text.charAt(lastBreak - 1) == 'H') {
+            return lastBreak - 3;
+        }
+        return -1;
+    }
+
+    /**
+     * The same as cleanBounds(CharSequence, int, int) for raw bytes, giving
+     * byte offsets.  Line terminators are looked for the way the charset
+     * encodes them.
+     *
+     * @param data the bytes to search
+     * @param off offset to start searching at
+     * @param len how many bytes to search
+     * @param cs an ASCII compatible charset such as ISO-8859-1 or UTF-8
+     * @return the start offset of the record and the end offset of its
+     *         last segment, or null if there is no record
+     */
+    public static int[] cleanBounds(byte[] data, int off, int len, Charset cs) {
+        Hl7Bytes.checkCharset(cs);
+        int utf = StandardCharsets.UTF_8.equals(cs) ? 1
+                : StandardCharsets.ISO_8859_1.equals(cs) ? 0 : -1;
+        int end = off + len;
+        int pos = off;
+        int first = -1;
+        while (pos < end) {
+            int lineEnd = lineEnd(data, pos, end);
+            first = headerIn(data, pos, lineEnd, utf);
+            pos = lineEnd;
+            if (first >= 0) {
+                break;
+            }
+            pos++;
+        }
+        if (first < 0) {
+            return null;
+        }
+        int last = pos;
+        while (pos < end) {
+            int lineStart = pos + 1;
+            int lineEnd = lineEnd(data, lineStart, end);
+            if (lineEnd - lineStart < 3 || !isIdChar((char) data[lineStart])
+                    || !isIdChar((char) data[lineStart + 1])
+                    || !isIdChar((char) data[lineStart + 2])) {
+                break;
+            }
+            int i = lineStart + 3;
+            while (i < lineEnd && !isLineBreak(data, i, lineEnd, utf)) {
+                i++;
+            }
+            if (i < lineEnd) {
+                break;
+            }
+            last = lineEnd;
+            pos = lineEnd;
+        }
+        return new int[] {first, last};
+    }
+
+    private static int lineEnd(byte[] data, int from, int end) {
+        for (int i = from; i < end; i++) {
+            if (data[i] == '\r') {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private static int headerIn(byte[] data, int start, int end, int utf) {
+        int found = -1;
+        int breaks = 0;
+        int lastBreak = -1;
+        for (int i = start; i < end; i++) {
+            if (isLineBreak(data, i, end, utf)) {
+                breaks++;
+                lastBreak = i;
+            } else if (found < 0 && data[i] == 'M' && i + 3 < end && data[i + 1] == 'S'
+                    && data[i + 2] == 'H' && !isWordChar((char) (data[i + 3] & 0xff))) {
+                found = i;
+            }
+        }
+        if (breaks == 0) {
+            return found;
+        }
+        if (breaks == 1 && lastBreak - 3 >= start && data[lastBreak - 3] == 'M'
+                && data[lastBreak - 2] == 'S' && data[lastBreak - 1] == 'H') {
+            return lastBreak - 3;
+        }
+        return -1;
+    }
+
+    /*
+     * utf is 1 for UTF-8, 0 for ISO-8859-1 and -1 for any other charset,
+     * none of which can encode anything but a line feed as a line
+     * terminator that we know of.
+     */
+    private static boolean isLineBreak(byte[] data, int i, int end, int utf) {
+        int b = data[i] & 0xff;
+        if (b == '\n') {
+            return true;
+        }
+        if (utf == 0) {
+            return b == 0x85;
+        }
+        if (utf == 1) {
+            if (b == 0xc2) {
+                return i + 1 < end && (data[i + 1] & 0xff) == 0x85;
+            }
+            if (b == 0xe2) {
+                return i + 2 < end && (data[i + 1] & 0xff) == 0x80
+                        && ((data[i + 2] & 0xff) == 0xa8 || (data[i + 2] & 0xff) == 0xa9);
+            }
+        }
+        return false;
+    }
+
+    /*
+     * The line terminators other than carriage return, which a regex dot
+     * won't match.
+     */
+    private static boolean isLineBreak(char c) {
+        return c == '\n' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    private static boolean isWordChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    private static boolean isIdChar(char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
     }
 
     public static String[] setDefaultSeparators() {
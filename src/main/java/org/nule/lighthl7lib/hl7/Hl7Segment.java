@@ -8,6 +8,7 @@
 
 package org.nule.lighthl7lib.hl7;
 
+import java.io.ObjectStreamException;
 import java.io.Serializable;
 import java.util.*;
 
@@ -18,13 +19,39 @@ import java.util.*;
  * This class abstracts an HL7 segment.
  */
 public class Hl7Segment implements Serializable {
-    private static final long serialVersionUID = 6354801000294086100L;
+    private static final long serialVersionUID = 1639931913985360608L;
 
-    private static final String MSH = "MSH";
+    private static final int MSH = SegmentId.MSH.code();
+    // The segment is a window onto src, usually the text of the record it
+    // came from.  The segment string is only made when someone asks for it.
+    private CharSequence src;
+    private int start;
+    private int end;
     private String segment;
+    // The ID packed as SegmentId does it, or -1 if it can't be.  The ID
+    // string is only made when someone asks for it, unless it can't be
+    // packed.  0 means we came from a stream that only had the string.
+    private int idCode;
     private String id;
     private String[] seps;
     private List fields;
+    // Field bounds handed to us by whoever parsed the record, used instead
+    // of splitting the segment the first time the fields are needed.
+    private transient int[] fieldBounds;
+    // Set by a record parsed with a projection: only this many fields are
+    // split out at first.  While partial is set, splitFrom is where the
+    // rest start.
+    private int fieldLimit;
+    private boolean partial;
+    private int splitFrom;
+    // Field objects, the list that held them and a bounds array left over
+    // from before the record reused this segment, to be used again.
+    private transient ArrayList spareFields;
+    private transient List spareList;
+    private transient int[] splitBuf;
+    // Set when the segment text itself is replaced, changes to fields are
+    // found by asking them.
+    private boolean changed = false;
     
     /**
      * Create a new segment object out of our string and separators. Figure
@@ -34,9 +61,37 @@ public class Hl7Segment implements Serializable {
      * @param separators
      */
     public Hl7Segment(String mySegment, String[] separators) {
+        this(mySegment, 0, mySegment.length(), separators);
         segment = mySegment;
-        id = segment.substring(0,3);
-        seps = separators.clone();
+    }
+    
+    /**
+     * Create a segment that is a view onto part of a larger piece of text,
+     * normally the record that holds it.  Nothing is copied until the
+     * segment or one of its fields is turned into a string.
+     *
+     * @param text the backing text
+     * @param start offset of the segment in the text
+     * @param end offset after the end of the segment
+     * @param separators
+     */
+    Hl7Segment(CharSequence text, int start, int end, String[] separators) {
+        this(text, start, end, separators, null);
+    }
+    
+    /**
+     * The same, but with the field bounds already known, in the form
+     * Hl7Tokenizer.split returns them.  Null means work them out when needed.
+     */
+    Hl7Segment(CharSequence text, int start, int end, String[] separators,
+            int[] fieldBounds) {
+        src = text;
+        this.fieldBounds = fieldBounds;
+        this.start = start;
+        this.end = end;
+        idCode = SegmentId.pack(src, start, end);
+        id = idCode == -1 ? Hl7Text.substring(src, start, start + 3) : null;
+        seps = Hl7Delimiters.intern(separators);
         fields = null;
     }
     
@@ -47,6 +102,13 @@ public class Hl7Segment implements Serializable {
      * @return String[]
      */
     public String[] getSeparators() {
+        return seps.clone();
+    }
+
+    /**
+     * The shared separator array, which must not be changed.
+     */
+    String[] separators() {
         return seps;
     }
     
@@ -56,8 +118,52 @@ public class Hl7Segment implements Serializable {
      * @return char[]
      */
     public String getId() {
+        if (id == null) {
+            id = new String(new char[] {(char) (idCode >>> 20),
+                    (char) (idCode >>> 10 & 0x3ff), (char) (idCode & 0x3ff)});
+        }
         return id;
     }
+
+    /**
+     * Return true if this segment has the given ID.  This compares the
+     * packed IDs, so no strings are made or compared.
+     *
+     * @param segId the segment ID
+     * @return boolean
+     */
+    public boolean isId(SegmentId segId) {
+        int code = idCode();
+        if (code != -1 || segId.code() != -1) {
+            return code == segId.code();
+        }
+        return segId.getId().equals(getId());
+    }
+
+    /**
+     * Return true if this segment has the given ID, without making a string
+     * of our own ID.
+     *
+     * @param segId the segment ID
+     * @return boolean
+     */
+    public boolean isId(String segId) {
+        int code = idCode();
+        if (code != -1) {
+            return code == SegmentId.pack(segId);
+        }
+        return getId().equals(segId);
+    }
+
+    /**
+     * The packed ID, or -1 if it couldn't be packed.
+     */
+    int idCode() {
+        if (idCode == 0) {
+            idCode = SegmentId.pack(id);
+        }
+        return idCode;
+    }
     
     /**
      * Return the segment itself as a string.
@@ -66,20 +172,171 @@ public class Hl7Segment implements Serializable {
      */
     @Override
     public String toString() {
+        if (segment == null) {
+            segment = Hl7Text.substring(src, start, end);
+        }
         return segment;
     }
     
+    /**
+     * Return the segment as a read only character sequence without copying
+     * it out of the record.  It always reads the same as toString(), so in a
+     * record made from bytes in a charset like UTF-8 a segment that isn't
+     * all ASCII is decoded instead.
+     *
+     * @return the segment text.
+     */
+    public CharSequence getText() {
+        if (segment != null) {
+            return segment;
+        }
+        return Hl7Text.view(src, start, end);
+    }
+    
     /**
      * Private method to generate all the fields from within the segment
      * upon access.
      */
     private void makeFields() {
-        fields = new ArrayList();
-        String[] fieldList = segment.split(seps[0]);
-        int i = 0;
-        while (i < fieldList.length) {
-            fields.add(new Hl7Field(fieldList[i], getSeparators()));
-            i++;
+        int[] bounds = fieldBounds;
+        fieldBounds = null;
+        if (bounds == null && fieldLimit > 0) {
+            makeSomeFields();
+            return;
+        }
+        if (bounds == null) {
+            bounds = Hl7Tokenizer.split(src, start, end,
+                    Hl7Tokenizer.separator(seps, 0), splitBuf);
+            if (spareFields != null) {
+                splitBuf = bounds;
+            }
+        }
+        fields = newFieldList(bounds[0]);
+        for (int i = 0; i < bounds[0]; i++) {
+            fields.add(newField(src, bounds[i * 2 + 1], bounds[i * 2 + 2], true));
+        }
+    }
+
+    /**
+     * Point a segment the record is finished with at part of the next
+     * record, keeping its field objects to use again.
+     */
+    void reset(CharSequence text, int newStart, int newEnd, String[] separators,
+            int[] bounds) {
+        recycleFields();
+        src = text;
+        start = newStart;
+        end = newEnd;
+        segment = null;
+        idCode = SegmentId.pack(src, start, end);
+        id = idCode == -1 ? Hl7Text.substring(src, start, start + 3) : null;
+        seps = Hl7Delimiters.intern(separators);
+        fieldBounds = bounds;
+        fieldLimit = 0;
+        partial = false;
+        changed = false;
+    }
+
+    private void recycleFields() {
+        if (spareFields == null) {
+            spareFields = new ArrayList();
+        }
+        if (fields == null) {
+            return;
+        }
+        // Backwards, so they come off the end again in the same order
+        for (int i = fields.size() - 1; i >= 0; i--) {
+            Object f = fields.get(i);
+            if (f.getClass() == Hl7Field.class) {
+                spareFields.add(f);
+            }
+        }
+        fields.clear();
+        spareList = fields;
+        fields = null;
+    }
+
+    private List newFieldList(int size) {
+        if (spareList != null) {
+            List list = spareList;
+            spareList = null;
+            return list;
+        }
+        return new ArrayList(size);
+    }
+
+    private Hl7Field newField(CharSequence text, int s, int e, boolean existing) {
+        if (spareFields != null && !spareFields.isEmpty()) {
+            Hl7Field f = (Hl7Field) spareFields.remove(spareFields.size() - 1);
+            f.reset(text, s, e, seps, existing);
+            return f;
+        }
+        return new Hl7Field(text, s, e, seps, existing);
+    }
+    
+    /**
+     * Only ask for as many fields as the projection needs, which is all
+     * of them for anything other than a fresh segment out of a record.
+     */
+    void limitFields(int count) {
+        if (fields == null && fieldBounds == null) {
+            fieldLimit = count;
+        }
+    }
+
+    /**
+     * Split out just the first fieldLimit fields, counting the segment ID,
+     * and remember where we stopped.
+     */
+    private void makeSomeFields() {
+        char sep = Hl7Tokenizer.separator(seps, 0);
+        fields = newFieldList(fieldLimit + 1);
+        int pos = start;
+        while (fields.size() < fieldLimit) {
+            int next = Hl7Tokenizer.indexOf(src, sep, pos, end);
+            if (next == -1) {
+                // That was all of them, so the usual rules apply
+                fieldLimit = 0;
+                if (spareFields != null) {
+                    recycleFields();
+                } else {
+                    fields = null;
+                }
+                makeFields();
+                return;
+            }
+            fields.add(newField(src, pos, next, true));
+            pos = next + 1;
+        }
+        splitFrom = pos;
+        partial = true;
+    }
+
+    /**
+     * Split out any fields makeSomeFields() left, so the list ends up just
+     * as makeFields() would have made it.
+     */
+    private void finishFields() {
+        if (fields == null) {
+            makeFields();
+        }
+        if (!partial) {
+            return;
+        }
+        int[] bounds = Hl7Tokenizer.split(src, splitFrom, end,
+                Hl7Tokenizer.separator(seps, 0), splitBuf);
+        partial = false;
+        fieldLimit = 0;
+        for (int i = 0; i < bounds[0]; i++) {
+            fields.add(newField(src, bounds[i * 2 + 1], bounds[i * 2 + 2], true));
+        }
+        // Empty fields at the end are dropped, even the ones split earlier
+        while (fields.size() > 1) {
+            Hl7Field last = (Hl7Field) fields.get(fields.size() - 1);
+            if (!last.isExisting() || last.isChanged() || last.getText().length() > 0) {
+                break;
+            }
+            fields.remove(fields.size() - 1);
         }
     }
     
@@ -90,13 +347,11 @@ public class Hl7Segment implements Serializable {
      * @return Hl7Field objects as an array
      */
     public Hl7Field[] fieldAll() {
-        if (fields == null) {
-            makeFields();
-        }
+        finishFields();
         int i = 0;
         int d = 1;
         Hl7Field[] retFields;
-        if (MSH.equals(id)) {
+        if (idCode() == MSH) {
             retFields = new Hl7Field[fields.size()];
             d = 0;
             retFields[i++] = new MshFieldOne(seps);
@@ -122,15 +377,18 @@ public class Hl7Segment implements Serializable {
         if (fields == null) {
             makeFields();
         }
-        if (MSH.equals(id)) {
+        if (idCode() == MSH) {
             if (selectedField == 1) {
                 return new MshFieldOne(seps);
             }
             selectedField--;
         }
+        if (selectedField >= fields.size() && partial) {
+            finishFields();
+        }
         if (selectedField >= fields.size()) {
             for (int i = fields.size(); i <= selectedField; i++) {
-                fields.add(new Hl7Field("", seps, false));
+                fields.add(newField("", 0, 0, false));
             }
         }
         try {
@@ -147,7 +405,34 @@ public class Hl7Segment implements Serializable {
      */
     public void changeSegment(String newSegment) {
         segment = newSegment;
+        src = newSegment;
+        start = 0;
+        end = newSegment.length();
         fields = null;
+        fieldBounds = null;
+        fieldLimit = 0;
+        partial = false;
+        changed = true;
+    }
+    
+    /**
+     * Returns true if the segment, or any field within it, has been changed
+     * since the record was last rebuilt.
+     *
+     * @return boolean
+     */
+    public boolean isChanged() {
+        if (changed) {
+            return true;
+        }
+        if (fields != null) {
+            for (int i = 0; i < fields.size(); i++) {
+                if (((Hl7Field) fields.get(i)).isChanged()) {
+                    return true;
+                }
+            }
+        }
+        return false;
     }
     
     /**
@@ -157,10 +442,12 @@ public class Hl7Segment implements Serializable {
      * @return Newly constructed string of record.
      */
     public String rebuild() {
-        if (fields == null) {
-            return segment;
+        if (fields == null || !isChanged()) {
+            return toString();
         }
-        StringBuilder newSegment = new StringBuilder();
+        finishFields();
+        StringBuilder newSegment = new StringBuilder(end - start + 16);
+        char fieldSep = Hl7Tokenizer.separator(seps, 0);
         int lastExistingField = 0;
         for (int i = 0; i < fields.size(); i++) {
             if (((Hl7Field) fields.get(i)).isExisting()) {
@@ -169,11 +456,71 @@ public class Hl7Segment implements Serializable {
         }
     	for (int i = 0; i <= lastExistingField; i++) {
             if (i > 0) {
-                newSegment.append(seps[4]);
+                newSegment.append(fieldSep);
             }
-            newSegment.append(((Hl7Field) fields.get(i)).rebuild());
+            ((Hl7Field) fields.get(i)).rebuildTo(newSegment);
     	}
         changeSegment(newSegment.toString());
-        return newSegment.toString();
+        return segment;
+    }
+
+    /**
+     * Rebuild into a buffer.  An unchanged segment is copied straight from
+     * its backing text rather than being made into a string first.
+     */
+    void rebuildTo(StringBuilder sb) {
+        if (isChanged()) {
+            sb.append(rebuild());
+        } else if (segment != null) {
+            sb.append(segment);
+        } else {
+            Hl7Text.append(sb, src, start, end);
+        }
+    }
+
+    /**
+     * Called by the record after a rebuild to point us, and any fields we've
+     * already parsed, at our place in the new record text instead of the
+     * old one.  The segment is also marked clean, and if its text was
+     * changed it takes whatever ID the new text starts with, as it would
+     * if the record had been parsed again.
+     *
+     * @param newSrc the rebuilt record text
+     * @param newStart where this segment starts in it
+     */
+    void relocate(CharSequence newSrc, int newStart) {
+        if (changed) {
+            idCode = SegmentId.pack(src, start, end);
+            id = idCode == -1 ? Hl7Text.substring(src, start, Math.min(start + 3, end)) : null;
+        }
+        changed = false;
+        if (src instanceof Hl7Bytes) {
+            // Byte offsets don't line up with the rebuilt string, but the
+            // bytes are still there and still say the same thing.
+            return;
+        }
+        CharSequence oldSrc = src;
+        int delta = newStart - start;
+        src = newSrc;
+        start = newStart;
+        end += delta;
+        segment = null;
+        fieldBounds = null;
+        if (partial) {
+            splitFrom += delta;
+        }
+        if (fields != null) {
+            for (int i = 0; i < fields.size(); i++) {
+                ((Hl7Field) fields.get(i)).relocate(oldSrc, newSrc, delta);
+            }
+        }
+    }
+
+    /**
+     * Serialize as the rebuilt segment text and delimiters, see
+     * Hl7SerialForm.
+     */
+    private Object writeReplace() throws ObjectStreamException {
+        return new Hl7SerialForm(this);
     }
 }
@@ -6,6 +6,7 @@
 
 package org.nule.lighthl7lib.hl7;
 
+import java.io.ObjectStreamException;
 import java.io.Serializable;
 import java.util.*;
 import org.nule.lighthl7lib.util.GroupBuilder;
@@ -15,13 +16,14 @@ import org.nule.lighthl7lib.util.GroupBuilder;
  * @author mike
  */
 public class Hl7SegmentGroup  implements Serializable {
-    private static final long serialVersionUID = 3921753612704219884L;
+    private static final long serialVersionUID = 6812706894646447762L;
 
     private Hl7Segment[] segs = null;
     private String[] seps = null;
     private Integer beginningIndex = null;
     private Integer endingIndex = null;
     private List groups = new ArrayList();
+    private transient SegmentIdIndex idIndex = null;
 
     /**
      * @deprecated
@@ -31,7 +33,7 @@ public class Hl7SegmentGroup  implements Serializable {
      */
     public Hl7SegmentGroup(Hl7Segment[] segs, String[] seps) {
         this.segs = segs.clone();
-        this.seps = seps.clone();
+        this.seps = Hl7Delimiters.intern(seps);
     }
 
     /**
@@ -45,7 +47,7 @@ public class Hl7SegmentGroup  implements Serializable {
         for (int i = 0; i < segs.size(); i++) {
             this.segs[i] = (Hl7Segment) segs.get(i);
         }
-        this.seps = seps.clone();
+        this.seps = Hl7Delimiters.intern(seps);
     }
 
     public Hl7SegmentGroup(List segs, String[] seps, Integer beginningIndex,
@@ -54,7 +56,7 @@ public class Hl7SegmentGroup  implements Serializable {
         for (int i = 0; i < segs.size(); i++) {
             this.segs[i] = (Hl7Segment) segs.get(i);
         }
-        this.seps = seps.clone();
+        this.seps = Hl7Delimiters.intern(seps);
         this.beginningIndex = beginningIndex;
         this.endingIndex = endingIndex;
     }
@@ -86,6 +88,7 @@ public class Hl7SegmentGroup  implements Serializable {
         }
         newSegs[i] = new Hl7Segment(segHeader+"|", seps);
         segs = newSegs;
+        idIndex = null;
     }
     
     /**
@@ -119,6 +122,7 @@ public class Hl7SegmentGroup  implements Serializable {
             i++;
         }
         segs = newSegs;
+        idIndex = null;
     }
     
     /**
@@ -146,16 +150,54 @@ public class Hl7SegmentGroup  implements Serializable {
      * @return
      */
     public Hl7Segment get(String id, int count) {
-        int found = 0;
-        for (int i = 0; i < segs.length; i++) {
-            if (id.equals(((Hl7Segment) segs[i]).getId())) {
-                found++;
-                if (found == count) {
-                    return (Hl7Segment) segs[i];
+        int i = idIndex().get(id, count);
+        if (i < 0) {
+            return null;
+        }
+        return segs[i];
+    }
+
+    /**
+     * Returns the first segment with the given ID, or null if there isn't
+     * one.
+     *
+     * @param id
+     * @return Hl7Segment
+     */
+    public Hl7Segment get(SegmentId id) {
+        return get(id, 1);
+    }
+
+    /**
+     * Returns a specified iteration of the requested segment, as
+     * get(String, int).
+     *
+     * @param id
+     * @param count
+     * @return Hl7Segment
+     */
+    public Hl7Segment get(SegmentId id, int count) {
+        int i = idIndex().get(id, count);
+        if (i < 0) {
+            return null;
+        }
+        return segs[i];
+    }
+
+    private SegmentIdIndex idIndex() {
+        if (idIndex == null) {
+            SegmentIdIndex index = new SegmentIdIndex();
+            for (int i = 0; i < segs.length; i++) {
+                int code = segs[i].idCode();
+                if (code != -1) {
+                    index.add(code, i);
+                } else {
+                    index.add(segs[i].getId(), i);
                 }
             }
+            idIndex = index;
         }
-        return null;
+        return idIndex;
     }
     
     /**
@@ -235,6 +277,7 @@ public class Hl7SegmentGroup  implements Serializable {
         if (groups.size() > 0) {
             segs = GroupBuilder.rebuildSegmentsFromGroups(segs, groups);
             groups = new ArrayList();
+            idIndex = null;
         }
     }
 
@@ -255,5 +298,19 @@ public class Hl7SegmentGroup  implements Serializable {
     public Integer getEndingIndex() {
         return endingIndex;
     }
-    
+
+    /**
+     * The shared separator array, which must not be changed.
+     */
+    String[] separators() {
+        return seps;
+    }
+
+    /**
+     * Serialize as the rebuilt segments and delimiters, see
+     * Hl7SerialForm.
+     */
+    private Object writeReplace() throws ObjectStreamException {
+        return new Hl7SerialForm(this);
+    }
 }
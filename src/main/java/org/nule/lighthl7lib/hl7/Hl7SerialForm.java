@@ -0,0 +1,207 @@
+/*
+ * Hl7SerialForm.java
+ *
+ * Copyright (C) 2004-2012 M Litherland
+ */
+
+package org.nule.lighthl7lib.hl7;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.ObjectStreamException;
+import java.util.Arrays;
+
+/**
+ *
+ * @author mike
+ *
+ * What records, segments, fields and segment groups are written as when
+ * they are serialized.  Instead of the backing text, offsets, parsed
+ * children and a separator array at every level, only the current text is
+ * written, rebuilt first if anything has changed, along with the
+ * delimiters; five characters when they are an ordinary set.  Reading one
+ * back just makes a new object on the text, so nothing is split until it
+ * is asked for, the same as a freshly parsed record.
+ *
+ * A group writes its segments as objects rather than as one piece of text,
+ * so segments it shares with nested groups in the same stream are still
+ * shared when read back.
+ *
+ * This is a different stream format from the default serialization the
+ * classes used before, so their serialVersionUIDs were changed along with
+ * it.  Streams written by earlier versions of the library can't be read;
+ * they fail with an InvalidClassException and have to be written again
+ * from the text of the records.
+ */
+final class Hl7SerialForm implements Externalizable {
+    private static final long serialVersionUID = -2364190547236907254L;
+
+    private static final byte RECORD = 1;
+    private static final byte SEGMENT = 2;
+    private static final byte FIELD = 3;
+    private static final byte GROUP = 4;
+
+    // writeUTF takes at most 65535 bytes, and a char takes at most three
+    private static final int CHUNK = 65535 / 3;
+
+    private Object node;
+
+    /**
+     * For serialization only.
+     */
+    public Hl7SerialForm() {
+    }
+
+    Hl7SerialForm(Object newNode) {
+        node = newNode;
+    }
+
+    public void writeExternal(ObjectOutput out) throws IOException {
+        if (node instanceof Hl7Record) {
+            Hl7Record rec = (Hl7Record) node;
+            out.writeByte(RECORD);
+            writeText(out, rec.rebuild());
+        } else if (node instanceof Hl7Segment) {
+            Hl7Segment seg = (Hl7Segment) node;
+            String text = seg.rebuild();
+            out.writeByte(SEGMENT);
+            writeSeparators(out, seg.separators());
+            out.writeBoolean(seg.isChanged());
+            writeText(out, text);
+        } else if (node instanceof Hl7Field) {
+            Hl7Field field = (Hl7Field) node;
+            String text = field.rebuild();
+            out.writeByte(FIELD);
+            writeSeparators(out, field.separators());
+            out.writeBoolean(field.isChanged());
+            out.writeBoolean(field.isExisting());
+            writeText(out, text);
+        } else {
+            Hl7SegmentGroup group = (Hl7SegmentGroup) node;
+            group.rebuild();
+            Hl7Segment[] segs = group.getAll();
+            out.writeByte(GROUP);
+            writeSeparators(out, group.separators());
+            writeIndex(out, group.getBeginningIndex());
+            writeIndex(out, group.getEndingIndex());
+            out.writeInt(segs.length);
+            for (int i = 0; i < segs.length; i++) {
+                out.writeObject(segs[i]);
+            }
+        }
+    }
+
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        byte kind = in.readByte();
+        if (kind == RECORD) {
+            node = new Hl7Record(readText(in));
+        } else if (kind == SEGMENT) {
+            String[] seps = readSeparators(in);
+            boolean changed = in.readBoolean();
+            Hl7Segment seg = new Hl7Segment(readText(in), seps);
+            if (changed) {
+                seg.changeSegment(seg.toString());
+            }
+            node = seg;
+        } else if (kind == FIELD) {
+            String[] seps = readSeparators(in);
+            boolean changed = in.readBoolean();
+            boolean existing = in.readBoolean();
+            Hl7Field field = new Hl7Field(readText(in), seps, existing);
+            if (changed) {
+                field.changeField(field.toString());
+            }
+            node = field;
+        } else if (kind == GROUP) {
+            String[] seps = readSeparators(in);
+            Integer beginning = readIndex(in);
+            Integer ending = readIndex(in);
+            Hl7Segment[] segs = new Hl7Segment[in.readInt()];
+            for (int i = 0; i < segs.length; i++) {
+                segs[i] = (Hl7Segment) in.readObject();
+            }
+            node = new Hl7SegmentGroup(Arrays.asList(segs), seps,
+                    beginning, ending);
+        } else {
+            throw new IOException("Unknown HL7 object in stream: " + kind);
+        }
+    }
+
+    private Object readResolve() throws ObjectStreamException {
+        return node;
+    }
+
+    /*
+     * An ordinary separator array is written as the five delimiters it was
+     * made from, anything else in full.
+     */
+    private static void writeSeparators(ObjectOutput out, String[] seps) throws IOException {
+        Hl7Delimiters d = Hl7Delimiters.forArray(seps);
+        if (d != null) {
+            out.writeBoolean(true);
+            out.writeUTF(d.toString());
+            return;
+        }
+        out.writeBoolean(false);
+        out.writeInt(seps.length);
+        for (int i = 0; i < seps.length; i++) {
+            out.writeUTF(seps[i]);
+        }
+    }
+
+    private static String[] readSeparators(ObjectInput in) throws IOException {
+        if (in.readBoolean()) {
+            String delims = in.readUTF();
+            if (delims.length() != 5) {
+                throw new IOException("Bad delimiters in stream: " + delims);
+            }
+            return Hl7Delimiters.of(delims.charAt(0), delims.charAt(1), delims.charAt(2),
+                    delims.charAt(3), delims.charAt(4)).array();
+        }
+        String[] seps = new String[in.readInt()];
+        for (int i = 0; i < seps.length; i++) {
+            seps[i] = in.readUTF();
+        }
+        return seps;
+    }
+
+    /*
+     * Text is written as its length followed by as many writeUTF chunks as
+     * it takes.  Modified UTF-8 keeps ASCII to a byte a character and writes
+     * every char on its own, so a chunk can end anywhere.
+     */
+    private static void writeText(ObjectOutput out, String text) throws IOException {
+        int len = text.length();
+        out.writeInt(len);
+        if (len <= CHUNK) {
+            out.writeUTF(text);
+            return;
+        }
+        for (int i = 0; i < len; i += CHUNK) {
+            out.writeUTF(text.substring(i, Math.min(len, i + CHUNK)));
+        }
+    }
+
+    private static String readText(ObjectInput in) throws IOException {
+        int len = in.readInt();
+        if (len <= CHUNK) {
+            return in.readUTF();
+        }
+        StringBuilder sb = new StringBuilder(len);
+        while (sb.length() < len) {
+            sb.append(in.readUTF());
+        }
+        return sb.toString();
+    }
+
+    private static void writeIndex(ObjectOutput out, Integer index) throws IOException {
+        out.writeInt(index == null ? -1 : index.intValue());
+    }
+
+    private static Integer readIndex(ObjectInput in) throws IOException {
+        int index = in.readInt();
+        return index < 0 ? null : Integer.valueOf(index);
+    }
+}
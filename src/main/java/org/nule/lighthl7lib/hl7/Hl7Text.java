@@ -0,0 +1,121 @@
+/*
+ * Hl7Text.java
+ *
+ * Copyright (C) 2004-2012 M Litherland
+ */
+
+package org.nule.lighthl7lib.hl7;
+
+import java.io.Serializable;
+
+/**
+ *
+ * @author mike
+ *
+ * A read only window onto part of a larger piece of text, usually the
+ * record a segment or field came from.  Nothing is copied until toString()
+ * is called.
+ */
+public final class Hl7Text implements CharSequence, Serializable {
+    private static final long serialVersionUID = -2279170427913874071L;
+
+    private final CharSequence src;
+    private final int start;
+    private final int end;
+
+    /**
+     * Create a view of src from start up to (but not including) end.
+     *
+     * @param src the backing text
+     * @param start offset of the first character
+     * @param end offset after the last character
+     */
+    public Hl7Text(CharSequence src, int start, int end) {
+        if (start < 0 || end > src.length() || start > end) {
+            throw new IndexOutOfBoundsException("start " + start + ", end "
+                    + end + ", length " + src.length());
+        }
+        this.src = src;
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * Return the text from start to end of src as a character sequence that
+     * reads the same as its toString(), without copying if we can.  Raw
+     * bytes in a charset like UTF-8 only read right through charAt() while
+     * they are ASCII, so anything else is decoded.
+     */
+    static CharSequence view(CharSequence src, int start, int end) {
+        if (src instanceof Hl7Bytes && !((Hl7Bytes) src).isCharMapped(start, end)) {
+            return ((Hl7Bytes) src).decode(start, end);
+        }
+        return new Hl7Text(src, start, end);
+    }
+
+    public int length() {
+        return end - start;
+    }
+
+    public char charAt(int index) {
+        if (index < 0 || index >= end - start) {
+            throw new IndexOutOfBoundsException("index " + index + ", length "
+                    + (end - start));
+        }
+        return src.charAt(start + index);
+    }
+
+    public CharSequence subSequence(int from, int to) {
+        if (from < 0 || to > end - start || from > to) {
+            throw new IndexOutOfBoundsException("from " + from + ", to " + to
+                    + ", length " + (end - start));
+        }
+        return new Hl7Text(src, start + from, start + to);
+    }
+
+    /**
+     * Copy the characters we cover out into a new string.
+     *
+     * @return the text as a String
+     */
+    @Override
+    public String toString() {
+        return substring(src, start, end);
+    }
+
+    /**
+     * Make a string out of part of a character sequence with as little
+     * copying as the backing type allows.
+     *
+     * @param src the backing text
+     * @param start offset of the first character
+     * @param end offset after the last character
+     * @return a new String
+     */
+    static String substring(CharSequence src, int start, int end) {
+        if (src instanceof String) {
+            return ((String) src).substring(start, end);
+        }
+        if (src instanceof Hl7Bytes) {
+            return ((Hl7Bytes) src).decode(start, end);
+        }
+        return src.subSequence(start, end).toString();
+    }
+
+    /**
+     * Append part of a character sequence to a buffer.  Raw bytes are decoded
+     * on the way, everything else is copied as is.
+     *
+     * @param sb the buffer to append to
+     * @param src the backing text
+     * @param start offset of the first character
+     * @param end offset after the last character
+     */
+    static void append(StringBuilder sb, CharSequence src, int start, int end) {
+        if (src instanceof Hl7Bytes) {
+            sb.append(((Hl7Bytes) src).decode(start, end));
+        } else {
+            sb.append(src, start, end);
+        }
+    }
+}
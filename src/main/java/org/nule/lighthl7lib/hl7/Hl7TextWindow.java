@@ -0,0 +1,120 @@
+/*
+ * Hl7TextWindow.java
+ *
+ * Copyright (C) 2004-2012 M Litherland
+ */
+
+package org.nule.lighthl7lib.hl7;
+
+/**
+ *
+ * @author mike
+ *
+ * A window onto part of a record that the streaming parsers move along the
+ * text instead of making a new object for every value.  What it shows
+ * changes as the parser moves on, so call toString() on anything you want
+ * to keep.
+ *
+ * Over a record made from bytes the window reads the same characters as
+ * toString(): a value with multi-byte characters in it is decoded when the
+ * window is moved onto it, and anything else is shown in place.
+ */
+public final class Hl7TextWindow implements CharSequence {
+
+    // What is shown, and where in it, which is the record text itself
+    // unless the value had to be decoded
+    private CharSequence src;
+    private int offset;
+    private int length;
+    // Where the value is in the record text
+    private int start;
+    private int end;
+
+    Hl7TextWindow() {
+        src = "";
+    }
+
+    void set(CharSequence text, int from, int to) {
+        start = from;
+        end = to;
+        if (text instanceof Hl7Bytes && !((Hl7Bytes) text).isCharMapped(from, to)) {
+            src = ((Hl7Bytes) text).decode(from, to);
+            offset = 0;
+            length = src.length();
+        } else {
+            src = text;
+            offset = from;
+            length = to - from;
+        }
+    }
+
+    /**
+     * Return where the window starts in the record text.
+     *
+     * @return the offset
+     */
+    public int getStart() {
+        return start;
+    }
+
+    /**
+     * Return where the window ends in the record text.  For a record made
+     * from bytes these are byte offsets, which can be further apart than
+     * length().
+     *
+     * @return the offset after the last character
+     */
+    public int getEnd() {
+        return end;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("index " + index + ", length "
+                    + length);
+        }
+        return src.charAt(offset + index);
+    }
+
+    /**
+     * Return a fixed view of part of the window, which stays the same when
+     * the window moves.
+     */
+    public CharSequence subSequence(int from, int to) {
+        if (from < 0 || to > length || from > to) {
+            throw new IndexOutOfBoundsException("from " + from + ", to " + to
+                    + ", length " + length);
+        }
+        return new Hl7Text(src, offset + from, offset + to);
+    }
+
+    /**
+     * Compare what the window shows with a string without copying it.
+     *
+     * @param s the string
+     * @return true if they hold the same characters
+     */
+    public boolean contentEquals(String s) {
+        if (s.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (src.charAt(offset + i) != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copy what the window shows out into a new string.
+     */
+    @Override
+    public String toString() {
+        return Hl7Text.substring(src, offset, offset + length);
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Hl7Tokenizer.java
+ *
+ * Copyright (C) 2004-2012 M Litherland
+ */
+
+package org.nule.lighthl7lib.hl7;
+
+/**
+ *
+ * @author mike
+ *
+ * Character level delimiter scanning shared by the segment and field
+ * classes.  This replaces the regex splits we used to do at every level of
+ * the tree.  The rules are the same as String.split with a one character
+ * class: a value with no separator in it is a single token (even if it's
+ * empty), and trailing empty tokens are dropped.  Escape sequences aren't
+ * interpreted here, they never contain a separator character anyway.
+ */
+public final class Hl7Tokenizer {
+
+    private Hl7Tokenizer() {
+    }
+
+    /**
+     * Split the text between start and end on the separator.  The result is
+     * written to the bounds array (a new one is made if it is null or too
+     * small) as the token count at index 0 followed by start and end offset
+     * pairs, so token n (zero indexed) runs from bounds[n * 2 + 1] to
+     * bounds[n * 2 + 2].
+     *
+     * @param text the text to scan
+     * @param start offset of the first character to scan
+     * @param end offset after the last character to scan
+     * @param sep the separator character
+     * @param bounds an array to reuse, may be null
+     * @return the bounds array, possibly reallocated
+     */
+    public static int[] split(CharSequence text, int start, int end, char sep,
+            int[] bounds) {
+        int[] result = bounds;
+        if (result == null || result.length < 3) {
+            result = new int[9];
+        }
+        int count = 0;
+        int pos = start;
+        while (true) {
+            int next = indexOf(text, sep, pos, end);
+            int tokenEnd = next == -1 ? end : next;
+            if (count * 2 + 3 > result.length) {
+                int[] grown = new int[result.length * 2 + 1];
+                System.arraycopy(result, 0, grown, 0, result.length);
+                result = grown;
+            }
+            result[count * 2 + 1] = pos;
+            result[count * 2 + 2] = tokenEnd;
+            count++;
+            if (next == -1) {
+                break;
+            }
+            pos = next + 1;
+        }
+        if (count > 1) {
+            while (count > 0 && result[count * 2] == result[count * 2 - 1]) {
+                count--;
+            }
+        }
+        result[0] = count;
+        return result;
+    }
+
+    /**
+     * Count the tokens split() would return without recording them.
+     *
+     * @param text the text to scan
+     * @param start offset of the first character to scan
+     * @param end offset after the last character to scan
+     * @param sep the separator character
+     * @return the number of tokens
+     */
+    public static int count(CharSequence text, int start, int end, char sep) {
+        int count = 0;
+        int nonEmpty = 0;
+        int pos = start;
+        boolean found = false;
+        while (true) {
+            int next = indexOf(text, sep, pos, end);
+            int tokenEnd = next == -1 ? end : next;
+            count++;
+            if (tokenEnd > pos) {
+                nonEmpty = count;
+            }
+            if (next == -1) {
+                break;
+            }
+            found = true;
+            pos = next + 1;
+        }
+        return found ? nonEmpty : 1;
+    }
+
+    /**
+     * Find the next separator between from and end, or -1 if there isn't one.
+     * Unlike String.indexOf this never looks past end, which matters when
+     * the text is a whole record and we only care about one field of it.
+     *
+     * @param text the text to scan
+     * @param sep the character to look for
+     * @param from offset to start at
+     * @param end offset to stop at
+     * @return the offset of the separator or -1
+     */
+    public static int indexOf(CharSequence text, char sep, int from, int end) {
+        if (text instanceof String) {
+            String s = (String) text;
+            for (int i = from; i < end; i++) {
+                if (s.charAt(i) == sep) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        if (text instanceof Hl7Bytes) {
+            return ((Hl7Bytes) text).indexOf(sep, from, end);
+        }
+        for (int i = from; i < end; i++) {
+            if (text.charAt(i) == sep) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Pull a literal separator character out of the separator array made by
+     * Hl7RecordUtil.setSeparators.  The index is the same one used for the
+     * regex fragments, so 0 is the field separator, 1 the component
+     * separator, 2 repetition, 3 subcomponent and 4 the escape character.
+     *
+     * @param seps the separators array
+     * @param index which separator we want
+     * @return the separator as a char
+     */
+    public static char separator(String[] seps, int index) {
+        String literal = index == 4 ? seps[9] : seps[index + 4];
+        // setSeparators doubles up backslashes so the literals work as regex
+        // replacements, the last character is always the one we want.
+        return literal.charAt(literal.length() - 1);
+    }
+}
@@ -29,7 +29,7 @@ public class MshFieldOne extends Hl7Field {
 
     @Override
     public String toString() {
-        return seps[4];
+        return separators()[4];
     }
     
 }
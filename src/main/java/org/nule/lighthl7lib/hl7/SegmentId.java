@@ -0,0 +1,115 @@
+/*
+ * SegmentId.java
+ *
+ * Copyright (C) 2004-2012 M Litherland
+ */
+
+package org.nule.lighthl7lib.hl7;
+
+import java.io.Serializable;
+
+/**
+ *
+ * @author mike
+ *
+ * A segment ID worked out ahead of time for the lookup methods that take
+ * one.  The three characters are packed into an int, the same way each
+ * segment packs its own ID when it is parsed, so finding a segment is a
+ * matter of comparing ints and no ID strings get made along the way.
+ * Make one for each ID you look up often and keep it in a constant.
+ *
+ * IDs with characters beyond U+03FF can't be packed; they still work,
+ * they are just compared as strings.
+ */
+public final class SegmentId implements Serializable {
+    private static final long serialVersionUID = 2915623094163372371L;
+
+    public static final SegmentId MSH = of("MSH");
+
+    private final String id;
+    private final int code;
+
+    private SegmentId(String newId) {
+        id = newId;
+        code = pack(id);
+    }
+
+    /**
+     * Return the compiled form of a segment ID.
+     *
+     * @param id the segment ID
+     * @return SegmentId
+     * @throws IllegalArgumentException if the ID isn't three characters
+     */
+    public static SegmentId of(String id) {
+        if (id == null || id.length() != 3) {
+            throw new IllegalArgumentException("Header must be three characters.");
+        }
+        return new SegmentId(id);
+    }
+
+    /**
+     * Pack three characters into an int, or return -1 if they won't fit.
+     * Packed IDs are never 0, so 0 can stand for an empty slot.
+     */
+    static int pack(char a, char b, char c) {
+        int all = a | b | c;
+        if (all >= 0x400 || all == 0) {
+            return -1;
+        }
+        return (a << 20) | (b << 10) | c;
+    }
+
+    /**
+     * Pack the ID of the segment running from start to end, or return -1 if
+     * it won't fit or the segment is too short to have one.
+     */
+    static int pack(CharSequence text, int start, int end) {
+        if (end - start < 3) {
+            return -1;
+        }
+        return pack(text.charAt(start), text.charAt(start + 1), text.charAt(start + 2));
+    }
+
+    /**
+     * Pack an ID given as a string, or return -1 if it won't fit or isn't
+     * three characters.
+     */
+    static int pack(String id) {
+        if (id == null || id.length() != 3) {
+            return -1;
+        }
+        return pack(id.charAt(0), id.charAt(1), id.charAt(2));
+    }
+
+    /**
+     * Return the packed ID, or -1 if it couldn't be packed.
+     */
+    int code() {
+        return code;
+    }
+
+    /**
+     * Return the ID as a string.
+     *
+     * @return String
+     */
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public String toString() {
+        return id;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof SegmentId && ((SegmentId) o).id.equals(id);
+    }
+
+    @Override
+    public int hashCode() {
+        return id.hashCode();
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * SegmentIdCache.java
+ *
+ * Copyright (C) 2004-2012 M Litherland
+ */
+
+package org.nule.lighthl7lib.hl7;
+
+/**
+ *
+ * @author mike
+ *
+ * Hands out the same String every time the streaming parsers meet a
+ * segment ID they have seen before, so walking a record doesn't make a
+ * new three character String for every segment.  IDs are keyed on the
+ * same packed int SegmentId uses, and ones that can't be packed are just
+ * made each time.  Not thread safe; each parser has its own.
+ */
+final class SegmentIdCache {
+
+    private final int[] keys = new int[64];
+    private final String[] values = new String[64];
+
+    /**
+     * Return the ID of the segment starting at start.
+     */
+    String get(CharSequence text, int start, int end) {
+        if (end - start < 3) {
+            return Hl7Text.substring(text, start, end);
+        }
+        int key = SegmentId.pack(text, start, end);
+        if (key == -1) {
+            return Hl7Text.substring(text, start, start + 3);
+        }
+        int slot = (key * 0x9E3779B1) >>> 26;
+        for (int i = 0; i < keys.length; i++) {
+            int at = (slot + i) & (keys.length - 1);
+            if (keys[at] == key) {
+                return values[at];
+            }
+            if (keys[at] == 0) {
+                // Packed IDs are never 0, so this slot is free
+                keys[at] = key;
+                values[at] = Hl7Text.substring(text, start, start + 3);
+                return values[at];
+            }
+        }
+        // Full, not worth growing for
+        return Hl7Text.substring(text, start, start + 3);
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * SegmentIdIndex.java
+ *
+ * Copyright (C) 2004-2012 M Litherland
+ */
+
+package org.nule.lighthl7lib.hl7;
+
+import java.util.*;
+
+/**
+ *
+ * @author mike
+ *
+ * Maps each segment ID to the positions it occurs at, so finding the nth
+ * OBX or counting the NTEs doesn't mean walking the whole segment list.
+ * The owner builds one of these the first time it is asked for a segment
+ * by ID and throws it away when segments are added or moved.  IDs are
+ * keyed on their packed form (see SegmentId), so building and searching
+ * the index doesn't need the ID strings.
+ */
+final class SegmentIdIndex {
+
+    // Packed ID -> int[] holding the occurrence count at 0 followed by the
+    // zero indexed positions in order.  Open addressing on the packed ID,
+    // 0 marks an empty slot.
+    private int[] keys = new int[32];
+    private int[][] lists = new int[32][];
+    private int used = 0;
+    // The same for IDs that can't be packed, keyed on the ID string.
+    private Map others = null;
+
+    /**
+     * Record the next occurrence of a packed ID.  Positions have to be added
+     * in increasing order.
+     */
+    void add(int code, int position) {
+        int at = slot(code);
+        if (keys[at] == 0) {
+            if ((used + 1) * 2 > keys.length) {
+                rehash();
+                at = slot(code);
+            }
+            keys[at] = code;
+            used++;
+        }
+        lists[at] = append(lists[at], position);
+    }
+
+    /**
+     * Record the next occurrence of an ID.  Positions have to be added in
+     * increasing order.
+     */
+    void add(String id, int position) {
+        int code = SegmentId.pack(id);
+        if (code != -1) {
+            add(code, position);
+            return;
+        }
+        if (others == null) {
+            others = new HashMap();
+        }
+        others.put(id, append((int[]) others.get(id), position));
+    }
+
+    private static int[] append(int[] list, int position) {
+        if (list == null) {
+            list = new int[5];
+        } else if (list[0] + 1 == list.length) {
+            int[] grown = new int[list.length * 2];
+            System.arraycopy(list, 0, grown, 0, list.length);
+            list = grown;
+        }
+        list[0]++;
+        list[list[0]] = position;
+        return list;
+    }
+
+    /*
+     * The slot holding the code, or the empty slot it would go in.
+     */
+    private int slot(int code) {
+        int mask = keys.length - 1;
+        int h = code * 0x9E3779B1;
+        int at = (h ^ (h >>> 16)) & mask;
+        while (keys[at] != 0 && keys[at] != code) {
+            at = (at + 1) & mask;
+        }
+        return at;
+    }
+
+    private void rehash() {
+        int[] oldKeys = keys;
+        int[][] oldLists = lists;
+        keys = new int[oldKeys.length * 2];
+        lists = new int[keys.length][];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int at = slot(oldKeys[i]);
+                keys[at] = oldKeys[i];
+                lists[at] = oldLists[i];
+            }
+        }
+    }
+
+    private int[] list(int code) {
+        return lists[slot(code)];
+    }
+
+    private int[] list(String id) {
+        int code = SegmentId.pack(id);
+        if (code != -1) {
+            return list(code);
+        }
+        return others == null ? null : (int[]) others.get(id);
+    }
+
+    private int[] list(SegmentId id) {
+        return id.code() != -1 ? list(id.code()) : list(id.getId());
+    }
+
+    private static int get(int[] list, int n) {
+        if (list == null || n < 1 || n > list[0]) {
+            return -1;
+        }
+        return list[n];
+    }
+
+    /**
+     * Return the zero indexed position of the nth (counting from 1)
+     * occurrence of the ID, or -1 if there isn't one.
+     */
+    int get(String id, int n) {
+        return get(list(id), n);
+    }
+
+    int get(SegmentId id, int n) {
+        return get(list(id), n);
+    }
+
+    /**
+     * Forget every occurrence but keep the lists, so a record that is
+     * reused doesn't need new ones for the IDs it sees every time.
+     */
+    void clear() {
+        for (int i = 0; i < lists.length; i++) {
+            if (lists[i] != null) {
+                lists[i][0] = 0;
+            }
+        }
+        if (others != null) {
+            for (Iterator it = others.values().iterator(); it.hasNext();) {
+                ((int[]) it.next())[0] = 0;
+            }
+        }
+    }
+
+    /**
+     * Return how many times the ID occurs.
+     */
+    int count(String id) {
+        int[] list = list(id);
+        return list == null ? 0 : list[0];
+    }
+
+    int count(SegmentId id) {
+        int[] list = list(id);
+        return list == null ? 0 : list[0];
+    }
+}
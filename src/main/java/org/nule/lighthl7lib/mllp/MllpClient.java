@@ -0,0 +1,357 @@
+/*
+ * MllpClient.java
+ *
+ * Copyright (C) 2004-2012 M Litherland
+ */
+
+package org.nule.lighthl7lib.mllp;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import org.nule.lighthl7lib.hl7.*;
+
+/**
+ *
+ * @author mike
+ *
+ * Send MLLP framed messages without waiting for each ack before sending the
+ * next.  Up to a window's worth of messages can be outstanding on the
+ * connection; send() only blocks when the window is full.  Acks are matched
+ * to messages by MSA-2 against the MSH-10 that was sent, so each message
+ * gets a future that completes with its own ack whatever order the acks
+ * come back in.  The future completes normally for any ack, AA or not; look
+ * at MSA-1 to see what the receiver thought.
+ *
+ * Some receivers need a message to be accepted before the next one is
+ * sent, so a rejected message can be resent without anything overtaking
+ * it.  Ordered mode gives them that by keeping just one message in flight.
+ *
+ * A message whose ack doesn't come back within the ack timeout, 30 seconds
+ * by default, has its future failed with a TimeoutException and gives up
+ * its place in the window, so a lost ack can't hold up send() for good.
+ * An ack that turns up after that is counted as unmatched.
+ *
+ * One client can be used from several threads.  It can be closed and
+ * connected again; each connection keeps its own socket, window and
+ * messages in flight, so a connection that has gone away can only fail
+ * what was sent on it.
+ */
+public class MllpClient implements Closeable {
+
+    // One daemon thread times out acks for every client
+    private static final ScheduledThreadPoolExecutor TIMEOUTS = timeoutExecutor();
+
+    private final InetSocketAddress address;
+    private Charset charset = StandardCharsets.ISO_8859_1;
+    private int windowSize = 32;
+    private boolean ordered;
+    private long ackTimeout = 30000;
+    private final AtomicLong unmatched = new AtomicLong();
+
+    private volatile Connection conn;
+
+    /**
+     * Create a client for the given host and port.  Nothing happens until
+     * connect() is called.
+     *
+     * @param host the receiver's host
+     * @param port the receiver's port
+     */
+    public MllpClient(String host, int port) {
+        this(new InetSocketAddress(host, port));
+    }
+
+    /**
+     * Create a client for the given address.
+     *
+     * @param addr the receiver's address
+     */
+    public MllpClient(InetSocketAddress addr) {
+        address = addr;
+    }
+
+    /**
+     * Set the charset messages are in, ISO-8859-1 by default.  It has to be
+     * ASCII compatible.
+     *
+     * @param cs the charset
+     */
+    public void setCharset(Charset cs) {
+        Hl7Bytes.checkCharset(cs);
+        charset = cs;
+    }
+
+    /**
+     * Set how many messages can be waiting for an ack at once, 32 by
+     * default.  Takes effect on the next connect().
+     *
+     * @param size the window size
+     */
+    public void setWindow(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Window must be at least 1");
+        }
+        windowSize = size;
+    }
+
+    /**
+     * Set how long to wait for each message's ack before failing its future.
+     * Zero or less means wait for as long as the connection stays up.
+     *
+     * @param millis the timeout in milliseconds
+     */
+    public void setAckTimeout(long millis) {
+        ackTimeout = millis;
+    }
+
+    /**
+     * Turn ordered mode on or off.  In ordered mode only one message is in
+     * flight at a time, whatever the window size.  Takes effect on the next
+     * connect().
+     *
+     * @param inOrder true for ordered mode
+     */
+    public void setOrdered(boolean inOrder) {
+        ordered = inOrder;
+    }
+
+    /**
+     * Open the connection and start reading acks.
+     *
+     * @throws IOException if we can't connect
+     */
+    public synchronized void connect() throws IOException {
+        if (conn != null && conn.open) {
+            throw new IllegalStateException("Client already connected");
+        }
+        Socket socket = new Socket();
+        socket.connect(address);
+        socket.setTcpNoDelay(true);
+        final Connection c = new Connection(socket, ordered ? 1 : windowSize);
+        final InputStream in = socket.getInputStream();
+        conn = c;
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                readAcks(c, in);
+            }
+        }, "MllpClient-" + address);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Send a message.
+     *
+     * @param msg the message text
+     * @return a future that completes with the ack
+     * @see #send(byte[])
+     */
+    public CompletableFuture<Hl7Record> send(String msg)
+            throws IOException, InterruptedException {
+        return send(msg.getBytes(charset));
+    }
+
+    /**
+     * Send a message, waiting first if the window is full.  The message's
+     * MSH-10 has to be set and not match any other message in flight.
+     *
+     * @param msg the message bytes
+     * @return a future that completes with the ack, or exceptionally with an
+     *         IOException if the connection is lost first or a
+     *         TimeoutException if the ack timeout runs out
+     * @throws IOException if the message can't be written
+     * @throws InterruptedException if interrupted waiting for the window
+     * @throws IllegalArgumentException if the control ID is missing or
+     *         already in flight
+     */
+    public CompletableFuture<Hl7Record> send(byte[] msg)
+            throws IOException, InterruptedException {
+        Connection c = conn;
+        if (c == null || !c.open) {
+            throw new IOException("Not connected");
+        }
+        String id = Hl7Record.fromBytes(msg, charset).get("MSH").field(10).toString();
+        if (id.length() == 0) {
+            throw new IllegalArgumentException("Message has no control ID (MSH-10)");
+        }
+        CompletableFuture<Hl7Record> future = new CompletableFuture<Hl7Record>();
+        c.window.acquire();
+        if (c.pending.putIfAbsent(id, future) != null) {
+            c.window.release();
+            throw new IllegalArgumentException("Control ID " + id + " is already in flight");
+        }
+        try {
+            synchronized (c.out) {
+                c.out.write(MllpCodec.START_BLOCK);
+                c.out.write(msg);
+                c.out.write(MllpCodec.END_BLOCK);
+                c.out.write(MllpCodec.CARRIAGE_RETURN);
+                c.out.flush();
+            }
+        } catch (IOException e) {
+            if (c.pending.remove(id) != null) {
+                c.window.release();
+            }
+            throw e;
+        }
+        if (!c.open && c.pending.remove(id) != null) {
+            // The reader gave up while we were writing
+            c.window.release();
+            future.completeExceptionally(new IOException("Connection closed"));
+        } else if (ackTimeout > 0) {
+            timeOut(c, id, future);
+        }
+        return future;
+    }
+
+    private void timeOut(final Connection c, final String id,
+            final CompletableFuture<Hl7Record> future) {
+        final ScheduledFuture timer = TIMEOUTS.schedule(new Runnable() {
+            public void run() {
+                if (c.pending.remove(id, future)) {
+                    c.window.release();
+                    future.completeExceptionally(new TimeoutException(
+                            "No ack for control ID " + id));
+                }
+            }
+        }, ackTimeout, TimeUnit.MILLISECONDS);
+        future.whenComplete(new BiConsumer<Hl7Record, Throwable>() {
+            public void accept(Hl7Record ack, Throwable e) {
+                timer.cancel(false);
+            }
+        });
+    }
+
+    private static ScheduledThreadPoolExecutor timeoutExecutor() {
+        ScheduledThreadPoolExecutor ex = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "MllpClient-timeouts");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        ex.setRemoveOnCancelPolicy(true);
+        return ex;
+    }
+
+    /**
+     * Return how many messages are waiting for an ack.
+     *
+     * @return int
+     */
+    public int getInFlight() {
+        Connection c = conn;
+        return c == null ? 0 : c.pending.size();
+    }
+
+    /**
+     * Return how many responses have come back that didn't match any
+     * message waiting for an ack, including acks that came too late.
+     *
+     * @return long
+     */
+    public long getUnmatched() {
+        return unmatched.get();
+    }
+
+    /**
+     * Close the connection.  Messages still waiting for an ack have their
+     * futures completed exceptionally.
+     */
+    public synchronized void close() throws IOException {
+        Connection c = conn;
+        if (c != null) {
+            c.shutdown();
+        }
+    }
+
+    private void readAcks(Connection c, InputStream in) {
+        MllpCodec codec = new MllpCodec();
+        byte[] buf = new byte[8192];
+        try {
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                ByteBuffer bb = ByteBuffer.wrap(buf, 0, n);
+                byte[] frame;
+                while ((frame = codec.decode(bb)) != null) {
+                    complete(c, frame);
+                }
+            }
+        } catch (IOException e) {
+            // The connection is finished either way
+        } finally {
+            c.shutdown();
+        }
+    }
+
+    private void complete(Connection c, byte[] frame) {
+        String id = null;
+        Hl7Record ack = null;
+        try {
+            ack = Hl7Record.fromBytes(frame, charset);
+            Hl7Segment msa = ack.get("MSA");
+            if (msa != null && msa.field(2) != null) {
+                id = msa.field(2).toString();
+            }
+        } catch (RuntimeException e) {
+            // Not HL7, or too broken to read, so it can't be matched
+        }
+        CompletableFuture future = id == null ? null : (CompletableFuture) c.pending.remove(id);
+        if (future == null) {
+            unmatched.incrementAndGet();
+            System.err.println("Discarding MLLP response that matches no message: "
+                    + new String(frame, charset));
+            return;
+        }
+        c.window.release();
+        future.complete(ack);
+    }
+
+    /*
+     * One connection's socket and the messages sent on it.  Whoever closes
+     * it, the client or its own reader, only touches what is in here.
+     */
+    private static final class Connection {
+        final Socket socket;
+        final OutputStream out;
+        final Semaphore window;
+        final Map pending = new ConcurrentHashMap();
+        volatile boolean open = true;
+
+        Connection(Socket s, int windowSize) throws IOException {
+            socket = s;
+            out = new BufferedOutputStream(s.getOutputStream());
+            window = new Semaphore(windowSize);
+        }
+
+        void shutdown() {
+            open = false;
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already gone
+            }
+            for (Iterator it = pending.keySet().iterator(); it.hasNext();) {
+                CompletableFuture future = (CompletableFuture) pending.remove(it.next());
+                if (future != null) {
+                    window.release();
+                    future.completeExceptionally(new IOException("Connection closed"));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * MllpCodec.java
+ *
+ * Copyright (C) 2004-2012 M Litherland
+ */
+
+package org.nule.lighthl7lib.mllp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ *
+ * @author mike
+ *
+ * Minimal Lower Layer Protocol framing.  Each message goes over the wire as
+ * a start block (0x0B), the message bytes, an end block (0x1C) and a
+ * carriage return.  Encoding is static; decoding needs an instance per
+ * connection because a frame can arrive in any number of pieces.
+ *
+ * A decoder ignores anything between frames, and a frame is complete as
+ * soon as its end block arrives, so a sender that leaves off the carriage
+ * return (plenty do) isn't left waiting.  It is not thread safe.
+ */
+public final class MllpCodec {
+
+    public static final byte START_BLOCK = 0x0B;
+    public static final byte END_BLOCK = 0x1C;
+    public static final byte CARRIAGE_RETURN = 0x0D;
+
+    private static final int DEFAULT_MAX_FRAME = 16 * 1024 * 1024;
+    private static final int KEEP_BUFFER = 64 * 1024;
+
+    private final int maxFrame;
+    private boolean inFrame;
+    private byte[] frame = new byte[4096];
+    private int frameLen;
+
+    /**
+     * Create a decoder that accepts frames up to 16MB.
+     */
+    public MllpCodec() {
+        this(DEFAULT_MAX_FRAME);
+    }
+
+    /**
+     * Create a decoder.
+     *
+     * @param maxFrameSize the largest message we will accept, in bytes
+     */
+    public MllpCodec(int maxFrameSize) {
+        maxFrame = maxFrameSize;
+    }
+
+    /**
+     * Frame a message as one array.
+     *
+     * @param payload the message bytes
+     * @return the framed message
+     */
+    public static byte[] encode(byte[] payload) {
+        byte[] framed = new byte[payload.length + 3];
+        framed[0] = START_BLOCK;
+        System.arraycopy(payload, 0, framed, 1, payload.length);
+        framed[payload.length + 1] = END_BLOCK;
+        framed[payload.length + 2] = CARRIAGE_RETURN;
+        return framed;
+    }
+
+    /**
+     * Frame a message for a gathering write without copying it.  The
+     * payload buffer is used as is, between its position and limit.
+     *
+     * @param payload the message bytes
+     * @return the start block, the payload and the end of the frame
+     */
+    public static ByteBuffer[] frame(ByteBuffer payload) {
+        return new ByteBuffer[] {
+            ByteBuffer.wrap(new byte[] {START_BLOCK}),
+            payload,
+            ByteBuffer.wrap(new byte[] {END_BLOCK, CARRIAGE_RETURN})
+        };
+    }
+
+    /**
+     * Consume bytes from the buffer until a frame is complete or the buffer
+     * runs out.  Call it again with the same buffer until it returns null to
+     * get every frame that arrived in one read.
+     *
+     * @param in bytes read from the connection
+     * @return the message in the next complete frame, or null if we need
+     *         more bytes
+     * @throws IOException if a frame is bigger than we allow
+     */
+    public byte[] decode(ByteBuffer in) throws IOException {
+        while (in.hasRemaining()) {
+            if (!inFrame) {
+                if (in.get() == START_BLOCK) {
+                    inFrame = true;
+                    frameLen = 0;
+                }
+                continue;
+            }
+            // Copy up to the end block in one go
+            int pos = in.position();
+            int limit = in.limit();
+            int end = pos;
+            while (end < limit && in.get(end) != END_BLOCK) {
+                end++;
+            }
+            append(in, end - pos);
+            if (end < limit) {
+                // The carriage return after the end block is skipped along
+                // with anything else that isn't a start block.
+                in.get();
+                inFrame = false;
+                return take();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return true if part of a frame has been read.
+     *
+     * @return boolean
+     */
+    public boolean inFrame() {
+        return inFrame;
+    }
+
+    private void append(ByteBuffer in, int len) throws IOException {
+        if (frameLen + len > maxFrame) {
+            inFrame = false;
+            frameLen = 0;
+            throw new IOException("MLLP frame larger than " + maxFrame + " bytes");
+        }
+        if (frameLen + len > frame.length) {
+            frame = Arrays.copyOf(frame, Math.max(frame.length * 2, frameLen + len));
+        }
+        in.get(frame, frameLen, len);
+        frameLen += len;
+    }
+
+    private byte[] take() {
+        byte[] result = Arrays.copyOf(frame, frameLen);
+        frameLen = 0;
+        if (frame.length > KEEP_BUFFER) {
+            // Don't hang on to the space one huge message needed
+            frame = new byte[4096];
+        }
+        return result;
+    }
+}
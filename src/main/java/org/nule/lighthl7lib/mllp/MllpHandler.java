@@ -0,0 +1,30 @@
+/*
+ * MllpHandler.java
+ *
+ * Copyright (C) 2004-2012 M Litherland
+ */
+
+package org.nule.lighthl7lib.mllp;
+
+import org.nule.lighthl7lib.hl7.*;
+
+/**
+ *
+ * @author mike
+ *
+ * What a listener does with each message it receives.
+ */
+public interface MllpHandler {
+
+    /**
+     * Process one inbound message.  Return null to have the listener send
+     * back an AA ack, or the complete response (usually an ack or nack) to
+     * send instead.  If this throws, the listener sends an AE ack with the
+     * exception's message.
+     *
+     * @param message the message, parsed lazily from the received bytes
+     * @return the response, or null for a plain ack
+     * @throws Exception if the message couldn't be processed
+     */
+    String handle(Hl7Record message) throws Exception;
+}
@@ -0,0 +1,275 @@
+/*
+ * MllpListener.java
+ *
+ * Copyright (C) 2004-2012 M Litherland
+ */
+
+package org.nule.lighthl7lib.mllp;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import org.nule.lighthl7lib.hl7.*;
+import org.nule.lighthl7lib.util.*;
+
+/**
+ *
+ * @author mike
+ *
+ * Receive MLLP framed messages on any number of connections from a single
+ * thread using a selector.  Each complete message is parsed into an
+ * Hl7Record, given to the handler, and answered with whatever the handler
+ * returns or an ack made from the message's own header.  All reads go
+ * through one direct buffer, and responses are written with gathering
+ * writes so the framing bytes are never copied in front of the message.
+ *
+ * The handler runs on the selector thread, so it should be quick; anything
+ * slow holds up every connection.  MllpServer runs a thread per connection
+ * instead.  A connection whose peer isn't reading its acks stops being read
+ * from once PENDING_LIMIT responses are queued for it, until it catches up.
+ */
+public class MllpListener implements Closeable {
+
+    private static final int READ_BUFFER = 64 * 1024;
+    /** How many unsent responses a connection can have before we stop reading it. */
+    public static final int PENDING_LIMIT = 64;
+
+    private final InetSocketAddress address;
+    private final MllpHandler handler;
+    private Charset charset = StandardCharsets.ISO_8859_1;
+    private int maxFrame = 16 * 1024 * 1024;
+
+    private Selector selector;
+    private ServerSocketChannel server;
+    private Thread thread;
+    private volatile boolean open;
+
+    /**
+     * Create a listener on all interfaces.  Port 0 picks a free port, see
+     * getPort().
+     *
+     * @param port the port to listen on
+     * @param newHandler what to do with each message, null to just ack
+     */
+    public MllpListener(int port, MllpHandler newHandler) {
+        this(new InetSocketAddress(port), newHandler);
+    }
+
+    /**
+     * Create a listener on a specific address.
+     *
+     * @param addr the address to listen on
+     * @param newHandler what to do with each message, null to just ack
+     */
+    public MllpListener(InetSocketAddress addr, MllpHandler newHandler) {
+        address = addr;
+        handler = newHandler;
+    }
+
+    /**
+     * Set the charset messages are in, ISO-8859-1 by default.  It has to be
+     * ASCII compatible.
+     *
+     * @param cs the charset
+     * @throws IllegalArgumentException if the charset isn't ASCII compatible
+     */
+    public void setCharset(Charset cs) {
+        Hl7Bytes.checkCharset(cs);
+        charset = cs;
+    }
+
+    /**
+     * Set the largest message accepted; a connection that sends a bigger one
+     * is closed.
+     *
+     * @param size the size in bytes
+     */
+    public void setMaxFrameSize(int size) {
+        maxFrame = size;
+    }
+
+    /**
+     * Bind and start accepting connections on a new thread.
+     *
+     * @throws IOException if we can't bind
+     */
+    public synchronized void start() throws IOException {
+        if (open) {
+            throw new IllegalStateException("Listener already started");
+        }
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(address);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        open = true;
+        thread = new Thread(new Runnable() {
+            public void run() {
+                loop();
+            }
+        }, "MllpListener-" + getPort());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Return the port we are listening on.
+     *
+     * @return the port, or -1 if not started
+     */
+    public int getPort() {
+        if (server == null) {
+            return -1;
+        }
+        try {
+            return ((InetSocketAddress) server.getLocalAddress()).getPort();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Stop listening and close every connection.
+     */
+    public void close() throws IOException {
+        Thread t;
+        synchronized (this) {
+            if (!open) {
+                return;
+            }
+            open = false;
+            t = thread;
+            selector.wakeup();
+        }
+        try {
+            t.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void loop() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(READ_BUFFER);
+        AckGenerator acks = new AckGenerator();
+        try {
+            while (open) {
+                selector.select();
+                Iterator it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = (SelectionKey) it.next();
+                    it.remove();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            if (key.isReadable()) {
+                                read(key, buffer, acks);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                flush(key);
+                            }
+                        }
+                    } catch (IOException e) {
+                        closeConnection(key);
+                    } catch (RuntimeException e) {
+                        // Only this connection is in a state we can't trust,
+                        // the rest carry on
+                        System.err.println("MLLP listener error: " + e);
+                        if (key.channel() != server) {
+                            closeConnection(key);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("MLLP listener stopped: " + e.getMessage());
+        } finally {
+            for (Iterator it = selector.keys().iterator(); it.hasNext();) {
+                closeConnection((SelectionKey) it.next());
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Nothing more to do
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel sc = server.accept();
+        if (sc != null) {
+            sc.configureBlocking(false);
+            sc.register(selector, SelectionKey.OP_READ, new Connection(maxFrame));
+        }
+    }
+
+    private void read(SelectionKey key, ByteBuffer buffer, AckGenerator acks)
+            throws IOException {
+        SocketChannel sc = (SocketChannel) key.channel();
+        Connection conn = (Connection) key.attachment();
+        buffer.clear();
+        if (sc.read(buffer) == -1) {
+            closeConnection(key);
+            return;
+        }
+        buffer.flip();
+        byte[] frame;
+        while ((frame = conn.codec.decode(buffer)) != null) {
+            byte[] response = MllpResponder.respond(frame, charset, handler, acks);
+            if (response != null) {
+                conn.pending.add(MllpCodec.frame(ByteBuffer.wrap(response)));
+            }
+        }
+        flush(key);
+    }
+
+    /*
+     * Write as much of the queued responses as the socket will take, and
+     * only ask to hear about writability while something is left.  Reading
+     * waits while too much is left.
+     */
+    private void flush(SelectionKey key) throws IOException {
+        SocketChannel sc = (SocketChannel) key.channel();
+        Connection conn = (Connection) key.attachment();
+        while (!conn.pending.isEmpty()) {
+            ByteBuffer[] bufs = (ByteBuffer[]) conn.pending.peek();
+            sc.write(bufs);
+            if (bufs[bufs.length - 1].hasRemaining()) {
+                break;
+            }
+            conn.pending.remove();
+        }
+        int ops = SelectionKey.OP_READ;
+        if (conn.pending.size() >= PENDING_LIMIT) {
+            ops = SelectionKey.OP_WRITE;
+        } else if (!conn.pending.isEmpty()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        key.interestOps(ops);
+    }
+
+    private static void closeConnection(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // Already gone
+        }
+    }
+
+    private static class Connection {
+        private final MllpCodec codec;
+        private final Deque pending = new ArrayDeque();
+
+        Connection(int maxFrame) {
+            codec = new MllpCodec(maxFrame);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * MllpResponder.java
+ *
+ * Copyright (C) 2004-2012 M Litherland
+ */
+
+package org.nule.lighthl7lib.mllp;
+
+import java.nio.charset.Charset;
+import org.nule.lighthl7lib.hl7.*;
+import org.nule.lighthl7lib.util.*;
+
+/**
+ *
+ * @author mike
+ *
+ * Turn a received frame into the bytes to send back, the same way for every
+ * kind of server.
+ */
+final class MllpResponder {
+
+    private MllpResponder() {
+    }
+
+    /**
+     * Hand the message to the handler and work out the response.  Returns
+     * null if the frame isn't HL7 at all, or its header is too broken to
+     * read, since there's nothing to ack.
+     */
+    static byte[] respond(byte[] frame, Charset cs, MllpHandler handler,
+            AckGenerator acks) {
+        Hl7Record hr;
+        try {
+            hr = Hl7Record.fromBytes(frame, cs);
+        } catch (RuntimeException e) {
+            System.err.println("Discarding MLLP frame that isn't HL7: " + e);
+            return null;
+        }
+        String response;
+        try {
+            response = handler == null ? null : handler.handle(hr);
+            if (response == null) {
+                response = acks.build(frame, cs, AckGenerator.ACCEPT, "MSG OK", null);
+            }
+        } catch (Exception e) {
+            String text = e.getMessage() == null ? "Application Exception"
+                    : Hl7Escape.escape(e.getMessage(), hr.getSeparators());
+            response = acks.build(frame, cs, AckGenerator.ERROR, text, null);
+        }
+        return response.getBytes(cs);
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * MllpServer.java
+ *
+ * Copyright (C) 2004-2012 M Litherland
+ */
+
+package org.nule.lighthl7lib.mllp;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import org.nule.lighthl7lib.hl7.*;
+import org.nule.lighthl7lib.util.*;
+
+/**
+ *
+ * @author mike
+ *
+ * Receive MLLP framed messages with one thread per connection and plain
+ * blocking reads and writes.  On a JVM with virtual threads (Java 21 and
+ * later) each connection gets a virtual thread, so hundreds of mostly idle
+ * interfaces cost next to nothing; on older JVMs ordinary daemon threads
+ * are used.  Either can be overridden with setThreadFactory().
+ *
+ * The number of open connections and the number of messages being handled
+ * at once can both be capped.  A connection over the limit is closed as
+ * soon as it is accepted; a message over the limit waits for a slot.
+ * Unlike MllpListener the handler can take as long as it needs, it only
+ * holds up its own connection.
+ */
+public class MllpServer implements Closeable {
+
+    private static final ThreadFactory VIRTUAL = virtualThreadFactory();
+
+    private final InetSocketAddress address;
+    private final MllpHandler handler;
+    private Charset charset = StandardCharsets.ISO_8859_1;
+    private int maxFrame = 16 * 1024 * 1024;
+    private int idleTimeout;
+    private Semaphore connections;
+    private Semaphore inFlight;
+    private ThreadFactory threads;
+
+    private ServerSocket server;
+    private final Set sockets = Collections.newSetFromMap(new ConcurrentHashMap());
+    private volatile boolean open;
+
+    /**
+     * Create a server on all interfaces with no limits.  Port 0 picks a
+     * free port, see getPort().
+     *
+     * @param port the port to listen on
+     * @param newHandler what to do with each message, null to just ack
+     */
+    public MllpServer(int port, MllpHandler newHandler) {
+        this(new InetSocketAddress(port), newHandler);
+    }
+
+    /**
+     * Create a server on a specific address with no limits.
+     *
+     * @param addr the address to listen on
+     * @param newHandler what to do with each message, null to just ack
+     */
+    public MllpServer(InetSocketAddress addr, MllpHandler newHandler) {
+        address = addr;
+        handler = newHandler;
+        threads = VIRTUAL != null ? VIRTUAL : new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /*
+     * Thread.ofVirtual().factory(), if this JVM has it.  Looked up by
+     * reflection so we still build and run on older JVMs.
+     */
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Return true if this JVM supports virtual threads, which the server
+     * uses unless told otherwise.
+     *
+     * @return boolean
+     */
+    public static boolean hasVirtualThreads() {
+        return VIRTUAL != null;
+    }
+
+    /**
+     * Set the charset messages are in, ISO-8859-1 by default.  It has to be
+     * ASCII compatible.
+     *
+     * @param cs the charset
+     * @throws IllegalArgumentException if the charset isn't ASCII compatible
+     */
+    public void setCharset(Charset cs) {
+        Hl7Bytes.checkCharset(cs);
+        charset = cs;
+    }
+
+    /**
+     * Set the largest message accepted; a connection that sends a bigger one
+     * is closed.
+     *
+     * @param size the size in bytes
+     */
+    public void setMaxFrameSize(int size) {
+        maxFrame = size;
+    }
+
+    /**
+     * Close connections that send nothing for this long.  Zero, the
+     * default, means never.
+     *
+     * @param millis the timeout in milliseconds
+     */
+    public void setIdleTimeout(int millis) {
+        idleTimeout = millis;
+    }
+
+    /**
+     * Limit how many connections can be open at once.  Zero or less means
+     * no limit, which is the default.
+     *
+     * @param max the most connections
+     */
+    public void setMaxConnections(int max) {
+        connections = max > 0 ? new Semaphore(max) : null;
+    }
+
+    /**
+     * Limit how many messages can be with the handler at once, across all
+     * connections.  Zero or less means no limit, which is the default.
+     *
+     * @param max the most messages in flight
+     */
+    public void setMaxInFlight(int max) {
+        inFlight = max > 0 ? new Semaphore(max) : null;
+    }
+
+    /**
+     * Use a different source of threads, for the accepting thread as well as
+     * connections.
+     *
+     * @param factory the thread factory
+     */
+    public void setThreadFactory(ThreadFactory factory) {
+        threads = factory;
+    }
+
+    /**
+     * Bind and start accepting connections.
+     *
+     * @throws IOException if we can't bind
+     */
+    public synchronized void start() throws IOException {
+        if (open) {
+            throw new IllegalStateException("Server already started");
+        }
+        server = new ServerSocket();
+        server.bind(address);
+        open = true;
+        Thread t = threads.newThread(new Runnable() {
+            public void run() {
+                acceptLoop();
+            }
+        });
+        t.setName("MllpServer-" + getPort());
+        t.start();
+    }
+
+    /**
+     * Return the port we are listening on.
+     *
+     * @return the port, or -1 if not started
+     */
+    public int getPort() {
+        return server == null ? -1 : server.getLocalPort();
+    }
+
+    /**
+     * Return how many connections are open.
+     *
+     * @return int
+     */
+    public int getConnectionCount() {
+        return sockets.size();
+    }
+
+    /**
+     * Stop accepting and close every connection.
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            if (!open) {
+                return;
+            }
+            open = false;
+        }
+        server.close();
+        for (Iterator it = sockets.iterator(); it.hasNext();) {
+            closeQuietly((Socket) it.next());
+        }
+    }
+
+    private void acceptLoop() {
+        while (open) {
+            final Socket s;
+            try {
+                s = server.accept();
+            } catch (IOException e) {
+                if (open) {
+                    System.err.println("MLLP server stopped: " + e.getMessage());
+                }
+                return;
+            }
+            final Semaphore limit = connections;
+            if (limit != null && !limit.tryAcquire()) {
+                System.err.println("Refusing MLLP connection from "
+                        + s.getRemoteSocketAddress() + ", too many connections");
+                closeQuietly(s);
+                continue;
+            }
+            sockets.add(s);
+            if (!open) {
+                // close() may already have been through the sockets
+                sockets.remove(s);
+                closeQuietly(s);
+                if (limit != null) {
+                    limit.release();
+                }
+                return;
+            }
+            Thread t = threads.newThread(new Runnable() {
+                public void run() {
+                    try {
+                        serve(s);
+                    } finally {
+                        sockets.remove(s);
+                        closeQuietly(s);
+                        if (limit != null) {
+                            limit.release();
+                        }
+                    }
+                }
+            });
+            t.start();
+        }
+    }
+
+    /*
+     * Read frames off the connection and answer each in turn until the
+     * other end goes away.
+     */
+    private void serve(Socket s) {
+        MllpCodec codec = new MllpCodec(maxFrame);
+        AckGenerator acks = new AckGenerator();
+        byte[] buf = new byte[8192];
+        try {
+            s.setSoTimeout(idleTimeout);
+            InputStream in = s.getInputStream();
+            OutputStream out = new BufferedOutputStream(s.getOutputStream());
+            int n;
+            while (open && (n = in.read(buf)) != -1) {
+                ByteBuffer bb = ByteBuffer.wrap(buf, 0, n);
+                byte[] frame;
+                while ((frame = codec.decode(bb)) != null) {
+                    byte[] response = handle(frame, acks);
+                    if (response != null) {
+                        out.write(MllpCodec.START_BLOCK);
+                        out.write(response);
+                        out.write(MllpCodec.END_BLOCK);
+                        out.write(MllpCodec.CARRIAGE_RETURN);
+                        out.flush();
+                    }
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            // Idle too long
+        } catch (IOException e) {
+            // The connection is finished either way
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            // A handler bug, drop this connection and leave the rest alone
+            System.err.println("MLLP server error: " + e);
+        }
+    }
+
+    private byte[] handle(byte[] frame, AckGenerator acks) throws InterruptedException {
+        Semaphore limit = inFlight;
+        if (limit == null) {
+            return MllpResponder.respond(frame, charset, handler, acks);
+        }
+        limit.acquire();
+        try {
+            return MllpResponder.respond(frame, charset, handler, acks);
+        } finally {
+            limit.release();
+        }
+    }
+
+    private static void closeQuietly(Socket s) {
+        try {
+            s.close();
+        } catch (IOException e) {
+            // Already gone
+        }
+    }
+}
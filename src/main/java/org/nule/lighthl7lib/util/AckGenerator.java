@@ -0,0 +1,226 @@
+/*
+ * AckGenerator.java
+ *
+ * Copyright (C) 2005-2012 M Litherland
+ */
+
+package org.nule.lighthl7lib.util;
+
+import java.nio.charset.Charset;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import org.nule.lighthl7lib.hl7.*;
+
+/**
+ *
+ * @author mike
+ *
+ * Build acks and nacks without parsing the message being acknowledged.
+ * FormatAck parses a template and the whole inbound message and then edits
+ * the template a field at a time; this only reads the handful of MSH fields
+ * an ack needs straight out of the inbound text (or bytes) and writes the
+ * ack into a buffer that is reused from one call to the next.  The layout
+ * is the same as FormatAck produces, except that the inbound message's
+ * separators are used so copied values keep their meaning.
+ *
+ * No attempt has been made to make an instance thread safe, use one per
+ * thread.  They are cheap.
+ */
+public class AckGenerator {
+
+    public static final String ACCEPT = "AA";
+    public static final String ERROR = "AE";
+    public static final String REJECT = "AR";
+
+    private static final DateTimeFormatter stampFormat =
+            DateTimeFormatter.ofPattern("yyyyMMddHHmmss").withZone(ZoneId.systemDefault());
+    private static volatile Stamp stamp = new Stamp(0, null);
+
+    // The highest numbered MSH field an ack copies.
+    private static final int LAST_WANTED = 12;
+
+    private final StringBuilder sb = new StringBuilder(256);
+    private final int[] bounds = new int[LAST_WANTED * 2 + 2];
+    private String controlId = "12345678";
+
+    /**
+     * Set the control ID (MSH-10) used for the acks we create.
+     *
+     * @param newControlId
+     */
+    public void setControlId(String newControlId) {
+        controlId = newControlId;
+    }
+
+    /**
+     * Return an application accept (AA) for the message.
+     *
+     * @param msg the inbound message
+     * @return the ack
+     */
+    public String getAck(CharSequence msg) {
+        return build(msg, ACCEPT, "MSG OK", null);
+    }
+
+    /**
+     * Return an application reject (AR) for the message.
+     *
+     * @param msg the inbound message
+     * @return the nack
+     */
+    public String getNack(CharSequence msg) {
+        return build(msg, REJECT, "Application Rejection", null);
+    }
+
+    /**
+     * Return an application error (AE) for the message.
+     *
+     * @param msg the inbound message
+     * @return the nack
+     */
+    public String getException(CharSequence msg) {
+        return build(msg, ERROR, "Application Exception", null);
+    }
+
+    /**
+     * Build an ack for a message held as raw bytes in an ASCII compatible
+     * charset, without decoding anything but the fields we copy.
+     *
+     * @param msg the inbound message bytes
+     * @param cs the message charset
+     * @param ackCode MSA-1, for example AA, AE or AR
+     * @param text MSA-3
+     * @param err the ERR segment content after "ERR|", or null for none
+     * @return the ack
+     */
+    public String build(byte[] msg, Charset cs, String ackCode, String text,
+            String err) {
+        return build(new Hl7Bytes(msg, 0, msg.length, cs), ackCode, text, err);
+    }
+
+    /**
+     * Build an ack for the message with the given MSA-1 code and MSA-3 text,
+     * and optionally an ERR segment.
+     *
+     * @param msg the inbound message, only its MSH segment is read
+     * @param ackCode MSA-1, for example AA, AE or AR
+     * @param text MSA-3
+     * @param err the ERR segment content after "ERR|", or null for none
+     * @return the ack
+     * @throws IllegalArgumentException if the message doesn't start with an
+     *         HL7 header
+     */
+    public String build(CharSequence msg, String ackCode, String text,
+            String err) {
+        sb.setLength(0);
+        appendAck(sb, msg, ackCode, text, err);
+        return sb.toString();
+    }
+
+    /**
+     * The same as build(), but the ack is appended to a buffer the caller
+     * owns.
+     */
+    public void appendAck(StringBuilder out, CharSequence msg, String ackCode,
+            String text, String err) {
+        int len = msg.length();
+        if (len < 8 || !isHeader(msg)) {
+            throw new IllegalArgumentException("Record not HL7");
+        }
+        char fs = msg.charAt(3);
+        int segEnd = Hl7Tokenizer.indexOf(msg, Hl7RecordUtil.sep0.charAt(0), 0, len);
+        if (segEnd == -1) {
+            segEnd = len;
+        }
+        // bounds[n * 2] and [n * 2 + 1] hold where MSH-n is, MSH-2 starts
+        // right after the field separator.
+        int pos = 4;
+        int field = 2;
+        while (field <= LAST_WANTED) {
+            int next = pos > segEnd ? -1 : Hl7Tokenizer.indexOf(msg, fs, pos, segEnd);
+            if (pos > segEnd) {
+                bounds[field * 2] = segEnd;
+                bounds[field * 2 + 1] = segEnd;
+            } else {
+                bounds[field * 2] = pos;
+                bounds[field * 2 + 1] = next == -1 ? segEnd : next;
+            }
+            pos = next == -1 ? segEnd + 1 : next + 1;
+            field++;
+        }
+        out.append(msg.charAt(0)).append(msg.charAt(1)).append(msg.charAt(2))
+                .append(fs);
+        append(out, msg, 2);
+        out.append(fs);
+        append(out, msg, 5);
+        out.append(fs);
+        append(out, msg, 6);
+        out.append(fs);
+        append(out, msg, 3);
+        out.append(fs);
+        append(out, msg, 4);
+        out.append(fs).append(timestamp()).append(fs).append(fs).append("ACK")
+                .append(fs).append(controlId).append(fs);
+        append(out, msg, 11);
+        out.append(fs);
+        append(out, msg, 12);
+        out.append(Hl7RecordUtil.sep0);
+        out.append("MSA").append(fs).append(ackCode).append(fs);
+        append(out, msg, 10);
+        out.append(fs).append(text).append(Hl7RecordUtil.sep0);
+        if (err != null) {
+            out.append("ERR").append(fs).append(err).append(Hl7RecordUtil.sep0);
+        }
+    }
+
+    private static boolean isHeader(CharSequence msg) {
+        char a = msg.charAt(0);
+        char b = msg.charAt(1);
+        char c = msg.charAt(2);
+        return (a == 'M' && b == 'S' && c == 'H')
+                || (a == 'B' && b == 'H' && c == 'S')
+                || (a == 'F' && b == 'H' && c == 'S');
+    }
+
+    private void append(StringBuilder out, CharSequence msg, int field) {
+        int start = bounds[field * 2];
+        int end = bounds[field * 2 + 1];
+        if (start == end) {
+            return;
+        }
+        if (msg instanceof Hl7Bytes) {
+            out.append(((Hl7Bytes) msg).decode(start, end));
+        } else {
+            out.append(msg, start, end);
+        }
+    }
+
+    /**
+     * Return the current time in HL7 (yyyyMMddHHmmss) format.  The formatted
+     * value is cached for the rest of the second, and this is safe to call
+     * from any thread.
+     *
+     * @return the timestamp
+     */
+    public static String timestamp() {
+        long now = System.currentTimeMillis();
+        long second = now / 1000;
+        Stamp current = stamp;
+        if (current.second != second || current.text == null) {
+            current = new Stamp(second, stampFormat.format(Instant.ofEpochMilli(now)));
+            stamp = current;
+        }
+        return current.text;
+    }
+
+    private static final class Stamp {
+        private final long second;
+        private final String text;
+
+        private Stamp(long second, String text) {
+            this.second = second;
+            this.text = text;
+        }
+    }
+}
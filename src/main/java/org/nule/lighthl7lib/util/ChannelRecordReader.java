@@ -0,0 +1,304 @@
+/*
+ * ChannelRecordReader.java
+ *
+ * Copyright (C) 2004-2012 M Litherland
+ */
+
+package org.nule.lighthl7lib.util;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import org.nule.lighthl7lib.hl7.*;
+
+/**
+ *
+ * @author mike
+ *
+ * Read records one at a time from a channel, for inputs too big for
+ * RecordReader2.  Bytes are read into one heap buffer that is reused for
+ * the life of the reader and scanned straight out of its array.  Each byte
+ * is looked at exactly once: line endings are normalized and the start of
+ * record is matched as the bytes go past, so nothing already consumed is
+ * ever scanned again no matter how big a record gets.
+ *
+ * By default a record starts wherever a segment begins with MSH, and line
+ * endings are converted to the HL7 carriage return.  Anything before the
+ * first start of record is thrown away, the same as RecordReader2.  The
+ * channel should be a blocking one.
+ */
+public class ChannelRecordReader implements Closeable {
+
+    /**
+     * What to do with line endings while reading.
+     */
+    public enum LineEndings {
+        /** Leave the bytes alone. */
+        KEEP,
+        /** Drop line feeds, like RecordReader2 does. */
+        STRIP_LF,
+        /** Make CR LF and lone LF into CR, so every segment ends in \r. */
+        TO_CR
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+
+    private final ReadableByteChannel channel;
+    private final Charset charset;
+    private final ByteBuffer buffer;
+    private final byte[] chunk;
+    private int chunkPos;
+    private int chunkLen;
+    private boolean eof;
+
+    private LineEndings lineEndings = LineEndings.TO_CR;
+    private byte lastIn;
+
+    // The record being built, after line ending conversion.
+    private byte[] rec = new byte[8192];
+    private int recLen;
+    private boolean haveStart;
+    // Offset in rec where the next record starts, -1 until one is seen.
+    private int boundary = -1;
+
+    // Start of record matching.  Anchored matches only start at the
+    // beginning of a line, everything else is plain KMP.
+    private byte[] sor;
+    private int[] failure;
+    private boolean anchored;
+    private int matched;
+
+    /**
+     * Create a reader for ISO-8859-1 data.
+     *
+     * @param ch the channel to read from
+     */
+    public ChannelRecordReader(ReadableByteChannel ch) {
+        this(ch, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Create a reader for data in the given charset, which has to be ASCII
+     * compatible.
+     *
+     * @param ch the channel to read from
+     * @param cs the charset of the data
+     */
+    public ChannelRecordReader(ReadableByteChannel ch, Charset cs) {
+        Hl7Bytes.checkCharset(cs);
+        channel = ch;
+        charset = cs;
+        chunk = new byte[BUFFER_SIZE];
+        buffer = ByteBuffer.wrap(chunk);
+        setStartOfRecord("MSH", true);
+    }
+
+    /**
+     * Define the start of record.  As with RecordReader2 it matches
+     * anywhere, not just at the beginning of a line.
+     *
+     * @param mySor the start of record string
+     */
+    public void setStartOfRecord(String mySor) {
+        setStartOfRecord(mySor, false);
+    }
+
+    /**
+     * Define the start of record, and whether it only counts at the start
+     * of a line.
+     *
+     * @param mySor the start of record string
+     * @param atLineStart true to only match at the start of a line
+     */
+    public void setStartOfRecord(String mySor, boolean atLineStart) {
+        if (mySor == null || mySor.length() == 0) {
+            throw new IllegalArgumentException("Start of record can't be empty");
+        }
+        sor = mySor.getBytes(charset);
+        anchored = atLineStart;
+        failure = new int[sor.length];
+        int k = 0;
+        for (int i = 1; i < sor.length; i++) {
+            while (k > 0 && sor[i] != sor[k]) {
+                k = failure[k - 1];
+            }
+            if (sor[i] == sor[k]) {
+                k++;
+            }
+            failure[i] = k;
+        }
+        matched = (anchored && recLen > 0 && !isLineEnd(rec[recLen - 1])) ? -1 : 0;
+    }
+
+    /**
+     * Choose how line endings are treated, TO_CR by default.
+     *
+     * @param le the line ending mode
+     */
+    public void setLineEndings(LineEndings le) {
+        lineEndings = le;
+    }
+
+    /**
+     * Read the next record as raw bytes.
+     *
+     * @return the record, or null at the end of the channel
+     * @throws IOException if the channel throws one to us
+     */
+    public byte[] readBytes() throws IOException {
+        while (boundary == -1) {
+            if (chunkPos == chunkLen) {
+                if (eof || !fill()) {
+                    return remainder();
+                }
+            }
+            scan();
+        }
+        byte[] record = new byte[boundary];
+        System.arraycopy(rec, 0, record, 0, boundary);
+        System.arraycopy(rec, boundary, rec, 0, recLen - boundary);
+        recLen -= boundary;
+        boundary = -1;
+        return record;
+    }
+
+    /**
+     * Read the next record as a String.
+     *
+     * @return the record, or null at the end of the channel
+     * @throws IOException if the channel throws one to us
+     */
+    public String readLine() throws IOException {
+        byte[] record = readBytes();
+        return record == null ? null : new String(record, charset);
+    }
+
+    /**
+     * Read the next record and wrap it as an Hl7Record without decoding it.
+     *
+     * @return the record, or null at the end of the channel
+     * @throws IOException if the channel throws one to us
+     * @throws IllegalArgumentException if the record isn't HL7
+     */
+    public Hl7Record readRecord() throws IOException {
+        byte[] record = readBytes();
+        return record == null ? null : Hl7Record.fromBytes(record, charset);
+    }
+
+    /**
+     * Close the channel.
+     */
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private boolean fill() throws IOException {
+        buffer.clear();
+        int n = 0;
+        while (n == 0) {
+            n = channel.read(buffer);
+        }
+        buffer.flip();
+        if (n == -1) {
+            eof = true;
+            return false;
+        }
+        chunkLen = buffer.limit();
+        chunkPos = 0;
+        return true;
+    }
+
+    private byte[] remainder() {
+        if (recLen == 0) {
+            return null;
+        }
+        byte[] record = new byte[recLen];
+        System.arraycopy(rec, 0, record, 0, recLen);
+        recLen = 0;
+        return record;
+    }
+
+    /*
+     * Convert and match bytes from the chunk until it runs out or we find
+     * the start of the next record.
+     */
+    private void scan() {
+        while (chunkPos < chunkLen && boundary == -1) {
+            byte b = chunk[chunkPos++];
+            byte prev = lastIn;
+            lastIn = b;
+            if (b == LF) {
+                if (lineEndings == LineEndings.STRIP_LF) {
+                    continue;
+                }
+                if (lineEndings == LineEndings.TO_CR) {
+                    if (prev == CR) {
+                        continue;
+                    }
+                    b = CR;
+                }
+            }
+            put(b);
+        }
+    }
+
+    private void put(byte b) {
+        if (recLen == rec.length) {
+            byte[] grown = new byte[rec.length * 2];
+            System.arraycopy(rec, 0, grown, 0, recLen);
+            rec = grown;
+        }
+        rec[recLen++] = b;
+        if (anchored) {
+            if (matched >= 0 && b == sor[matched]) {
+                matched++;
+            } else {
+                matched = -1;
+            }
+            if (matched == sor.length) {
+                found();
+                matched = -1;
+            }
+            if (isLineEnd(b)) {
+                matched = 0;
+            }
+        } else {
+            while (matched > 0 && b != sor[matched]) {
+                matched = failure[matched - 1];
+            }
+            if (b == sor[matched]) {
+                matched++;
+            }
+            if (matched == sor.length) {
+                found();
+                matched = failure[matched - 1];
+            }
+        }
+    }
+
+    private static boolean isLineEnd(byte b) {
+        return b == CR || b == LF;
+    }
+
+    /*
+     * The last bytes in rec are a start of record.  Either it ends the
+     * record in progress, or it is the first one and what came before it is
+     * junk.
+     */
+    private void found() {
+        int start = recLen - sor.length;
+        if (haveStart) {
+            if (start > 0) {
+                boundary = start;
+            }
+        } else {
+            haveStart = true;
+            System.arraycopy(rec, start, rec, 0, sor.length);
+            recLen = sor.length;
+        }
+    }
+}
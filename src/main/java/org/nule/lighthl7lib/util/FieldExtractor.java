@@ -0,0 +1,178 @@
+/*
+ * FieldExtractor.java
+ *
+ * Copyright (C) 2004-2012 M Litherland
+ */
+
+package org.nule.lighthl7lib.util;
+
+import java.util.*;
+import org.nule.lighthl7lib.hl7.*;
+
+/**
+ *
+ * @author mike
+ *
+ * Pull a fixed set of fields out of records in one pass.  Calling
+ * Hl7Record.getField once per definition walks the segment list again for
+ * every field; this walks it once per record, looks only at segments that
+ * some definition refers to, and stops as soon as everything has been found.
+ * Definitions on the same segment share its parsed fields, so each field is
+ * only broken down once.
+ *
+ * An extractor holds no per-record state, so one instance can be shared
+ * between threads.
+ */
+public class FieldExtractor {
+
+    private final FieldPath[] paths;
+    // Distinct segment IDs referenced, the paths that use each one (as
+    // indexes into paths), and the furthest repetition any of them wants.
+    private final String[] segIds;
+    // The same IDs compiled for matching, null for one that isn't three
+    // characters and so can't match any segment.
+    private final SegmentId[] segCodes;
+    private final int[][] pathsBySeg;
+    private final int[] maxRep;
+
+    /**
+     * Create an extractor from field definitions such as "PID:3-1-1".
+     *
+     * @param fieldDefs the definitions, results come back in this order
+     * @throws IllegalArgumentException if a definition is not valid
+     */
+    public FieldExtractor(String[] fieldDefs) {
+        this(compileAll(fieldDefs));
+    }
+
+    /**
+     * Create an extractor from compiled paths.
+     *
+     * @param fieldPaths the paths, results come back in this order
+     */
+    public FieldExtractor(FieldPath[] fieldPaths) {
+        paths = fieldPaths.clone();
+        List ids = new ArrayList();
+        for (int i = 0; i < paths.length; i++) {
+            if (!ids.contains(paths[i].getSegment())) {
+                ids.add(paths[i].getSegment());
+            }
+        }
+        segIds = (String[]) ids.toArray(new String[ids.size()]);
+        segCodes = new SegmentId[segIds.length];
+        pathsBySeg = new int[segIds.length][];
+        maxRep = new int[segIds.length];
+        for (int s = 0; s < segIds.length; s++) {
+            if (segIds[s] != null && segIds[s].length() == 3) {
+                segCodes[s] = SegmentId.of(segIds[s]);
+            }
+            int count = 0;
+            for (int i = 0; i < paths.length; i++) {
+                if (segIds[s].equals(paths[i].getSegment())) {
+                    count++;
+                }
+            }
+            pathsBySeg[s] = new int[count];
+            count = 0;
+            for (int i = 0; i < paths.length; i++) {
+                if (segIds[s].equals(paths[i].getSegment())) {
+                    pathsBySeg[s][count++] = i;
+                    maxRep[s] = Math.max(maxRep[s], wantedRep(paths[i]));
+                }
+            }
+        }
+    }
+
+    private static FieldPath[] compileAll(String[] fieldDefs) {
+        FieldPath[] compiled = new FieldPath[fieldDefs.length];
+        for (int i = 0; i < fieldDefs.length; i++) {
+            compiled[i] = FieldMatch.compile(fieldDefs[i]);
+            if (compiled[i] == null) {
+                throw new IllegalArgumentException("Invalid field definition: "
+                        + fieldDefs[i]);
+            }
+        }
+        return compiled;
+    }
+
+    private static int wantedRep(FieldPath fp) {
+        return fp.getSegRep() == 0 ? 1 : fp.getSegRep();
+    }
+
+    /**
+     * Return the number of fields this extractor pulls out.
+     *
+     * @return int
+     */
+    public int size() {
+        return paths.length;
+    }
+
+    /**
+     * Extract all the fields from a record into a new array.  Fields whose
+     * segment isn't in the record come back as null, the same as
+     * Hl7Record.getField.
+     *
+     * @param hr the record
+     * @return the field values in definition order
+     */
+    public String[] extract(Hl7Record hr) {
+        String[] result = new String[paths.length];
+        extract(hr, result, 0);
+        return result;
+    }
+
+    /**
+     * Extract all the fields from a record into an existing array, starting
+     * at offset.
+     *
+     * @param hr the record
+     * @param result where to put the values
+     * @param offset index of the first value in result
+     */
+    public void extract(Hl7Record hr, String[] result, int offset) {
+        Arrays.fill(result, offset, offset + paths.length, null);
+        int[] seen = new int[segIds.length];
+        int remaining = paths.length;
+        int size = hr.size();
+        for (int pos = 1; pos <= size && remaining > 0; pos++) {
+            for (int s = 0; s < segIds.length; s++) {
+                if (seen[s] >= maxRep[s] || segCodes[s] == null
+                        || !hr.isSegment(pos, segCodes[s])) {
+                    continue;
+                }
+                seen[s]++;
+                Hl7Segment seg = null;
+                for (int i = 0; i < pathsBySeg[s].length; i++) {
+                    FieldPath fp = paths[pathsBySeg[s][i]];
+                    if (wantedRep(fp) == seen[s]) {
+                        if (seg == null) {
+                            seg = hr.get(pos);
+                        }
+                        Hl7Field payload = fp.getFieldObj(seg);
+                        result[offset + pathsBySeg[s][i]] =
+                                payload == null ? null : payload.toString();
+                        remaining--;
+                    }
+                }
+                // A segment only has one ID, no need to check the others
+                break;
+            }
+        }
+    }
+
+    /**
+     * Extract all the fields from a record into one row of a column oriented
+     * structure, so columns[n][row] gets the value of definition n.
+     *
+     * @param hr the record
+     * @param columns one array per definition
+     * @param row the row to fill in
+     */
+    public void extract(Hl7Record hr, String[][] columns, int row) {
+        String[] values = extract(hr);
+        for (int i = 0; i < values.length; i++) {
+            columns[i][row] = values[i];
+        }
+    }
+}
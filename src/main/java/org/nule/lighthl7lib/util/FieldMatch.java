@@ -8,7 +8,8 @@
 
 package org.nule.lighthl7lib.util;
 
-import java.util.regex.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import org.nule.lighthl7lib.hl7.*;
 
 /**
@@ -112,6 +113,22 @@ public class FieldMatch {
         subcomp = newSubComp;
     }
     
+    /**
+     * Turn this match into an immutable FieldPath.
+     *
+     * @return FieldPath
+     */
+    public FieldPath compile() {
+        StringBuilder sb = new StringBuilder(segment);
+        if (segRep != 0) {
+            sb.append(segRep);
+        }
+        sb.append(':').append(field).append('-').append(rep).append('-')
+                .append(comp).append('-').append(subcomp);
+        return new FieldPath(sb.toString(), segment, segRep, field, rep, comp,
+                subcomp);
+    }
+    
     /**
      * To simplify the creation of FieldMatch objects, verifyFields
      * takes a formatted string describing a field and returns the
@@ -122,47 +139,94 @@ public class FieldMatch {
      * @return FieldMatch
      */
     public static FieldMatch verifyFields(String fieldArgs) {
-        Pattern segId = Pattern.compile("^([A-Z]{2}[A-Z0-9])(\\d*)");
-        String[] parse1 = fieldArgs.split(":");
-        if (parse1.length != 2) {
-            System.err.println("Field received not valid: " + fieldArgs);
-            System.err.println("Must include Segment and Field number.");
+        FieldPath fp = compile(fieldArgs);
+        if (fp == null) {
             return null;
         }
-        Matcher m = segId.matcher(parse1[0].toString());
-        if (m.find()) {
-            FieldMatch fm = new FieldMatch(m.group(1));
-            if (m.groupCount() >= 2) {
-                try {
-                    fm.addSegRep(Integer.parseInt(m.group(2)));
-                } catch (NumberFormatException e) {
-                    
+        return new FieldMatch(fp.getSegment(), fp.getSegRep(),
+                fp.getFieldNumber(), fp.getRep(), fp.getComp(), fp.getSubcomp());
+    }
+    
+    /**
+     * Return the compiled, immutable form of a field definition such as
+     * "PID:3-1-1".  Compiled paths are cached, so looking up the same
+     * definition again doesn't parse it again.  Returns null (and complains on
+     * stderr, like verifyFields) if the definition isn't valid.
+     *
+     * @param fieldArgs
+     * @return FieldPath
+     */
+    public static FieldPath compile(String fieldArgs) {
+        FieldPath fp = (FieldPath) compiled.get(fieldArgs);
+        if (fp == null) {
+            fp = parse(fieldArgs);
+            if (fp != null) {
+                if (compiled.size() >= CACHE_SIZE) {
+                    // Crude, but it keeps the cache bounded without any
+                    // locking, and a working set that fits stays cached.
+                    compiled.clear();
                 }
+                compiled.put(fieldArgs, fp);
             }
-            String[] fieldDef = parse1[1].split("-");
-            // Sonar complains that the case statements fall through,
-            // but that is the correct behavior.
-            switch (fieldDef.length) {
-                case 4:
-                    fm.addSubComp(Integer.parseInt(fieldDef[3]));
-                case 3:
-                    fm.addComp(Integer.parseInt(fieldDef[2]));
-                case 2:
-                    fm.addRep(Integer.parseInt(fieldDef[1]));
-                case 1:
-                    fm.addField(Integer.parseInt(fieldDef[0]));
-                    break;
-                default:
-                    System.err.println("Error in field definition: "
-                            + fieldArgs);
-                    return null;
-            }
-            return fm;
-        } else {
+        }
+        return fp;
+    }
+    
+    private static final int CACHE_SIZE = 1024;
+    private static final Map compiled = new ConcurrentHashMap();
+    
+    /**
+     * Hand parse a field definition.  This follows the rules of the regex
+     * based parser we used to have: "SEG[n]:field[-rep[-comp[-subcomp]]]",
+     * where the segment ID is two letters and a letter or digit, and
+     * anything after the segment ID and repetition number is ignored.
+     */
+    private static FieldPath parse(String fieldArgs) {
+        int[] parse1 = Hl7Tokenizer.split(fieldArgs, 0, fieldArgs.length(), ':', null);
+        if (parse1[0] != 2) {
+            System.err.println("Field received not valid: " + fieldArgs);
+            System.err.println("Must include Segment and Field number.");
+            return null;
+        }
+        int segEnd = parse1[2];
+        if (segEnd < 3 || !isUpper(fieldArgs.charAt(0))
+                || !isUpper(fieldArgs.charAt(1))
+                || !(isUpper(fieldArgs.charAt(2)) || isDigit(fieldArgs.charAt(2)))) {
             System.err.println("Could not match segment id: "
                     + fieldArgs);
             System.err.println("Fields much start with segment id.");
             return null;
         }
+        int digits = 3;
+        while (digits < segEnd && isDigit(fieldArgs.charAt(digits))) {
+            digits++;
+        }
+        int newSegRep = 0;
+        try {
+            newSegRep = Integer.parseInt(fieldArgs.substring(3, digits));
+        } catch (NumberFormatException e) {
+            
+        }
+        int[] fieldDef = Hl7Tokenizer.split(fieldArgs, parse1[3], parse1[4], '-', null);
+        int[] values = new int[4];
+        if (fieldDef[0] < 1 || fieldDef[0] > 4) {
+            System.err.println("Error in field definition: "
+                    + fieldArgs);
+            return null;
+        }
+        for (int i = 0; i < fieldDef[0]; i++) {
+            values[i] = Integer.parseInt(fieldArgs.substring(fieldDef[i * 2 + 1],
+                    fieldDef[i * 2 + 2]));
+        }
+        return new FieldPath(fieldArgs, fieldArgs.substring(0, 3), newSegRep,
+                values[0], values[1], values[2], values[3]);
+    }
+    
+    private static boolean isUpper(char c) {
+        return c >= 'A' && c <= 'Z';
+    }
+    
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
     }
 }
@@ -0,0 +1,119 @@
+/*
+ * FieldPath.java
+ *
+ * Copyright (C) 2004-2012 M Litherland
+ */
+
+package org.nule.lighthl7lib.util;
+
+import org.nule.lighthl7lib.hl7.*;
+
+/**
+ *
+ * @author mike
+ *
+ * An immutable, already parsed field definition as returned by
+ * FieldMatch.compile().  Unlike FieldMatch it can't be changed after it is
+ * made, so one instance can be shared between threads and used against any
+ * number of records without parsing the definition again.
+ */
+public final class FieldPath {
+
+    private final String path;
+    private final String segment;
+    private final int segRep;
+    private final int field;
+    private final int rep;
+    private final int comp;
+    private final int subcomp;
+
+    /**
+     * Create a path from its parts.  Zero means "not specified" for the
+     * segment repetition, field repetition, component and subcomponent, the
+     * same as FieldMatch.
+     */
+    public FieldPath(String path, String segment, int segRep, int field,
+            int rep, int comp, int subcomp) {
+        this.path = path;
+        this.segment = segment;
+        this.segRep = segRep;
+        this.field = field;
+        this.rep = rep;
+        this.comp = comp;
+        this.subcomp = subcomp;
+    }
+
+    /**
+     * Retrieve the field as a string from the provided Hl7Record, or null if
+     * the segment isn't there.
+     */
+    public String getField(Hl7Record hr) {
+        Hl7Field payload = getFieldObj(hr);
+        return payload == null ? null : payload.toString();
+    }
+
+    /**
+     * Retrieve the field as an Hl7Field object from the provided Hl7Record, or
+     * null if the segment isn't there.
+     */
+    public Hl7Field getFieldObj(Hl7Record hr) {
+        Hl7Segment seg = hr.get(segment, segRep == 0 ? 1 : segRep);
+        if (seg == null) {
+            return null;
+        }
+        return getFieldObj(seg);
+    }
+
+    /**
+     * Walk the field, repetition, component and subcomponent parts of the
+     * path within a segment that has already been found.
+     */
+    public Hl7Field getFieldObj(Hl7Segment seg) {
+        Hl7Field payload = seg.field(field);
+        if (payload == null) {
+            return null;
+        }
+        if (rep != 0) {
+            payload = payload.getRep(rep);
+        }
+        if (comp != 0) {
+            payload = payload.getComp(comp);
+        }
+        if (subcomp != 0) {
+            payload = payload.getSubcomp(subcomp);
+        }
+        return payload;
+    }
+
+    public String getSegment() {
+        return segment;
+    }
+
+    public int getSegRep() {
+        return segRep;
+    }
+
+    public int getFieldNumber() {
+        return field;
+    }
+
+    public int getRep() {
+        return rep;
+    }
+
+    public int getComp() {
+        return comp;
+    }
+
+    public int getSubcomp() {
+        return subcomp;
+    }
+
+    /**
+     * Return the definition this path was compiled from.
+     */
+    @Override
+    public String toString() {
+        return path;
+    }
+}
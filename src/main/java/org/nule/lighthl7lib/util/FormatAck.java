@@ -8,8 +8,6 @@
 
 package org.nule.lighthl7lib.util;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
 import org.nule.lighthl7lib.hl7.*;
 
 /**
@@ -35,9 +33,7 @@ public class FormatAck {
         ack.rebuild();
         ack.get("MSH").field(6).changeField(in.get("MSH").field(4).toString());
         ack.rebuild();
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMddHHmmss");
-        String date = sdf.format(new Date());
-        ack.get("MSH").field(7).changeField(date);
+        ack.get("MSH").field(7).changeField(AckGenerator.timestamp());
         ack.rebuild();
         ack.get("MSH").field(11).changeField(in.get("MSH").field(11).toString());
         ack.get("MSH").field(12).changeField(in.get("MSH").field(12).toString());
@@ -24,6 +24,21 @@ public class GroupBuilder {
      */
     public static Hl7SegmentGroup singleGroup(List segs, String segId, int count, 
             String[] seps) {
+        return singleGroup(segs, compile(segId), count, seps);
+    }
+
+    /**
+     * Create a segment group out of the segments provided in a list, finding
+     * the segments that start groups by their packed IDs.
+     * 
+     * @param segs A list of segments.
+     * @param segId The segment ID to build the groups from.
+     * @param count Which iteration of the group to return.
+     * @param seps The record separators.
+     * @return An Hl7SegmentGroup object
+     */
+    public static Hl7SegmentGroup singleGroup(List segs, SegmentId segId, int count, 
+            String[] seps) {
         int current = 0;
         Integer beginningIndex = null;
         Integer endingIndex = null;
@@ -31,7 +46,7 @@ public class GroupBuilder {
         List groupBuilder = new ArrayList();
         for (int i = 0; i < segs.size(); i++) {
             Hl7Segment seg = (Hl7Segment) segs.get(i);
-            if (seg.getId().equals(segId)) {
+            if (segId != null && seg.isId(segId)) {
                 current++;
                 if (current > count) {
                     break;
@@ -60,6 +75,20 @@ public class GroupBuilder {
      */
     public static Hl7SegmentGroup[] allGroups(List segs, String segId, 
             String[] seps) {
+        return allGroups(segs, compile(segId), seps);
+    }
+
+    /**
+     * Create an array of segment groups out of the segments provided in a
+     * list, finding the segments that start groups by their packed IDs.
+     * 
+     * @param segs A list of segments.
+     * @param segId The segment ID to build the groups from.
+     * @param seps The record separators.
+     * @return An array of Hl7SegmentGroup objects
+     */
+    public static Hl7SegmentGroup[] allGroups(List segs, SegmentId segId, 
+            String[] seps) {
         Integer beginningIndex = null;
         Integer endingIndex = null;
         List segGroups = new ArrayList();
@@ -67,7 +96,7 @@ public class GroupBuilder {
         List groupBuilder = null;
         for (int i = 0; i < segs.size(); i++) {
             Hl7Segment seg = (Hl7Segment) segs.get(i);
-            if (seg.getId().equals(segId)) {
+            if (segId != null && seg.isId(segId)) {
                 building = true;
                 if (groupBuilder != null) {
                     segGroups.add(new Hl7SegmentGroup(groupBuilder, seps, beginningIndex, endingIndex));
@@ -93,6 +122,17 @@ public class GroupBuilder {
         return groups;
     }
 
+    /*
+     * An ID that isn't three characters never matched any segment, so it
+     * becomes null, which doesn't either.
+     */
+    private static SegmentId compile(String segId) {
+        if (segId == null || segId.length() != 3) {
+            return null;
+        }
+        return SegmentId.of(segId);
+    }
+
     /**
      * This method can be passed the initial list of segments and a list of groups
      * were created from these segments and in theory it will return an updated list
@@ -0,0 +1,252 @@
+/*
+ * MappedRecordFile.java
+ *
+ * Copyright (C) 2004-2012 M Litherland
+ */
+
+package org.nule.lighthl7lib.util;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import org.nule.lighthl7lib.hl7.*;
+
+/**
+ *
+ * @author mike
+ *
+ * Random access to the records in a batch or archive file.  The file is
+ * memory mapped and scanned once when it is opened to find where each
+ * record starts, which is kept as a plain long[] of offsets.  After that
+ * any record can be had by number without reading the ones before it, as
+ * many times as you like.  Records are handed out as Hl7Records sitting
+ * directly on the mapped bytes, so nothing is decoded until it is read.
+ *
+ * A record starts with a segment beginning MSH, BHS or FHS (or whichever
+ * IDs you supply) at the start of a line.  Files can be larger than 2GB;
+ * they are mapped a window at a time.  Records that contain line feeds are
+ * copied and converted to carriage returns, the rest are used in place.
+ *
+ * The file can be read from several threads at once.
+ */
+public class MappedRecordFile implements Closeable {
+
+    private static final int DEFAULT_WINDOW = 1 << 30;
+    static final String[] DEFAULT_STARTS = {"MSH", "BHS", "FHS"};
+
+    private final FileChannel channel;
+    private final Charset charset;
+    private final long fileSize;
+    private final int window;
+    private final byte[][] starts;
+
+    private long[] offsets = new long[1024];
+    private int count;
+    // Records with a line feed somewhere in them.
+    private final BitSet lineFeeds = new BitSet();
+
+    private MappedByteBuffer current;
+    private long currentStart;
+
+    /**
+     * Open an ISO-8859-1 file, where records start at MSH, BHS or FHS.
+     *
+     * @param file the file
+     * @throws IOException if the file can't be read
+     */
+    public MappedRecordFile(File file) throws IOException {
+        this(file, StandardCharsets.ISO_8859_1, DEFAULT_STARTS, DEFAULT_WINDOW);
+    }
+
+    /**
+     * Open a file.
+     *
+     * @param file the file
+     * @param cs the charset of the data, which has to be ASCII compatible
+     * @param startIds segment IDs that start a record
+     * @param windowSize how many bytes to map at a time, records can't be
+     *        bigger than this
+     * @throws IOException if the file can't be read
+     */
+    public MappedRecordFile(File file, Charset cs, String[] startIds,
+            int windowSize) throws IOException {
+        Hl7Bytes.checkCharset(cs);
+        charset = cs;
+        window = windowSize;
+        starts = startBytes(startIds, cs);
+        channel = new RandomAccessFile(file, "r").getChannel();
+        fileSize = channel.size();
+        try {
+            index();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    static byte[][] startBytes(String[] startIds, Charset cs) {
+        byte[][] result = new byte[startIds.length][];
+        for (int i = 0; i < startIds.length; i++) {
+            if (startIds[i].length() != 3) {
+                throw new IllegalArgumentException("Segment IDs are 3 characters: "
+                        + startIds[i]);
+            }
+            result[i] = startIds[i].getBytes(cs);
+        }
+        return result;
+    }
+
+    /*
+     * Walk the whole file once, noting each record start and which records
+     * have line feeds in them.  Each window is mapped a few bytes long so a
+     * segment ID that straddles the edge is still seen.
+     */
+    private void index() throws IOException {
+        long pos = 0;
+        byte prev = '\r';
+        while (pos < fileSize) {
+            int len = (int) Math.min(window, fileSize - pos);
+            int mapLen = (int) Math.min((long) len + 3, fileSize - pos);
+            MappedByteBuffer mb = channel.map(FileChannel.MapMode.READ_ONLY, pos, mapLen);
+            for (int i = 0; i < len; i++) {
+                byte b = mb.get(i);
+                if ((prev == '\r' || prev == '\n') && i + 3 <= mapLen && isStart(mb, i, starts)) {
+                    if (count == offsets.length) {
+                        offsets = Arrays.copyOf(offsets, count * 2);
+                    }
+                    offsets[count++] = pos + i;
+                } else if (b == '\n' && count > 0) {
+                    lineFeeds.set(count - 1);
+                }
+                prev = b;
+            }
+            pos += len;
+        }
+    }
+
+    /*
+     * Check whether the bytes at i are one of the record start IDs.  The
+     * caller makes sure there are three bytes to look at.
+     */
+    static boolean isStart(ByteBuffer mb, int i, byte[][] starts) {
+        for (int s = 0; s < starts.length; s++) {
+            if (mb.get(i) == starts[s][0] && mb.get(i + 1) == starts[s][1]
+                    && mb.get(i + 2) == starts[s][2]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return the number of records in the file.
+     *
+     * @return int
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Return where a record starts in the file.
+     *
+     * @param position the record number, counting from 1
+     * @return the byte offset
+     */
+    public long getOffset(int position) {
+        checkPosition(position);
+        return offsets[position - 1];
+    }
+
+    /**
+     * Return a record by number.  Nothing before it is read.
+     *
+     * @param position the record number, counting from 1
+     * @return the record
+     * @throws IOException if the file can't be mapped
+     * @throws IndexOutOfBoundsException if there's no such record
+     */
+    public Hl7Record get(int position) throws IOException {
+        ByteBuffer bb = map(position);
+        if (lineFeeds.get(position - 1)) {
+            return Hl7Record.fromBytes(normalize(bb), charset);
+        }
+        return Hl7Record.fromBytes(bb, charset);
+    }
+
+    /**
+     * Return a copy of a record's bytes, exactly as they are in the file.
+     *
+     * @param position the record number, counting from 1
+     * @return the bytes
+     * @throws IOException if the file can't be mapped
+     */
+    public byte[] getBytes(int position) throws IOException {
+        ByteBuffer bb = map(position);
+        byte[] data = new byte[bb.remaining()];
+        bb.get(data);
+        return data;
+    }
+
+    /**
+     * Close the file.  Records already handed out stay usable.
+     */
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void checkPosition(int position) {
+        if (position < 1 || position > count) {
+            throw new IndexOutOfBoundsException("Record " + position + " of "
+                    + count);
+        }
+    }
+
+    /*
+     * Return a buffer holding just the given record.  The last window
+     * mapped is kept, so reading neighbouring records doesn't map again.
+     */
+    private synchronized ByteBuffer map(int position) throws IOException {
+        checkPosition(position);
+        long start = offsets[position - 1];
+        long end = position < count ? offsets[position] : fileSize;
+        if (end - start > Integer.MAX_VALUE) {
+            throw new IOException("Record " + position + " is too large to map");
+        }
+        if (current == null || start < currentStart
+                || end > currentStart + current.capacity()) {
+            long len = Math.max(Math.min(window, fileSize - start), end - start);
+            current = channel.map(FileChannel.MapMode.READ_ONLY, start, len);
+            currentStart = start;
+        }
+        ByteBuffer bb = current.duplicate();
+        bb.position((int) (start - currentStart));
+        bb.limit((int) (end - currentStart));
+        return bb.slice();
+    }
+
+    /*
+     * Copy a record, making CR LF and lone LF into CR.
+     */
+    static byte[] normalize(ByteBuffer bb) {
+        byte[] data = new byte[bb.remaining()];
+        int len = 0;
+        byte prev = 0;
+        while (bb.hasRemaining()) {
+            byte b = bb.get();
+            if (b == '\n') {
+                if (prev != '\r') {
+                    data[len++] = '\r';
+                }
+            } else {
+                data[len++] = b;
+            }
+            prev = b;
+        }
+        return len == data.length ? data : Arrays.copyOf(data, len);
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * ParallelBatchParser.java
+ *
+ * Copyright (C) 2004-2012 M Litherland
+ */
+
+package org.nule.lighthl7lib.util;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import org.nule.lighthl7lib.hl7.*;
+
+/**
+ *
+ * @author mike
+ *
+ * Work through a batch file on all available cores.  The file is cut into
+ * chunks of roughly equal size, each cut is moved forward to the next
+ * record start (a line beginning with MSH, BHS or FHS by default), and the
+ * chunks are mapped and parsed as separate tasks on a ForkJoinPool.  Each
+ * record is turned into an Hl7Record on the mapped bytes and handed to the
+ * caller's work function in the task that found it; the results go to a
+ * sink either in file order, from the calling thread, or as soon as they
+ * are ready, from whichever pool thread made them.
+ *
+ * Settings should be made before process() is called.  One parser can
+ * process several files at once.
+ */
+public class ParallelBatchParser {
+
+    private static final int DEFAULT_CHUNK = 16 * 1024 * 1024;
+    // How far we map at a time while looking for a record start.
+    private static final int PROBE = 64 * 1024;
+
+    private final ForkJoinPool pool;
+    private int chunkSize = DEFAULT_CHUNK;
+    private Charset charset = StandardCharsets.ISO_8859_1;
+    private byte[][] starts = MappedRecordFile.startBytes(
+            MappedRecordFile.DEFAULT_STARTS, charset);
+
+    /**
+     * Create a parser that runs on the common pool.
+     */
+    public ParallelBatchParser() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Create a parser that runs on the given pool.
+     *
+     * @param newPool the pool to run on
+     */
+    public ParallelBatchParser(ForkJoinPool newPool) {
+        pool = newPool;
+    }
+
+    /**
+     * Set roughly how many bytes go into each task, 16MB by default.
+     *
+     * @param size the chunk size in bytes
+     */
+    public void setChunkSize(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Chunk size must be positive");
+        }
+        chunkSize = size;
+    }
+
+    /**
+     * Set the charset of the files, which has to be ASCII compatible.
+     * ISO-8859-1 by default.
+     *
+     * @param cs the charset
+     */
+    public void setCharset(Charset cs) {
+        Hl7Bytes.checkCharset(cs);
+        charset = cs;
+    }
+
+    /**
+     * Set the segment IDs that start a record.
+     *
+     * @param startIds three character segment IDs
+     */
+    public void setStartOfRecord(String[] startIds) {
+        starts = MappedRecordFile.startBytes(startIds, charset);
+    }
+
+    /**
+     * Parse every record in a file and pass each one through work, handing
+     * the results to sink.  In order the sink is called from this thread in
+     * the order the records are in the file; otherwise it is called from
+     * the pool threads as results are ready and has to be thread safe.
+     * Either way this returns once every record has been through the sink.
+     * In order, no more than twice the pool's parallelism chunks are parsed
+     * ahead of the one being delivered, so one slow chunk doesn't leave the
+     * results of the rest of the file waiting in memory.  If work or sink
+     * throws, the remaining chunks are stopped and waited
+     * for before the exception is passed on.
+     *
+     * @param file the batch file
+     * @param work what to do with each record, run on the pool
+     * @param sink where the results go
+     * @param ordered true to deliver results in file order
+     * @return the number of records processed
+     * @throws IOException if the file can't be read, or a chunk is too large
+     * to map because there's no record start in 2GB of it
+     */
+    public <R> long process(File file, Function<? super Hl7Record, ? extends R> work,
+            Consumer<? super R> sink, boolean ordered) throws IOException {
+        FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+        List<Chunk<R>> tasks = new ArrayList<Chunk<R>>();
+        AtomicBoolean stop = new AtomicBoolean();
+        boolean finished = false;
+        try {
+            long[] bounds = split(channel);
+            int chunks = bounds.length - 1;
+            for (int i = 0; i < chunks; i++) {
+                if (bounds[i + 1] - bounds[i] > Integer.MAX_VALUE) {
+                    throw new IOException("Chunk at " + bounds[i] + " is too large to map");
+                }
+            }
+            int ahead = ordered ? 2 * pool.getParallelism() : chunks;
+            AtomicLong total = new AtomicLong();
+            for (int i = 0; i < chunks; i++) {
+                while (tasks.size() < chunks && tasks.size() <= i + ahead) {
+                    int n = tasks.size();
+                    Chunk<R> task = new Chunk<R>(channel, bounds[n], bounds[n + 1], charset,
+                            starts, work, ordered ? null : sink, total, stop);
+                    tasks.add(task);
+                    pool.execute(task);
+                }
+                Chunk<R> task = tasks.get(i);
+                join(task);
+                if (ordered) {
+                    for (R result : task.results) {
+                        sink.accept(result);
+                    }
+                    task.results = null;
+                }
+            }
+            finished = true;
+            return total.get();
+        } finally {
+            if (!finished) {
+                // Don't unmap the file under chunks that are still running
+                stop.set(true);
+                for (Chunk<R> task : tasks) {
+                    task.quietlyJoin();
+                }
+            }
+            channel.close();
+        }
+    }
+
+    private static void join(ForkJoinTask<?> task) throws IOException {
+        try {
+            task.join();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /*
+     * Work out where the chunks start and end.  Each cut is moved forward to
+     * the next record start, and cuts that land in the same place collapse,
+     * so a record is never split.
+     */
+    private long[] split(FileChannel channel) throws IOException {
+        long size = channel.size();
+        List<Long> cuts = new ArrayList<Long>();
+        cuts.add(Long.valueOf(0));
+        long last = 0;
+        for (long pos = chunkSize; pos < size; pos += chunkSize) {
+            if (pos <= last) {
+                continue;
+            }
+            long cut = nextStart(channel, pos, size);
+            if (cut == size) {
+                break;
+            }
+            if (cut > last) {
+                cuts.add(Long.valueOf(cut));
+                last = cut;
+            }
+        }
+        cuts.add(Long.valueOf(size));
+        long[] bounds = new long[cuts.size()];
+        for (int i = 0; i < bounds.length; i++) {
+            bounds[i] = cuts.get(i).longValue();
+        }
+        return bounds;
+    }
+
+    /*
+     * Find the first record start at or after pos, or size if there isn't
+     * one.  The byte before pos is mapped too so we know whether pos is at
+     * the start of a line.
+     */
+    private long nextStart(FileChannel channel, long pos, long size) throws IOException {
+        long from = pos - 1;
+        while (from < size) {
+            int len = (int) Math.min(PROBE, size - from);
+            MappedByteBuffer mb = channel.map(FileChannel.MapMode.READ_ONLY, from, len);
+            for (int i = 1; i + 3 <= len; i++) {
+                byte prev = mb.get(i - 1);
+                if ((prev == '\r' || prev == '\n') && MappedRecordFile.isStart(mb, i, starts)) {
+                    return from + i;
+                }
+            }
+            if (from + len == size) {
+                break;
+            }
+            // Overlap so a start split over the edge is still seen
+            from += len - 3;
+        }
+        return size;
+    }
+
+    /*
+     * Parse the records in one chunk.  The chunk starts at a record start,
+     * except perhaps the first one which may have junk in front of it.
+     * Once stop is set it gives up at the next record.
+     */
+    private static class Chunk<R> extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final long start;
+        private final long end;
+        private final Charset charset;
+        private final byte[][] starts;
+        private final Function<? super Hl7Record, ? extends R> work;
+        private final Consumer<? super R> sink;
+        private final AtomicLong total;
+        private final AtomicBoolean stop;
+        private List<R> results;
+
+        Chunk(FileChannel channel, long start, long end, Charset charset,
+                byte[][] starts, Function<? super Hl7Record, ? extends R> work,
+                Consumer<? super R> sink, AtomicLong total, AtomicBoolean stop) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+            this.charset = charset;
+            this.starts = starts;
+            this.work = work;
+            this.sink = sink;
+            this.total = total;
+            this.stop = stop;
+        }
+
+        @Override
+        protected void compute() {
+            MappedByteBuffer mb;
+            try {
+                mb = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (sink == null) {
+                results = new ArrayList<R>();
+            }
+            int len = mb.capacity();
+            int recStart = -1;
+            boolean lineFeed = false;
+            byte prev = '\r';
+            for (int i = 0; i < len; i++) {
+                byte b = mb.get(i);
+                if ((prev == '\r' || prev == '\n') && i + 3 <= len
+                        && MappedRecordFile.isStart(mb, i, starts)) {
+                    if (stop.get()) {
+                        return;
+                    }
+                    if (recStart != -1) {
+                        handle(mb, recStart, i, lineFeed);
+                    }
+                    recStart = i;
+                    lineFeed = false;
+                } else if (b == '\n') {
+                    lineFeed = true;
+                }
+                prev = b;
+            }
+            if (recStart != -1 && !stop.get()) {
+                handle(mb, recStart, len, lineFeed);
+            }
+        }
+
+        private void handle(MappedByteBuffer mb, int from, int to, boolean lineFeed) {
+            ByteBuffer bb = mb.duplicate();
+            bb.position(from);
+            bb.limit(to);
+            Hl7Record hr = lineFeed
+                    ? Hl7Record.fromBytes(MappedRecordFile.normalize(bb), charset)
+                    : Hl7Record.fromBytes(bb, charset);
+            R result = work.apply(hr);
+            if (sink == null) {
+                results.add(result);
+            } else {
+                sink.accept(result);
+            }
+            total.incrementAndGet();
+        }
+    }
+}
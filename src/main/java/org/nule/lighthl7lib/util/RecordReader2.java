@@ -15,7 +15,7 @@ import java.io.*;
  * @author litherm
  *
  * Implement all the same features as LineReader, but read
- * in a record oriented fashion.
+ * in a record oriented fashion.  For large inputs use ChannelRecordReader.
  */
 public class RecordReader2 extends LineReader {
     
@@ -72,12 +72,10 @@ public class RecordReader2 extends LineReader {
         if (complete != null) {
             return complete.replaceAll("\n", "");
         }
+        char[] c = new char[1024];
         while (true) {
-            char[] c = new char[1024];
-            if (r.read(c) == -1) {
-                if (c[0] != 0) {
-                    sb.append(new String(c));
-                }
+            int size = r.read(c);
+            if (size == -1) {
                 if (sb.length() == 0) {
                     return null;
                 } else {
@@ -86,7 +84,7 @@ public class RecordReader2 extends LineReader {
                     return s.replaceAll("\n", "");
                 }
             }
-            sb.append(c);
+            sb.append(c, 0, size);
             complete = hasCompleteRecord();
             if (complete != null) {
                 return complete.replaceAll("\n", "");
@@ -0,0 +1,71 @@
+/*
+ * TestCleanString.java
+ *
+ * Copyright (C) 2004-2012 M Litherland
+ */
+
+package org.nule.lighthl7lib.tests;
+
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import junit.framework.TestCase;
+import org.nule.lighthl7lib.hl7.*;
+
+/**
+ *
+ * @author mike
+ *
+ * Finding the HL7 in a noisy string, as text and as bytes.
+ */
+public class TestCleanString extends TestCase {
+
+    public void testCleanScanner() {
+        // The scanner has to agree with the regex rules it replaced
+        Pattern firstSeg = Pattern.compile(".*?(MSH\\W.*)");
+        Pattern nextSegs = Pattern.compile("[A-Z0-9]{3}.*");
+        String alphabet = "MSHMSH|^~\\&\r\r\nA1a_ \u0085\u00e9";
+        Random random = new Random(42);
+        for (int n = 0; n < 3000; n++) {
+            StringBuilder sb = new StringBuilder();
+            int len = random.nextInt(40);
+            for (int i = 0; i < len; i++) {
+                sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            if (n % 3 == 0) {
+                sb.insert(random.nextInt(sb.length() + 1), "MSH|^~\\&|X\rPID|1\rZZ9||");
+            }
+            String dirty = sb.toString();
+            String[] all = dirty.split("\r");
+            StringBuilder expected = new StringBuilder();
+            int c;
+            for (c = 0; c < all.length; c++) {
+                Matcher m = firstSeg.matcher(all[c]);
+                if (m.matches()) {
+                    expected.append(m.group(1)).append("\r");
+                    break;
+                }
+            }
+            if (expected.length() > 0) {
+                for (int i = c + 1; i < all.length && nextSegs.matcher(all[i]).matches(); i++) {
+                    expected.append(all[i]).append("\r");
+                }
+            }
+            assertEquals(dirty, expected.toString(), Hl7RecordUtil.safeCleanString(dirty));
+            String[] charsets = {"ISO-8859-1", "UTF-8"};
+            for (int i = 0; i < charsets.length; i++) {
+                Charset cs = Charset.forName(charsets[i]);
+                byte[] data = ("xx" + dirty).getBytes(cs);
+                int[] b = Hl7RecordUtil.cleanBounds(data, 2, data.length - 2, cs);
+                String got = b == null ? "" : new String(data, b[0], b[1] - b[0], cs) + "\r";
+                assertEquals(dirty, expected.toString(), got);
+            }
+        }
+        String noisy = "junk\r12:00 <" + TestRecords.REC1 + ">\r";
+        int[] bounds = Hl7RecordUtil.cleanBounds(noisy, 0, noisy.length());
+        assertEquals(noisy.indexOf("MSH"), bounds[0]);
+        assertEquals(noisy.indexOf("you") + 3, bounds[1]);
+        assertNull(Hl7RecordUtil.cleanBounds("no hl7 here\rMSH\r", 0, 16));
+    }
+}
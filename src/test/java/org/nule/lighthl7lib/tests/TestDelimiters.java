@@ -0,0 +1,61 @@
+/*
+ * TestDelimiters.java
+ *
+ * Copyright (C) 2004-2012 M Litherland
+ */
+
+package org.nule.lighthl7lib.tests;
+
+import java.nio.charset.Charset;
+import java.util.*;
+import junit.framework.TestCase;
+import org.nule.lighthl7lib.hl7.*;
+
+/**
+ *
+ * @author mike
+ *
+ * Delimiter sets and the separator arrays shared across a record.
+ */
+public class TestDelimiters extends TestCase {
+
+    public void testDelimiters() {
+        Hl7Record rec = new Hl7Record(TestRecords.REC1);
+        assertSame(Hl7Delimiters.DEFAULT, Hl7Delimiters.fromHeader(TestRecords.REC1));
+        assertEquals("|^~\\&", Hl7Delimiters.DEFAULT.toString());
+        assertEquals(Arrays.asList(Hl7RecordUtil.setSeparators(TestRecords.REC1)),
+                Arrays.asList(Hl7Delimiters.DEFAULT.toArray()));
+        Hl7Delimiters hashes = Hl7Delimiters.of('#', '*', '~', '\\', '&');
+        assertSame(hashes, Hl7Delimiters.fromHeader("MSH#*~\\&#A"));
+        assertEquals('*', hashes.getComponent());
+        assertEquals('\\', hashes.getEscape());
+        assertFalse(hashes.equals(Hl7Delimiters.DEFAULT));
+        try {
+            Hl7Delimiters.fromHeader("ZZZ|^~\\&|");
+            fail("Took delimiters from something that isn't a header");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            Hl7Delimiters.fromHeader("MSH|^");
+            fail("Took delimiters from a header that is cut short");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            Hl7Record.fromBytes("MSH|^".getBytes(), Charset.forName("US-ASCII"));
+            fail("Made a record from a header that is cut short");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        // Nodes share one array but only ever hand out copies of it
+        String[] seps = rec.getSeparators();
+        assertNotSame(seps, rec.getSeparators());
+        seps[4] = "#";
+        assertEquals("hl7", rec.get("ZZZ").field(2).toString());
+        Hl7Segment seg = new Hl7Segment("ZZZ#a*b", hashes.toArray());
+        assertEquals("b", seg.field(1).getComp(2).toString());
+        assertEquals("#", seg.getSeparators()[4]);
+    }
+}
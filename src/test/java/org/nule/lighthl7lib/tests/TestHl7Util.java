@@ -7,6 +7,9 @@
  */
 package org.nule.lighthl7lib.tests;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 import junit.framework.TestCase;
@@ -197,6 +200,335 @@ public class TestHl7Util extends TestCase {
         assertEquals("", h7u.get("ZZZ").field(4).getComp(2).getSubcomp(5).toString());
     }
 
+    /**
+     * Segments are indexed in one pass and only created on request, make sure
+     * the untouched ones still come through a rebuild and that the split
+     * rules (trailing empties dropped, short segments rejected) still hold.
+     */
+    public void testSegmentIndex() {
+        Hl7Record hl7 = new Hl7Record(testRec2 + "\r\r");
+        assertEquals(10, hl7.size());
+        assertEquals("AIL|", hl7.get(6).toString());
+        assertEquals("NTE|", hl7.get("NTE", 5).toString());
+        assertEquals(null, hl7.get("NT"));
+        hl7.get("PID").field(1).changeField("changed");
+        hl7.rebuild();
+        assertEquals(testRec2.replaceFirst("PID[|]", "PID|changed"), hl7.toString());
+        try {
+            hl7.get(11);
+            fail("Expected an IndexOutOfBoundsException");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+        hl7 = new Hl7Record("MSH|^~\\&|\rPI\rPID|\r");
+        try {
+            hl7.size();
+            fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * The tokenizer has to follow the String.split rules the old regex code
+     * relied on.
+     */
+    public void testTokenizerSplitRules() {
+        String[] samples = {"", "a", "a^b", "^^", "a^^", "^a", "a^^b^", "^"};
+        for (int i = 0; i < samples.length; i++) {
+            String[] expected = samples[i].split("\\^");
+            int[] bounds = Hl7Tokenizer.split(samples[i], 0, samples[i].length(), '^', null);
+            assertEquals(samples[i], expected.length, bounds[0]);
+            assertEquals(samples[i], expected.length,
+                    Hl7Tokenizer.count(samples[i], 0, samples[i].length(), '^'));
+            for (int j = 0; j < expected.length; j++) {
+                assertEquals(expected[j], samples[i].substring(bounds[j * 2 + 1], bounds[j * 2 + 2]));
+            }
+        }
+        Hl7Record hl7 = new Hl7Record("MSH|^~\\&|\rPID|^^|a^^b^|\r");
+        assertEquals(0, hl7.get("PID").field(1).getCompCount());
+        assertEquals(3, hl7.get("PID").field(2).getCompCount());
+        assertEquals("b", hl7.get("PID").field(2).getComp(3).toString());
+    }
+
+    /**
+     * Segments and fields are views onto the record text until they are
+     * changed, make sure the character sequence accessors line up with the
+     * strings.
+     */
+    public void testTextViews() {
+        Hl7Segment zzz = h7u.get("ZZZ");
+        assertEquals(zzz.toString(), zzz.getText().toString());
+        CharSequence comp = zzz.field(4).getComp(2).getText();
+        assertEquals("if&I&did&I", comp.toString());
+        assertEquals(10, comp.length());
+        assertEquals('&', comp.charAt(2));
+        assertEquals("I&did", comp.subSequence(3, 8).toString());
+        zzz.field(4).getComp(2).getSubcomp(3).changeField("do");
+        assertEquals("do", zzz.field(4).getComp(2).getSubcomp(3).getText().toString());
+        h7u.rebuild();
+        assertEquals("even^if&I&do&I^wouldn't^tell", h7u.get("ZZZ").field(4).getText().toString());
+    }
+
+    /**
+     * Records made from raw bytes should find the same structure and only
+     * decode what is read.
+     */
+    public void testFromBytes() throws Exception {
+        String msg = "MSH|^~\\&|ABC|DEF|||20090113083316||ORU^R01|12345|P|2.5\r" +
+                "PID|||1234567^^^1||M\u00dcLLER^J\u00dcRGEN||19901111|F\r";
+        Charset utf8 = Charset.forName("UTF-8");
+        Hl7Record hl7 = Hl7Record.fromBytes(msg.getBytes(utf8), utf8);
+        assertEquals("ORU^R01", hl7.getField("MSH:9"));
+        assertEquals("J\u00dcRGEN", hl7.get("PID").field(5).getComp(2).toString());
+        // A view reads the same characters as toString(), bytes or not
+        CharSequence name = hl7.get("PID").field(5).getText();
+        assertEquals(13, name.length());
+        assertEquals('\u00dc', name.charAt(1));
+        assertEquals(hl7.get("PID").toString(), hl7.get("PID").getText().toString());
+        assertEquals(hl7.get("PID").toString().length(), hl7.get("PID").getText().length());
+        CharSequence id = hl7.get("PID").field(3).getText();
+        assertEquals("1234567^^^1", id.toString());
+        assertEquals('1', id.charAt(0));
+        assertEquals(2, hl7.size());
+        assertEquals(msg, hl7.toString());
+        hl7.get("PID").field(8).changeField("M");
+        hl7.rebuild();
+        assertEquals(msg.replace("|F\r", "|M\r"), hl7.toString());
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(200);
+        direct.put(msg.getBytes(utf8)).flip();
+        hl7 = Hl7Record.fromBytes(direct, utf8);
+        assertEquals("1234567^^^1", hl7.getField("PID:3"));
+        assertEquals(0, direct.position());
+        try {
+            Hl7Record.fromBytes(msg.getBytes("UTF-16"), Charset.forName("UTF-16"));
+            fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        // Shift_JIS keeps ASCII as is, but the trail byte of \u30dd is '|'
+        Charset sjis = Charset.forName("Shift_JIS");
+        try {
+            Hl7Record.fromBytes("MSH|^~\\&|A\rPID|1||\u30ddX|Y\r".getBytes(sjis), sjis);
+            fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        Hl7Bytes.checkCharset(Charset.forName("windows-1252"));
+        Hl7Bytes.checkCharset(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Compiled paths should behave like the FieldMatch they replace and be
+     * reused from the cache.
+     */
+    public void testCompiledFieldPath() {
+        Hl7Record hl7 = new Hl7Record(testRec1);
+        FieldPath fp = FieldMatch.compile("ZZZ:4-0-2-3");
+        assertSame(fp, FieldMatch.compile("ZZZ:4-0-2-3"));
+        assertEquals("did", fp.getField(hl7));
+        assertEquals(FieldMatch.verifyFields("ZZZ:3-2").getField(hl7),
+                FieldMatch.compile("ZZZ:3-2").getField(hl7));
+        assertEquals("ZZZ", FieldMatch.compile("ZZZ2:1").getSegment());
+        assertEquals(2, FieldMatch.compile("ZZZ2:1").getSegRep());
+        assertEquals(null, FieldMatch.compile("ZZZ2:1").getField(hl7));
+        assertEquals(null, FieldMatch.compile("ZZZ"));
+        assertEquals(null, FieldMatch.compile("zzz:1"));
+        assertEquals(null, FieldMatch.compile("ZZZ:1-2-3-4-5"));
+        FieldMatch fm = new FieldMatch("ZZZ", 0, 4, 0, 2, 3);
+        assertEquals("did", fm.compile().getField(hl7));
+    }
+
+    /**
+     * Extracting several fields in one pass should give the same answers as
+     * asking for them one at a time.
+     */
+    public void testFieldExtractor() {
+        String repRec = "MSH|^~\\&|ABC|DEF|||20040825120000||ADT^A18||P|2.3||||NE|\r" +
+                "EVN|\rPID||||SMITH^BOB^A|||\rRCX||test1||\rRCX||test2^x&y||\r";
+        String[] defs = {"MSH:9-0-2", "PID:4-0-2", "RCX2:2-0-2-2", "RCX:2", "OBX:5", "MSH:3"};
+        Hl7Record hl7 = new Hl7Record(repRec);
+        FieldExtractor fe = new FieldExtractor(defs);
+        String[] got = fe.extract(hl7);
+        assertEquals(defs.length, got.length);
+        for (int i = 0; i < defs.length; i++) {
+            assertEquals(defs[i], hl7.getField(defs[i]), got[i]);
+        }
+        assertEquals("y", got[2]);
+        assertEquals(null, got[4]);
+        String[][] columns = new String[defs.length][2];
+        fe.extract(hl7, columns, 1);
+        assertEquals("BOB", columns[1][1]);
+        // A segment that isn't three characters is never there
+        FieldPath odd = new FieldPath("PI:4", "PI", 0, 4, 0, 0, 0);
+        got = new FieldExtractor(new FieldPath[] {odd, FieldMatch.compile("PID:4-0-2")})
+                .extract(hl7);
+        assertNull(got[0]);
+        assertEquals("BOB", got[1]);
+        try {
+            new FieldExtractor(new String[] {"bad"});
+            fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Lookups by ID go through an index, make sure it follows the record as
+     * segments are added.
+     */
+    public void testSegmentIdIndex() {
+        StringBuilder sb = new StringBuilder("MSH|^~\\&|\rOBR|1\r");
+        for (int i = 1; i <= 500; i++) {
+            sb.append("OBX|").append(i).append("\rNTE|").append(i).append("\r");
+        }
+        Hl7Record hl7 = new Hl7Record(sb.toString());
+        assertEquals(500, hl7.size("OBX"));
+        assertEquals(0, hl7.size("PID"));
+        for (int i = 1; i <= 500; i++) {
+            assertEquals(String.valueOf(i), hl7.get("OBX", i).field(1).toString());
+        }
+        assertEquals(null, hl7.get("OBX", 501));
+        assertEquals(null, hl7.get("OBX", 0));
+        hl7.add(2, "OBX");
+        hl7.append("OBX");
+        assertEquals(502, hl7.size("OBX"));
+        assertEquals("OBX|", hl7.get("OBX", 1).toString());
+        assertEquals("1", hl7.get("OBX", 2).field(1).toString());
+        assertEquals("OBX|", hl7.get("OBX", 502).toString());
+        Hl7SegmentGroup group = hl7.getGroup("OBR");
+        assertEquals("250", group.get("NTE", 250).field(1).toString());
+        group.add(1, "NTE");
+        assertEquals("NTE|", group.get("NTE", 1).toString());
+    }
+
+    /**
+     * A rebuild should only serialize changed segments and keep the parsed
+     * tree for everything else.
+     */
+    public void testIncrementalRebuild() {
+        String msg = "MSH|^~\\&|A|B|||\rPID|1||123^^^X||DOE^JOHN||\rPV1|1|I|\r";
+        Hl7Record hl7 = new Hl7Record(msg);
+        Hl7Segment pid = hl7.get("PID");
+        Hl7Field name = pid.field(5);
+        assertEquals("JOHN", name.getComp(2).toString());
+        assertFalse(pid.isChanged());
+        // Reading alone doesn't change anything, trailing separators and all
+        hl7.rebuild();
+        assertEquals(msg, hl7.toString());
+        Hl7Segment pv1 = hl7.get("PV1");
+        pv1.field(2).changeField("O");
+        assertTrue(pv1.isChanged());
+        assertFalse(pid.isChanged());
+        hl7.rebuild();
+        assertFalse(pv1.isChanged());
+        assertEquals("MSH|^~\\&|A|B|||\rPID|1||123^^^X||DOE^JOHN||\rPV1|1|O\r", hl7.toString());
+        // The tree we already had is still the live one
+        assertSame(pid, hl7.get("PID"));
+        name.getComp(2).changeField("JANE");
+        hl7.rebuild();
+        assertEquals("MSH|^~\\&|A|B|||\rPID|1||123^^^X||DOE^JANE\rPV1|1|O\r", hl7.toString());
+        assertEquals("123^^^X", hl7.get("PID").field(3).toString());
+        // New separators mean everything is parsed again
+        hl7.get("MSH").field(2).changeField("^~\\#");
+        hl7.rebuild();
+        assertEquals("#", hl7.getSeparators()[7]);
+        assertEquals("DOE^JANE", hl7.get("PID").field(5).toString());
+    }
+
+    /**
+     * The generated acks should match FormatAck, apart from the time.
+     */
+    public void testAckGenerator() {
+        String msg = "MSH|^~\\&|SEND|SFAC|RECV|RFAC|20120101||ADT^A01|CTL42|P|2.3\r"
+                + "PID|1||123||DOE^JOHN\r";
+        String stamp = "\\|\\d{14}\\|";
+        AckGenerator gen = new AckGenerator();
+        FormatAck fa = new FormatAck(msg);
+        assertEquals(fa.getAck().replaceAll(stamp, "|T|"),
+                gen.getAck(msg).replaceAll(stamp, "|T|"));
+        assertEquals(fa.getNack().replaceAll(stamp, "|T|"),
+                gen.getNack(msg).replaceAll(stamp, "|T|"));
+        assertEquals(fa.getException().replaceAll(stamp, "|T|"),
+                gen.getException(msg).replaceAll(stamp, "|T|"));
+        String fromBytes = gen.build(msg.getBytes(), StandardCharsets.ISO_8859_1,
+                "AE", "Bad PID", "^^^207&Application internal error&HL70357");
+        Hl7Record ack = new Hl7Record(fromBytes);
+        assertEquals("RECV", ack.get("MSH").field(3).toString());
+        assertEquals("SEND", ack.get("MSH").field(5).toString());
+        assertEquals("CTL42", ack.get("MSA").field(2).toString());
+        assertEquals("Bad PID", ack.get("MSA").field(3).toString());
+        assertEquals("207", ack.get("ERR").field(1).getComp(4).getSubcomp(1).toString());
+        // Short headers and other delimiters
+        Hl7Record shortAck = new Hl7Record(gen.getAck("MSH#$~\\&#A#B\r"));
+        assertEquals("A", shortAck.get("MSH").field(5).toString());
+        assertEquals("B", shortAck.get("MSH").field(6).toString());
+        assertEquals("", shortAck.get("MSA").field(2).toString());
+        try {
+            gen.getAck("PID|1||123\r");
+            fail("Expected a non HL7 message to be refused");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Escape handling beyond the basic delimiters, and the no-copy path.
+     */
+    public void testEscapeCodec() {
+        String[] seps = Hl7RecordUtil.setSeparators("MSH|^~\\&|");
+        String plain = "NOTHING TO DO HERE";
+        assertSame(plain, Hl7Escape.unescape(plain, seps));
+        assertSame(plain, Hl7Escape.escape(plain, seps));
+        assertEquals("A|B^C~D&E\\F", Hl7Escape.unescape("A\\F\\B\\S\\C\\R\\D\\T\\E\\E\\F", seps));
+        assertEquals("A\\F\\B\\S\\C\\R\\D\\T\\E\\E\\F", Hl7Escape.escape("A|B^C~D&E\\F", seps));
+        assertEquals("LINE1\nLINE2", Hl7Escape.unescape("LINE1\\.br\\LINE2", seps));
+        assertEquals("LINE1\\.br\\LINE2\\.br\\LINE3",
+                Hl7Escape.escape("LINE1\r\nLINE2\rLINE3", seps));
+        assertEquals("A\n\nB", Hl7Escape.unescape("A\\.sp 2\\B", seps));
+        assertEquals("A   B", Hl7Escape.unescape("A\\.sk3\\B", seps));
+        assertEquals("\u00dcBER", Hl7Escape.unescape("\\XDC\\BER", seps));
+        assertEquals("BOLD TEXT", Hl7Escape.unescape("\\H\\BOLD\\N\\ TEXT\\.in -4\\", seps));
+        // Things we don't understand stay put
+        assertEquals("\\Zlocal\\ \\XZZ\\ \\Q\\ \\F", Hl7Escape.unescape("\\Zlocal\\ \\XZZ\\ \\Q\\ \\F", seps));
+        // Other delimiters
+        String[] odd = Hl7RecordUtil.setSeparators("MSH#$*!%#");
+        assertEquals("A#B$C!D", Hl7Escape.unescape("A!F!B!S!C!E!D", odd));
+        assertEquals("A!F!B!.br!C", Hl7Escape.escape("A#B\nC", odd));
+        Hl7Record hl7 = new Hl7Record("MSH|^~\\&|A|\rNTE|1||FIRST\\.br\\SECOND\r");
+        assertEquals("FIRST\nSECOND", hl7.get("NTE").field(3).toStringEsc());
+        hl7.get("NTE").field(3).changeFieldEsc("ONE\nTWO|THREE");
+        assertEquals("MSH|^~\\&|A|\rNTE|1||ONE\\.br\\TWO\\F\\THREE\r", hl7.rebuild());
+    }
+
+    /**
+     * A segment given new text, or a new ID through field 0, is found by its
+     * new ID once the record is rebuilt.
+     */
+    public void testChangeSegmentId() {
+        Hl7Record rec = new Hl7Record("MSH|^~\\&|A|B\rPID|1|x\rPV1|1\r");
+        Hl7Segment pid = rec.get("PID");
+        pid.changeSegment("ZZZ|changed");
+        rec.rebuild();
+        assertSame(pid, rec.get("ZZZ"));
+        assertNull(rec.get("PID"));
+        assertEquals(Arrays.asList(new String[] {"MSH", "ZZZ", "PV1"}), rec.listSegments());
+        assertTrue(rec.isSegment(2, "ZZZ"));
+
+        rec.get("PV1").field(0).changeField("OBX");
+        rec.rebuild();
+        assertNull(rec.get("PV1"));
+        assertEquals("OBX|1", rec.get("OBX").toString());
+        assertEquals("MSH|^~\\&|A|B\rZZZ|changed\rOBX|1\r", rec.toString());
+
+        // Text that is now two segments is parsed again as two
+        rec.get("ZZZ").changeSegment("NTE|1\rNTE|2");
+        rec.rebuild();
+        assertEquals(4, rec.size());
+        assertEquals("NTE|2", rec.get("NTE", 2).toString());
+    }
+
     /**
      * Test new functionality to allow for the alteration of messages.
      *
@@ -0,0 +1,485 @@
+/*
+ * TestMllp.java
+ *
+ * Copyright (C) 2004-2012 M Litherland
+ */
+
+package org.nule.lighthl7lib.tests;
+
+import java.io.*;
+import java.net.Socket;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import junit.framework.TestCase;
+import org.nule.lighthl7lib.hl7.*;
+import org.nule.lighthl7lib.mllp.*;
+import org.nule.lighthl7lib.util.*;
+
+/**
+ *
+ * @author mike
+ *
+ * MLLP framing and the listener, over loopback.
+ */
+public class TestMllp extends TestCase {
+
+    private static final String MSG1 = "MSH|^~\\&|SEND|SFAC|RECV|RFAC|20120101||ADT^A01|ONE|P|2.3\rPID|1||123\r";
+    private static final String MSG2 = "MSH|^~\\&|SEND|SFAC|RECV|RFAC|20120101||ADT^A01|TWO|P|2.3\rPID|1||456\r";
+    private static final String BAD = "MSH|^~\\&|SEND|SFAC|RECV|RFAC|20120101||ADT^A01|BAD|P|2.3\rPID|1||REJECT\r";
+
+    // Set by a fake receiver that goes wrong, checked once it has finished
+    private volatile Throwable fakeFailure;
+
+    public void testCodecPartialFrames() throws IOException {
+        byte[] one = MllpCodec.encode(MSG1.getBytes());
+        byte[] two = MllpCodec.encode(MSG2.getBytes());
+        byte[] stream = new byte[one.length + two.length + 4];
+        stream[0] = '\n';
+        System.arraycopy(one, 0, stream, 1, one.length);
+        System.arraycopy(two, 0, stream, one.length + 1, two.length);
+        MllpCodec codec = new MllpCodec();
+        // Feed it a few bytes at a time
+        StringBuilder got = new StringBuilder();
+        for (int i = 0; i < stream.length; i += 5) {
+            ByteBuffer bb = ByteBuffer.wrap(stream, i, Math.min(5, stream.length - i));
+            byte[] frame;
+            while ((frame = codec.decode(bb)) != null) {
+                got.append(new String(frame)).append('#');
+            }
+        }
+        assertEquals(MSG1 + "#" + MSG2 + "#", got.toString());
+        assertFalse(codec.inFrame());
+
+        ByteBuffer[] parts = MllpCodec.frame(ByteBuffer.wrap(MSG1.getBytes()));
+        assertEquals(3, parts.length);
+        assertEquals(MllpCodec.START_BLOCK, parts[0].get(0));
+        assertEquals(MllpCodec.END_BLOCK, parts[2].get(0));
+
+        MllpCodec small = new MllpCodec(10);
+        try {
+            small.decode(ByteBuffer.wrap(one));
+            fail("Expected an oversized frame to be refused");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testListenerLoopback() throws Exception {
+        MllpListener listener = new MllpListener(0, new MllpHandler() {
+            public String handle(Hl7Record message) throws Exception {
+                if ("REJECT".equals(message.get("PID").field(3).toString())) {
+                    throw new Exception("Can't take PID|REJECT");
+                }
+                return null;
+            }
+        });
+        listener.start();
+        try {
+            Socket s = new Socket("127.0.0.1", listener.getPort());
+            try {
+                OutputStream out = s.getOutputStream();
+                InputStream in = s.getInputStream();
+                // Two messages in one write, then one split in half
+                byte[] one = MllpCodec.encode(MSG1.getBytes());
+                byte[] two = MllpCodec.encode(MSG2.getBytes());
+                byte[] both = new byte[one.length + two.length];
+                System.arraycopy(one, 0, both, 0, one.length);
+                System.arraycopy(two, 0, both, one.length, two.length);
+                out.write(both);
+                out.flush();
+                byte[] bad = MllpCodec.encode(BAD.getBytes());
+                out.write(bad, 0, 20);
+                out.flush();
+                Thread.sleep(50);
+                out.write(bad, 20, bad.length - 20);
+                out.flush();
+                MllpCodec codec = new MllpCodec();
+                Hl7Record ack1 = new Hl7Record(new String(readFrame(in, codec)));
+                Hl7Record ack2 = new Hl7Record(new String(readFrame(in, codec)));
+                Hl7Record ack3 = new Hl7Record(new String(readFrame(in, codec)));
+                assertEquals("AA", ack1.get("MSA").field(1).toString());
+                assertEquals("ONE", ack1.get("MSA").field(2).toString());
+                assertEquals("RECV", ack1.get("MSH").field(3).toString());
+                assertEquals("TWO", ack2.get("MSA").field(2).toString());
+                assertEquals("AE", ack3.get("MSA").field(1).toString());
+                assertEquals("BAD", ack3.get("MSA").field(2).toString());
+                assertEquals("Can't take PID|REJECT", ack3.get("MSA").field(3).toStringEsc());
+            } finally {
+                s.close();
+            }
+        } finally {
+            listener.close();
+        }
+    }
+
+    /**
+     * A frame with a header cut short is dropped without taking the listener,
+     * or even the connection, down with it.
+     */
+    public void testListenerShortFrame() throws Exception {
+        MllpListener listener = new MllpListener(0, null);
+        listener.start();
+        try {
+            Socket s = new Socket("127.0.0.1", listener.getPort());
+            try {
+                s.setSoTimeout(10000);
+                OutputStream out = s.getOutputStream();
+                out.write(MllpCodec.encode("MSH|^".getBytes()));
+                out.write(MllpCodec.encode(MSG1.getBytes()));
+                out.flush();
+                Hl7Record ack = new Hl7Record(new String(readFrame(s.getInputStream(),
+                        new MllpCodec())));
+                assertEquals("ONE", ack.get("MSA").field(2).toString());
+            } finally {
+                s.close();
+            }
+            Socket next = new Socket("127.0.0.1", listener.getPort());
+            try {
+                next.setSoTimeout(10000);
+                next.getOutputStream().write(MllpCodec.encode(MSG2.getBytes()));
+                Hl7Record ack = new Hl7Record(new String(readFrame(next.getInputStream(),
+                        new MllpCodec())));
+                assertEquals("TWO", ack.get("MSA").field(2).toString());
+            } finally {
+                next.close();
+            }
+        } finally {
+            listener.close();
+        }
+    }
+
+    /**
+     * A peer that sends far more than it reads still gets every ack, in
+     * order, once it starts reading.
+     */
+    public void testListenerSlowReader() throws Exception {
+        MllpListener listener = new MllpListener(0, null);
+        listener.start();
+        final int count = 3000;
+        try {
+            final Socket s = new Socket("127.0.0.1", listener.getPort());
+            try {
+                s.setSoTimeout(10000);
+                Thread writer = new Thread() {
+                    public void run() {
+                        try {
+                            OutputStream out = new BufferedOutputStream(s.getOutputStream());
+                            for (int i = 0; i < count; i++) {
+                                out.write(MllpCodec.encode(MSG1.replace("|ONE|", "|M" + i + "|").getBytes()));
+                            }
+                            out.flush();
+                        } catch (IOException e) {
+                            // The reads below will fail
+                        }
+                    }
+                };
+                writer.start();
+                Thread.sleep(200);
+                InputStream in = new BufferedInputStream(s.getInputStream());
+                MllpCodec codec = new MllpCodec();
+                for (int i = 0; i < count; i++) {
+                    Hl7Record ack = new Hl7Record(new String(readFrame(in, codec)));
+                    assertEquals("M" + i, ack.get("MSA").field(2).toString());
+                }
+                writer.join();
+            } finally {
+                s.close();
+            }
+        } finally {
+            listener.close();
+        }
+    }
+
+    public void testServerLimits() throws Exception {
+        MllpServer server = new MllpServer(0, null);
+        server.setMaxConnections(1);
+        server.setMaxInFlight(1);
+        server.start();
+        try {
+            Socket first = new Socket("127.0.0.1", server.getPort());
+            try {
+                first.getOutputStream().write(MllpCodec.encode(MSG1.getBytes()));
+                Hl7Record ack = new Hl7Record(new String(readFrame(first.getInputStream(),
+                        new MllpCodec())));
+                assertEquals("AA", ack.get("MSA").field(1).toString());
+                assertEquals("ONE", ack.get("MSA").field(2).toString());
+                assertEquals(1, server.getConnectionCount());
+                // Over the connection limit, so this one is shut straight away
+                Socket second = new Socket("127.0.0.1", server.getPort());
+                try {
+                    second.setSoTimeout(5000);
+                    int got;
+                    try {
+                        got = second.getInputStream().read();
+                    } catch (java.net.SocketException e) {
+                        got = -1;
+                    }
+                    assertEquals(-1, got);
+                } finally {
+                    second.close();
+                }
+                // The first still works
+                first.getOutputStream().write(MllpCodec.encode(MSG2.getBytes()));
+                ack = new Hl7Record(new String(readFrame(first.getInputStream(),
+                        new MllpCodec())));
+                assertEquals("TWO", ack.get("MSA").field(2).toString());
+            } finally {
+                first.close();
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    /**
+     * A handler that blows up past the responder closes its own connection
+     * and nothing else.
+     */
+    public void testServerHandlerBug() throws Exception {
+        MllpServer server = new MllpServer(0, new MllpHandler() {
+            public String handle(Hl7Record message) throws Exception {
+                if ("REJECT".equals(message.get("PID").field(3).toString())) {
+                    throw new Exception() {
+                        public String getMessage() {
+                            throw new IllegalStateException("Handler bug");
+                        }
+                    };
+                }
+                return null;
+            }
+        });
+        server.start();
+        try {
+            Socket bad = new Socket("127.0.0.1", server.getPort());
+            try {
+                bad.setSoTimeout(5000);
+                bad.getOutputStream().write(MllpCodec.encode(BAD.getBytes()));
+                assertEquals(-1, bad.getInputStream().read());
+            } finally {
+                bad.close();
+            }
+            Socket good = new Socket("127.0.0.1", server.getPort());
+            try {
+                good.getOutputStream().write(MllpCodec.encode(MSG1.getBytes()));
+                Hl7Record ack = new Hl7Record(new String(readFrame(good.getInputStream(),
+                        new MllpCodec())));
+                assertEquals("AA", ack.get("MSA").field(1).toString());
+            } finally {
+                good.close();
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    public void testPipelinedClient() throws Exception {
+        MllpServer server = new MllpServer(0, null);
+        server.start();
+        MllpClient client = new MllpClient("127.0.0.1", server.getPort());
+        client.setWindow(8);
+        client.connect();
+        try {
+            List futures = new ArrayList();
+            for (int i = 0; i < 50; i++) {
+                futures.add(client.send(MSG1.replace("|ONE|", "|C" + i + "|")));
+            }
+            for (int i = 0; i < 50; i++) {
+                Hl7Record ack = (Hl7Record) ((CompletableFuture) futures.get(i)).get(10, TimeUnit.SECONDS);
+                assertEquals("C" + i, ack.get("MSA").field(2).toString());
+            }
+            assertEquals(0, client.getInFlight());
+            try {
+                client.send("MSH|^~\\&|A|B\r");
+                fail("Expected a message without MSH-10 to be refused");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        } finally {
+            client.close();
+            server.close();
+        }
+    }
+
+    /**
+     * Closing and connecting again straight away leaves the new connection
+     * alone when the old one's reader finishes.
+     */
+    public void testClientReconnect() throws Exception {
+        MllpServer server = new MllpServer(0, null);
+        server.start();
+        MllpClient client = new MllpClient("127.0.0.1", server.getPort());
+        try {
+            for (int i = 0; i < 20; i++) {
+                client.connect();
+                Hl7Record ack = (Hl7Record) client.send(MSG1.replace("|ONE|", "|R" + i + "|"))
+                        .get(10, TimeUnit.SECONDS);
+                assertEquals("R" + i, ack.get("MSA").field(2).toString());
+                client.close();
+            }
+            client.connect();
+            Thread.sleep(50);
+            Hl7Record ack = (Hl7Record) client.send(MSG2).get(10, TimeUnit.SECONDS);
+            assertEquals("TWO", ack.get("MSA").field(2).toString());
+        } finally {
+            client.close();
+            server.close();
+        }
+    }
+
+    /**
+     * A receiver that acks two messages in the opposite order, then hangs up.
+     */
+    public void testClientCorrelation() throws Exception {
+        final ServerSocket ss = new ServerSocket(0);
+        Thread fake = new Thread() {
+            public void run() {
+                Socket s = null;
+                try {
+                    s = ss.accept();
+                    MllpCodec codec = new MllpCodec();
+                    byte[] first = fakeFrame(s.getInputStream(), codec);
+                    byte[] second = fakeFrame(s.getInputStream(), codec);
+                    AckGenerator acks = new AckGenerator();
+                    OutputStream out = s.getOutputStream();
+                    out.write(MllpCodec.encode(acks.getNack(new String(second)).getBytes()));
+                    out.write(MllpCodec.encode(acks.getAck(new String(first)).getBytes()));
+                    out.flush();
+                    fakeFrame(s.getInputStream(), codec);
+                } catch (Exception e) {
+                    fakeFailure = e;
+                } finally {
+                    closeQuietly(s);
+                    closeQuietly(ss);
+                }
+            }
+        };
+        fake.start();
+        MllpClient client = new MllpClient("127.0.0.1", ss.getLocalPort());
+        client.connect();
+        try {
+            CompletableFuture one = client.send(MSG1);
+            CompletableFuture two = client.send(MSG2);
+            Hl7Record ack1 = (Hl7Record) one.get(10, TimeUnit.SECONDS);
+            Hl7Record ack2 = (Hl7Record) two.get(10, TimeUnit.SECONDS);
+            assertEquals("AA", ack1.get("MSA").field(1).toString());
+            assertEquals("ONE", ack1.get("MSA").field(2).toString());
+            assertEquals("AR", ack2.get("MSA").field(1).toString());
+            assertEquals("TWO", ack2.get("MSA").field(2).toString());
+            CompletableFuture lost = client.send(BAD);
+            try {
+                lost.get(10, TimeUnit.SECONDS);
+                fail("Expected the future to fail when the connection closed");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+        } finally {
+            client.close();
+            fake.join();
+        }
+        assertNull("Fake receiver failed: " + fakeFailure, fakeFailure);
+    }
+
+    /**
+     * A receiver that answers the first message with a frame too short to
+     * be HL7 and never acks it, then acks the second properly.
+     */
+    public void testClientAckTimeout() throws Exception {
+        final ServerSocket ss = new ServerSocket(0);
+        Thread fake = new Thread() {
+            public void run() {
+                Socket s = null;
+                try {
+                    s = ss.accept();
+                    MllpCodec codec = new MllpCodec();
+                    fakeFrame(s.getInputStream(), codec);
+                    OutputStream out = s.getOutputStream();
+                    out.write(MllpCodec.encode("MSH|^".getBytes()));
+                    out.flush();
+                    byte[] second = fakeFrame(s.getInputStream(), codec);
+                    out.write(MllpCodec.encode(new AckGenerator().getAck(new String(second)).getBytes()));
+                    out.flush();
+                    // Nothing more comes, the client just closes
+                    if (nextFrame(s.getInputStream(), codec) != null) {
+                        throw new IOException("Unexpected third message");
+                    }
+                } catch (Exception e) {
+                    fakeFailure = e;
+                } finally {
+                    closeQuietly(s);
+                    closeQuietly(ss);
+                }
+            }
+        };
+        fake.start();
+        MllpClient client = new MllpClient("127.0.0.1", ss.getLocalPort());
+        client.setWindow(1);
+        client.setAckTimeout(300);
+        client.connect();
+        try {
+            CompletableFuture one = client.send(MSG1);
+            try {
+                one.get(10, TimeUnit.SECONDS);
+                fail("Expected the ack to time out");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof TimeoutException);
+            }
+            assertEquals(1, client.getUnmatched());
+            assertEquals(0, client.getInFlight());
+            // The window slot came back and the reader is still going
+            CompletableFuture two = client.send(MSG2);
+            Hl7Record ack = (Hl7Record) two.get(10, TimeUnit.SECONDS);
+            assertEquals("TWO", ack.get("MSA").field(2).toString());
+        } finally {
+            client.close();
+            fake.join();
+        }
+        assertNull("Fake receiver failed: " + fakeFailure, fakeFailure);
+    }
+
+    private static byte[] readFrame(InputStream in, MllpCodec codec) throws IOException {
+        byte[] frame = nextFrame(in, codec);
+        if (frame == null) {
+            fail("Connection closed early");
+        }
+        return frame;
+    }
+
+    /*
+     * For the fake receivers, which run off the test thread: a frame that
+     * has to be there is an IOException if it isn't, for the test to pick up.
+     */
+    private static byte[] fakeFrame(InputStream in, MllpCodec codec) throws IOException {
+        byte[] frame = nextFrame(in, codec);
+        if (frame == null) {
+            throw new IOException("Connection closed early");
+        }
+        return frame;
+    }
+
+    /*
+     * Return the next frame, or null if the other end closes first.
+     */
+    private static byte[] nextFrame(InputStream in, MllpCodec codec) throws IOException {
+        byte[] b = new byte[1];
+        while (in.read(b) != -1) {
+            byte[] frame = codec.decode(ByteBuffer.wrap(b));
+            if (frame != null) {
+                return frame;
+            }
+        }
+        return null;
+    }
+
+    private static void closeQuietly(Closeable c) {
+        if (c == null) {
+            return;
+        }
+        try {
+            c.close();
+        } catch (IOException e) {
+            // Already gone
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * TestParallel.java
+ *
+ * Copyright (C) 2004-2012 M Litherland
+ */
+
+package org.nule.lighthl7lib.tests;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import junit.framework.TestCase;
+import org.nule.lighthl7lib.hl7.*;
+import org.nule.lighthl7lib.util.*;
+
+/**
+ *
+ * @author mike
+ *
+ * Parsing a batch file in chunks on a ForkJoinPool.
+ */
+public class TestParallel extends TestCase {
+
+    /**
+     * Process a batch file in small chunks, in order and unordered.
+     */
+    public void testParallelBatchParser() throws IOException {
+        StringBuilder data = new StringBuilder("leading junk\r");
+        for (int i = 0; i < 500; i++) {
+            data.append("MSH|^~\\&|APP|FAC|||||ADT^A01|").append(i).append("|P|2.3\r")
+                    .append(i % 7 == 0 ? "PID|1||" + i + "\r\n" : "PID|1||" + i + "\r");
+        }
+        File f = File.createTempFile("parallel", ".hl7");
+        f.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(data.toString().getBytes());
+        out.close();
+        ParallelBatchParser pbp = new ParallelBatchParser(new ForkJoinPool(4));
+        pbp.setChunkSize(1000);
+        final List ordered = new ArrayList();
+        long n = pbp.process(f, new Function<Hl7Record, String>() {
+            public String apply(Hl7Record hr) {
+                assertEquals(hr.get("MSH").field(10).toString(), hr.get("PID").field(3).toString());
+                return hr.get("MSH").field(10).toString();
+            }
+        }, new Consumer<String>() {
+            public void accept(String s) {
+                ordered.add(s);
+            }
+        }, true);
+        assertEquals(500, n);
+        for (int i = 0; i < 500; i++) {
+            assertEquals(String.valueOf(i), ordered.get(i));
+        }
+        // In order, only a few chunks are parsed ahead of the one delivered
+        final AtomicInteger parsed = new AtomicInteger();
+        final AtomicInteger ahead = new AtomicInteger();
+        ParallelBatchParser single = new ParallelBatchParser(new ForkJoinPool(1));
+        single.setChunkSize(1000);
+        n = single.process(f, new Function<Hl7Record, String>() {
+            public String apply(Hl7Record hr) {
+                parsed.incrementAndGet();
+                return null;
+            }
+        }, new Consumer<String>() {
+            public void accept(String s) {
+                ahead.compareAndSet(0, parsed.get());
+            }
+        }, true);
+        assertEquals(500, n);
+        assertTrue(ahead.get() < 100);
+        final ConcurrentHashMap seen = new ConcurrentHashMap();
+        n = pbp.process(f, new Function<Hl7Record, String>() {
+            public String apply(Hl7Record hr) {
+                return hr.get("MSH").field(10).toString();
+            }
+        }, new Consumer<String>() {
+            public void accept(String s) {
+                seen.put(s, s);
+            }
+        }, false);
+        assertEquals(500, n);
+        assertEquals(500, seen.size());
+        // A failure in one chunk stops the rest before the file is closed
+        try {
+            pbp.process(f, new Function<Hl7Record, String>() {
+                public String apply(Hl7Record hr) {
+                    String id = hr.get("MSH").field(10).toString();
+                    if (id.equals("250")) {
+                        throw new IllegalStateException("bad record " + id);
+                    }
+                    return id;
+                }
+            }, new Consumer<String>() {
+                public void accept(String s) {
+                }
+            }, true);
+            fail("Expected the work function's exception");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().endsWith("bad record 250"));
+        }
+        assertEquals(500, pbp.process(f, new Function<Hl7Record, String>() {
+            public String apply(Hl7Record hr) {
+                return null;
+            }
+        }, new Consumer<String>() {
+            public void accept(String s) {
+            }
+        }, false));
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * TestProjection.java
+ *
+ * Copyright (C) 2004-2012 M Litherland
+ */
+
+package org.nule.lighthl7lib.tests;
+
+import java.nio.charset.StandardCharsets;
+import junit.framework.TestCase;
+import org.nule.lighthl7lib.hl7.*;
+import org.nule.lighthl7lib.util.*;
+
+/**
+ *
+ * @author mike
+ *
+ * Parsing only the segments and fields a projection asks for.
+ */
+public class TestProjection extends TestCase {
+
+    public void testProjection() {
+        String msg = "MSH|^~\\&|A|B|C|D|20120101||ORU^R01|CTL1|P|2.3\r"
+                + "PID|1||123^^^X||DOE^JOHN||19700101|M|||1 MAIN ST|||||||\r"
+                + "PV1|1|I|W^1^1\rOBX|1|TX|||ONE\rOBX|2|TX|||TWO\rNTE|1||\r";
+        Hl7Projection proj = new Hl7Projection(new String[] {"PV1"},
+                new FieldPath[] {FieldMatch.compile("PID:5-0-2"), FieldMatch.compile("MSH:10")});
+        assertTrue(proj.includes("PID"));
+        assertFalse(proj.includes("OBX"));
+        Hl7Record rec = new Hl7Record(msg, proj);
+        Hl7Record full = new Hl7Record(msg);
+        assertEquals("JOHN", rec.getField("PID:5-0-2"));
+        assertEquals("CTL1", rec.get("MSH").field(10).toString());
+        assertEquals("W^1^1", rec.get("PV1").field(3).toString());
+        // Outside the projection still works
+        assertEquals(2, rec.size("OBX"));
+        assertEquals("TWO", rec.get("OBX", 2).field(5).toString());
+        assertEquals(1, rec.size("PID"));
+        assertEquals(full.get("PID").fieldAll().length, rec.get("PID").fieldAll().length);
+        assertEquals("1 MAIN ST", rec.get("PID").field(11).toString());
+        assertEquals(full.get("NTE").fieldAll().length, rec.get("NTE").fieldAll().length);
+        assertEquals(msg, rec.toString());
+
+        // Changing a projected field keeps the fields that weren't split
+        Hl7Record rec2 = Hl7Record.fromBytes(msg.getBytes(), StandardCharsets.ISO_8859_1,
+                Hl7Projection.fields(new String[] {"PID:3"}));
+        rec2.get("PID").field(3).changeField("456");
+        assertEquals(msg.replace("123^^^X", "456").replace("MAIN ST|||||||", "MAIN ST"),
+                rec2.rebuild());
+        assertEquals("M", rec2.get("PID").field(8).toString());
+        try {
+            Hl7Projection.fields(new String[] {"PID"});
+            fail("Accepted a bad field definition");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
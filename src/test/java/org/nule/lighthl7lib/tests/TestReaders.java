@@ -0,0 +1,127 @@
+/*
+ * TestReaders.java
+ *
+ * Copyright (C) 2004-2012 M Litherland
+ */
+
+package org.nule.lighthl7lib.tests;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import junit.framework.TestCase;
+import org.nule.lighthl7lib.hl7.*;
+import org.nule.lighthl7lib.util.*;
+
+/**
+ *
+ * @author mike
+ *
+ * Reading records out of channels and mapped batch files.
+ */
+public class TestReaders extends TestCase {
+
+    /**
+     * Read records from a channel that hands back a few bytes at a time, so
+     * line endings and the start of record get split across reads.
+     */
+    public void testChannelRecordReader() throws IOException {
+        String data = "junk\r\nMSH|^~\\&|A\r\nPID|1\r\nMSH|^~\\&|B\nPID|2 MSH inside\r\n"
+                + "MSH|^~\\&|C\r";
+        ChannelRecordReader crr = new ChannelRecordReader(new TrickleChannel(data.getBytes(), 3));
+        assertEquals("MSH|^~\\&|A\rPID|1\r", crr.readLine());
+        assertEquals("MSH|^~\\&|B\rPID|2 MSH inside\r", crr.readLine());
+        Hl7Record last = crr.readRecord();
+        assertEquals("C", last.get("MSH").field(3).toString());
+        assertNull(crr.readLine());
+        assertNull(crr.readLine());
+
+        crr = new ChannelRecordReader(new TrickleChannel(data.getBytes(), 2));
+        crr.setStartOfRecord("MSH");
+        crr.setLineEndings(ChannelRecordReader.LineEndings.STRIP_LF);
+        assertEquals("MSH|^~\\&|A\rPID|1\r", crr.readLine());
+        assertEquals("MSH|^~\\&|BPID|2 ", crr.readLine());
+        assertEquals("MSH inside\r", crr.readLine());
+        assertEquals("MSH|^~\\&|C\r", crr.readLine());
+        assertNull(crr.readLine());
+
+        // A record much bigger than the read buffer
+        StringBuilder big = new StringBuilder("MSH|^~\\&|BIG\r");
+        for (int i = 0; i < 20000; i++) {
+            big.append("OBX|").append(i).append("||||VALUE\r");
+        }
+        crr = new ChannelRecordReader(Channels.newChannel(
+                new ByteArrayInputStream((big + "MSH|^~\\&|END\r").getBytes())));
+        assertEquals(big.toString(), crr.readLine());
+        assertEquals("MSH|^~\\&|END\r", crr.readLine());
+        assertNull(crr.readLine());
+    }
+
+    private static class TrickleChannel implements ReadableByteChannel {
+        private final byte[] data;
+        private final int step;
+        private int pos;
+
+        TrickleChannel(byte[] data, int step) {
+            this.data = data;
+            this.step = step;
+        }
+
+        public int read(ByteBuffer dst) {
+            if (pos == data.length) {
+                return -1;
+            }
+            int n = Math.min(Math.min(step, dst.remaining()), data.length - pos);
+            dst.put(data, pos, n);
+            pos += n;
+            return n;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+
+    /**
+     * Index a batch file and read its records out of order, with a window
+     * small enough that records and IDs straddle window edges.
+     */
+    public void testMappedRecordFile() throws IOException {
+        String data = "FHS|^~\\&|F\rBHS|^~\\&|B\rMSH|^~\\&|ONE\rPID|1|MSH\r"
+                + "MSH|^~\\&|TWO\r\nPID|2\r\nMSH|^~\\&|THREE\rBTS|3\rFTS|1\r";
+        File f = File.createTempFile("batch", ".hl7");
+        f.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(data.getBytes());
+        out.close();
+        MappedRecordFile mrf = new MappedRecordFile(f, StandardCharsets.ISO_8859_1,
+                new String[] {"MSH", "BHS", "FHS"}, 16);
+        try {
+            assertEquals(5, mrf.size());
+            assertEquals("THREE", mrf.get(5).get("MSH").field(3).toString());
+            assertEquals("TWO", mrf.get(4).get("MSH").field(3).toString());
+            assertEquals("MSH|^~\\&|TWO\rPID|2\r", mrf.get(4).toString());
+            assertEquals("MSH|^~\\&|TWO\r\nPID|2\r\n", new String(mrf.getBytes(4)));
+            assertEquals("MSH|^~\\&|ONE\rPID|1|MSH\r", mrf.get(3).toString());
+            assertEquals("F", mrf.get(1).get("FHS").field(2).toString());
+            assertEquals(data.indexOf("MSH|^~\\&|TWO"), mrf.getOffset(4));
+            try {
+                mrf.get(6);
+                fail("Expected IndexOutOfBoundsException");
+            } catch (IndexOutOfBoundsException e) {
+                // expected
+            }
+        } finally {
+            mrf.close();
+        }
+        mrf = new MappedRecordFile(f);
+        assertEquals(5, mrf.size());
+        assertEquals("B", mrf.get(2).get("BHS").field(2).toString());
+        mrf.close();
+    }
+}
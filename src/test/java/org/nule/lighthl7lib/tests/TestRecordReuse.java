@@ -0,0 +1,70 @@
+/*
+ * TestRecordReuse.java
+ *
+ * Copyright (C) 2004-2012 M Litherland
+ */
+
+package org.nule.lighthl7lib.tests;
+
+import java.nio.charset.StandardCharsets;
+import junit.framework.TestCase;
+import org.nule.lighthl7lib.hl7.*;
+
+/**
+ *
+ * @author mike
+ *
+ * Resetting one record onto message after message.
+ */
+public class TestRecordReuse extends TestCase {
+
+    public void testRecordReuse() {
+        String one = "MSH|^~\\&|A|B|||20120101||ORU^R01|ONE|P|2.3\rPID|1||111||DOE^JOHN\r"
+                + "OBX|1|TX|||A\rOBX|2|TX|||B\r";
+        String two = "MSH|^~\\&|A|B|||20120102||ADT^A01|TWO|P|2.3\rPID|1||222||ROE^JANE\r"
+                + "OBX|1|TX|||C\r";
+        Hl7Record rec = new Hl7Record(one);
+        Hl7Segment pid = rec.get("PID");
+        Hl7Field id = pid.field(3);
+        assertEquals("111", id.toString());
+        assertEquals(2, rec.size("OBX"));
+
+        rec.reset(two);
+        assertEquals(two, rec.toString());
+        assertEquals(1, rec.size("OBX"));
+        assertNull(rec.get("OBX", 2));
+        // The same holders, now showing the second message
+        assertSame(pid, rec.get("PID"));
+        assertSame(id, rec.get("PID").field(3));
+        assertEquals("222", id.toString());
+        assertEquals("JANE", rec.getField("PID:5-0-2"));
+        assertEquals("TWO", rec.get("MSH").field(10).toString());
+
+        // Changes and rebuilds work the same on a reused record
+        rec.get("OBX").field(5).changeField("CHANGED");
+        String rebuilt = rec.rebuild();
+        assertEquals(two.replace("|||C", "|||CHANGED"), rebuilt);
+        rec.reset(one);
+        rec.get("PID").field(3).changeField("333");
+        assertEquals(one.replace("111", "333"), rec.rebuild());
+        assertEquals(two.replace("|||C", "|||CHANGED"), rebuilt);
+        assertEquals("B", rec.get("OBX", 2).field(5).toString());
+
+        // Different separators, and bytes
+        String hashes = "MSH#*~\\&#A#B\rPID#1##444*X\r";
+        rec.reset(hashes);
+        assertEquals("X", rec.getField("PID:3-0-2"));
+        assertEquals("#", rec.getSeparators()[4]);
+        byte[] data = ("xx" + two).getBytes();
+        rec.reset(data, 2, data.length - 2, StandardCharsets.ISO_8859_1);
+        assertEquals("222", rec.get("PID").field(3).toString());
+        assertEquals(two, rec.toString());
+        try {
+            rec.reset("not HL7 at all");
+            fail("Reset to something that isn't HL7");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals("222", rec.get("PID").field(3).toString());
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * TestRecords.java
+ *
+ * Copyright (C) 2004-2012 M Litherland
+ */
+
+package org.nule.lighthl7lib.tests;
+
+/**
+ *
+ * @author mike
+ *
+ * Records shared by more than one test class.
+ */
+final class TestRecords {
+
+    /**
+     * A short ack with a Z segment that uses every delimiter.
+     */
+    static final String REC1 = "MSH|^~\\&|NULEORG|HL7BROWSER_TNG|||" +
+            "20040825120000||ACK||P|2.3||||NE|\rZZZ|this^is^not^valid|hl7|" +
+            "but~I^don't~care|even^if&I&did&I^wouldn't^tell|you\r";
+
+    /**
+     * Nothing but segment IDs, with repeats to group.
+     */
+    static final String REC2 = "MSH|^~\\&|\rSCH|\rNTE|\rNTE|\r" +
+            "PID|\rAIL|\rAIP|\rNTE|\rNTE|\rNTE|\r";
+
+    private TestRecords() {
+    }
+}
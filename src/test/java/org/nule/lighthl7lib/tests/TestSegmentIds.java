@@ -0,0 +1,76 @@
+/*
+ * TestSegmentIds.java
+ *
+ * Copyright (C) 2004-2012 M Litherland
+ */
+
+package org.nule.lighthl7lib.tests;
+
+import java.util.*;
+import junit.framework.TestCase;
+import org.nule.lighthl7lib.hl7.*;
+import org.nule.lighthl7lib.util.*;
+
+/**
+ *
+ * @author mike
+ *
+ * Segment IDs packed into ints, and looking segments up by them.
+ */
+public class TestSegmentIds extends TestCase {
+
+    /**
+     * Look segments up by precompiled, packed IDs.
+     */
+    public void testPackedSegmentIds() {
+        SegmentId nte = SegmentId.of("NTE");
+        Hl7Record rec = new Hl7Record(TestRecords.REC2);
+        assertEquals(5, rec.size(nte));
+        assertSame(rec.get("NTE", 4), rec.get(nte, 4));
+        assertNull(rec.get(nte, 6));
+        assertNull(rec.get(SegmentId.of("ZZZ")));
+        assertTrue(rec.isSegment(1, SegmentId.MSH));
+        assertFalse(rec.isSegment(2, nte));
+        assertTrue(rec.get(nte).isId(nte));
+        assertTrue(rec.get(nte).isId("NTE"));
+        assertFalse(rec.get(nte).isId("NT"));
+        assertEquals("NTE", rec.get(nte).getId());
+        assertEquals("NTE", nte.getId());
+        try {
+            SegmentId.of("NT");
+            fail("Compiled a two character ID");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        // IDs that won't pack are still found, by string
+        SegmentId wide = SegmentId.of("Z\u4e2dZ");
+        Hl7Record odd = new Hl7Record("MSH|^~\\&|\rZ\u4e2dZ|a\rPID|\rZ\u4e2dZ|b\r");
+        assertEquals(2, odd.size(wide));
+        assertEquals("b", odd.get(wide, 2).field(1).toString());
+        assertEquals("b", odd.get("Z\u4e2dZ", 2).field(1).toString());
+        assertTrue(odd.isSegment(4, wide));
+        assertFalse(odd.isSegment(3, wide));
+
+        // Groups
+        Hl7SegmentGroup[] groups = GroupBuilder.allGroups(Arrays.asList(rec.getAll()),
+                nte, rec.getSeparators());
+        assertEquals(5, groups.length);
+        assertEquals(4, groups[1].getAll().length);
+        Hl7SegmentGroup group = GroupBuilder.singleGroup(Arrays.asList(rec.getAll()),
+                nte, 2, rec.getSeparators());
+        assertSame(rec.get("PID"), group.get(SegmentId.of("PID")));
+        assertSame(rec.get("AIP"), group.get(SegmentId.of("AIP"), 1));
+        assertNull(GroupBuilder.allGroups(Arrays.asList(rec.getAll()), "NT",
+                rec.getSeparators()));
+
+        // A segment's ID follows its text once the record is rebuilt
+        Hl7Segment sch = rec.get(SegmentId.of("SCH"));
+        sch.changeSegment("XYZ|1");
+        assertTrue(sch.isId("SCH"));
+        rec.rebuild();
+        assertTrue(sch.isId("XYZ"));
+        assertEquals("XYZ", sch.getId());
+        assertSame(sch, rec.get(SegmentId.of("XYZ")));
+    }
+}
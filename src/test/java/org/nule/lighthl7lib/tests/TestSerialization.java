@@ -5,6 +5,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.Arrays;
 import junit.framework.TestCase;
 import org.nule.lighthl7lib.hl7.Hl7Field;
 import org.nule.lighthl7lib.hl7.Hl7Record;
@@ -53,6 +54,52 @@ public class TestSerialization extends TestCase {
         assertEquals("12345678", newField.toString());
     }
 
+    public void testSerializeChanges() throws Exception {
+        record.get("PID").field(5).getComp(2).changeField("JO");
+        record.get("OBX").field(7).changeField("new");
+        Hl7Record newRecord = (Hl7Record) deserialize(serialize(record));
+
+        assertEquals(record.toString(), newRecord.toString());
+        assertEquals("SMITH^JO", newRecord.get("PID").field(5).toString());
+        assertEquals("new", newRecord.get("OBX").field(7).toString());
+    }
+
+    public void testSerializeCompact() throws Exception {
+        String msg = "MSH#*~\\&#NULEORG#LHL\r";
+        StringBuilder sb = new StringBuilder(msg);
+        while (sb.length() < 100000) {
+            sb.append("OBX#1#TX#\u00e9t\u00e9*").append(sb.length()).append("\r");
+        }
+        Hl7Record big = new Hl7Record(sb.toString());
+        big.get("OBX", 20).field(3).getComp(1).toString();
+        byte[] s = serialize(big);
+        assertTrue(s.length < sb.toString().getBytes("UTF-8").length * 11 / 10);
+        Hl7Record newBig = (Hl7Record) deserialize(s);
+        assertEquals(sb.toString(), newBig.toString());
+        assertEquals(Arrays.asList(big.getSeparators()),
+                Arrays.asList(newBig.getSeparators()));
+
+        Hl7Segment obx = (Hl7Segment) deserialize(serialize(big.get("OBX", 3)));
+        assertEquals(big.get("OBX", 3).toString(), obx.toString());
+        assertEquals("\u00e9t\u00e9", obx.field(3).getComp(1).toString());
+    }
+
+    public void testSerializeFieldFlags() throws Exception {
+        Hl7Segment pid = record.get("PID");
+        Hl7Field added = pid.field(12);
+        Hl7Field newAdded = (Hl7Field) deserialize(serialize(added));
+        assertFalse(newAdded.isExisting());
+        assertFalse(newAdded.isChanged());
+        pid.field(3).getComp(2).changeField("X");
+        Hl7Field newChanged = (Hl7Field) deserialize(serialize(pid.field(3)));
+        assertEquals("12345678^X", newChanged.toString());
+        assertTrue(newChanged.isChanged());
+
+        // MSH-1 keeps its own form
+        Hl7Field fieldOne = (Hl7Field) deserialize(serialize(record.get("MSH").field(1)));
+        assertEquals("|", fieldOne.toString());
+    }
+
     /**
      * Simple method for Serializing an object into a byte array.
      * @param object
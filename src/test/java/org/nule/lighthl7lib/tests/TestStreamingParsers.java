@@ -0,0 +1,278 @@
+/*
+ * TestStreamingParsers.java
+ *
+ * Copyright (C) 2004-2012 M Litherland
+ */
+
+package org.nule.lighthl7lib.tests;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import junit.framework.TestCase;
+import org.nule.lighthl7lib.hl7.*;
+
+/**
+ *
+ * @author mike
+ *
+ * The push parser, the event parser and the cursor, none of which
+ * need a whole record tree.
+ */
+public class TestStreamingParsers extends TestCase {
+
+    /**
+     * Feed the push parser in awkward pieces and check what comes out
+     * matches parsing the whole record.
+     */
+    public void testPushParser() {
+        String one = "MSH|^~\\&|A|B|C|D|20120101||ORU^R01|ONE|P|2.3\rPID|1||123^^^X||DOE^JOHN||\r"
+                + "OBX|1|TX|||FIRST\rOBX|2|TX|||SECOND|||\r";
+        String two = "MSH|^~\\&|A|B|C|D|20120101||ADT^A01|TWO|P|2.3\rPID|1||456\r";
+        String stream = "junk line\n\u000b" + one.replace("\rPID", "\r\nPID") + "\u001c\r"
+                + two + "\n" + two.replace("TWO", "THREE");
+        Hl7PushParser pp = new Hl7PushParser();
+        int finished = 0;
+        for (int i = 0; i < stream.length(); i += 7) {
+            finished += pp.feed(stream.substring(i, Math.min(stream.length(), i + 7)));
+        }
+        assertEquals(2, finished);
+        assertEquals(1, pp.finish());
+        assertEquals(3, pp.available());
+        Hl7Record r1 = pp.next();
+        assertEquals(one, r1.toString());
+        Hl7Record whole = new Hl7Record(one);
+        for (int s = 1; s <= whole.size(); s++) {
+            Hl7Field[] expected = whole.get(s).fieldAll();
+            Hl7Field[] got = r1.get(s).fieldAll();
+            assertEquals(expected.length, got.length);
+            for (int f = 0; f < expected.length; f++) {
+                assertEquals(expected[f].toString(), got[f].toString());
+            }
+        }
+        assertEquals(2, r1.size("OBX"));
+        assertEquals("SECOND", r1.get("OBX", 2).field(5).toString());
+        assertEquals("JOHN", r1.getField("PID:5-0-2"));
+        assertEquals(two, pp.next().toString());
+        Hl7Record r3 = pp.next();
+        assertEquals("THREE", r3.get("MSH").field(10).toString());
+        assertNull(pp.next());
+        assertEquals(1, pp.getDiscarded());
+
+        // Bytes, with a UTF-8 character split between chunks
+        byte[] utf = ("MSH|^~\\&|A\rPID|1||\u00dcBER\r\u001c").getBytes(StandardCharsets.UTF_8);
+        Hl7PushParser up = new Hl7PushParser(StandardCharsets.UTF_8);
+        int split = 20;
+        assertEquals(0, up.feed(utf, 0, split));
+        assertEquals(1, up.feed(utf, split, utf.length - split));
+        assertEquals("\u00dcBER", up.next().get("PID").field(3).toString());
+    }
+
+    public void testEventParser() {
+        final List events = new ArrayList();
+        Hl7EventHandler h = new Hl7EventAdapter() {
+            public boolean startSegment(String id, int position) {
+                events.add(position + ":" + id);
+                return true;
+            }
+            public int field(int field, CharSequence value) {
+                events.add("F" + field + "=" + value);
+                if (field == 3 && value.length() > 0 && value.charAt(0) == 'h') {
+                    return SKIP;
+                }
+                return field == 1 || field == 4 ? DESCEND : NEXT;
+            }
+            public int repetition(int field, int rep, CharSequence value) {
+                events.add("R" + field + "." + rep + "=" + value);
+                return DESCEND;
+            }
+            public int component(int field, int rep, int comp, CharSequence value) {
+                events.add("C" + field + "." + rep + "." + comp + "=" + value);
+                return comp == 2 ? DESCEND : NEXT;
+            }
+            public int subcomponent(int field, int rep, int comp, int subcomp, CharSequence value) {
+                events.add("S" + field + "." + rep + "." + comp + "." + subcomp + "=" + value);
+                return NEXT;
+            }
+            public void endSegment(String id) {
+                events.add("/" + id);
+            }
+        };
+        Hl7EventParser parser = new Hl7EventParser();
+        parser.parse("MSH|^~\\&|A||\rZZZ|x|hl7|but~I^a&b\rZZZ|y|2|p^q&r~s|z|\r\r", h);
+        String[] expected = {"1:MSH", "F1=|", "F2=^~\\&", "F3=A", "F4=",
+            "R4.1=", "C4.1.1=", "F5=", "/MSH",
+            "2:ZZZ", "F1=x", "R1.1=x", "C1.1.1=x", "F2=hl7", "F3=but~I^a&b", "/ZZZ",
+            "3:ZZZ", "F1=y", "R1.1=y", "C1.1.1=y", "F2=2", "F3=p^q&r~s",
+            "F4=z", "R4.1=z", "C4.1.1=z", "F5=", "/ZZZ"};
+        assertEquals(Arrays.asList(expected), events);
+
+        // Field values agree with the record
+        final Hl7Record rec = new Hl7Record(TestRecords.REC1);
+        final int[] seen = new int[1];
+        parser.parse(TestRecords.REC1, new Hl7EventAdapter() {
+            private String seg;
+            public boolean startSegment(String id, int position) {
+                seg = id;
+                return true;
+            }
+            public int field(int field, CharSequence value) {
+                Hl7Field f = rec.get(seg).field(field);
+                assertEquals(f == null ? "" : f.toString(), value.toString());
+                seen[0]++;
+                return NEXT;
+            }
+        });
+        assertEquals(17 + 5, seen[0]);
+
+        // Segment IDs are shared between records
+        final List ids = new ArrayList();
+        Hl7EventHandler idHandler = new Hl7EventAdapter() {
+            public boolean startSegment(String id, int position) {
+                ids.add(id);
+                return false;
+            }
+        };
+        parser.parse(TestRecords.REC2, idHandler);
+        parser.parse(TestRecords.REC2, idHandler);
+        assertSame(ids.get(1), ids.get(ids.size() / 2 + 1));
+        assertEquals("NTE", ids.get(ids.size() - 1));
+    }
+
+    public void testCursor() {
+        Hl7Cursor c = new Hl7Cursor("MSH|^~\\&|A||\r\rZZZ|x|hl7|but~I^a&b\rNTE\rZZZ|y|\r");
+        StringBuilder sb = new StringBuilder();
+        int kind;
+        while ((kind = c.next()) != Hl7Cursor.NONE) {
+            sb.append(kind).append(':').append(c.getValue()).append(' ');
+        }
+        assertEquals("1:MSH|^~\\&|A|| 2:| 3:| 4:| 5:| 2:^~\\& 3:^~\\& 4:^~\\& 5:^~\\& "
+                + "2:A 3:A 4:A 5:A 2: 3: 4: 5: 2: 3: 4: 5: "
+                + "1:ZZZ|x|hl7|but~I^a&b 2:x 3:x 4:x 5:x 2:hl7 3:hl7 4:hl7 5:hl7 "
+                + "2:but~I^a&b 3:but 4:but 5:but 3:I^a&b 4:I 5:I 4:a&b 5:a 5:b "
+                + "1:NTE 1:ZZZ|y| 2:y 3:y 4:y 5:y 2: 3: 4: 5: ", sb.toString());
+        assertEquals(Hl7Cursor.NONE, c.next());
+        assertFalse(c.nextSegment());
+
+        // Walking fields agrees with the record
+        Hl7Record rec = new Hl7Record(TestRecords.REC1);
+        c.reset(TestRecords.REC1);
+        int fields = 0;
+        while (c.nextSegment()) {
+            assertEquals(rec.get(c.getSegmentNumber()).toString(), c.getString());
+            while (c.nextField()) {
+                Hl7Field f = rec.get(c.getSegmentNumber()).field(c.getFieldNumber());
+                assertEquals(f == null ? "" : f.toString(), c.getString());
+                fields++;
+            }
+        }
+        assertEquals(17 + 5, fields);
+
+        // Straight to the parts we want
+        c.reset(TestRecords.REC1);
+        assertTrue(c.nextSegment("ZZZ"));
+        assertEquals(2, c.getSegmentNumber());
+        c.nextField();
+        c.nextField();
+        c.nextField();
+        c.nextField();
+        assertEquals(4, c.getFieldNumber());
+        assertTrue(c.nextRepetition());
+        assertTrue(c.nextComponent());
+        assertTrue(c.nextComponent());
+        assertTrue(c.valueEquals("if&I&did&I"));
+        assertTrue(c.nextSubcomponent());
+        assertTrue(c.nextSubcomponent());
+        assertEquals("I", c.getString());
+        assertEquals(2, c.getSubcomponentNumber());
+        assertEquals(2, c.getComponentNumber());
+        assertEquals(TestRecords.REC1.indexOf("if&I") + 3, c.getStart());
+        assertTrue(c.nextField());
+        assertEquals(5, c.getFieldNumber());
+        assertEquals(0, c.getComponentNumber());
+        assertFalse(c.nextSegment("ZZZ"));
+        try {
+            new Hl7Cursor(TestRecords.REC1).nextComponent();
+            fail("Moved through a value we weren't on");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Values in a UTF-8 byte record read as decoded text from both the
+     * event parser and the cursor.
+     */
+    public void testStreamingUtf8() {
+        byte[] data = "MSH|^~\\&|A\rPID|1||M\u00fcller^Ann|plain\r"
+                .getBytes(StandardCharsets.UTF_8);
+        final List values = new ArrayList();
+        new Hl7EventParser().parse(data, StandardCharsets.UTF_8, new Hl7EventAdapter() {
+            public boolean startSegment(String id, int position) {
+                return id.equals("PID");
+            }
+            public int field(int field, CharSequence value) {
+                if (field == 3) {
+                    assertEquals(10, value.length());
+                    assertEquals('\u00fc', value.charAt(1));
+                    assertEquals("\u00fcller", value.subSequence(1, 6).toString());
+                    assertTrue(((Hl7TextWindow) value).contentEquals("M\u00fcller^Ann"));
+                    return DESCEND;
+                }
+                values.add(value.toString());
+                return NEXT;
+            }
+            public int repetition(int field, int rep, CharSequence value) {
+                return DESCEND;
+            }
+            public int component(int field, int rep, int comp, CharSequence value) {
+                values.add(value.length() + ":" + value);
+                return NEXT;
+            }
+        });
+        assertEquals(Arrays.asList(new String[] {"1", "", "6:M\u00fcller", "3:Ann", "plain"}),
+                values);
+
+        Hl7Cursor c = new Hl7Cursor(new Hl7Bytes(data, 0, data.length, StandardCharsets.UTF_8));
+        assertTrue(c.nextSegment("PID"));
+        c.nextField();
+        c.nextField();
+        c.nextField();
+        assertTrue(c.valueEquals("M\u00fcller^Ann"));
+        assertEquals("M\u00fcller^Ann", c.getString());
+        assertEquals(10, c.getValue().length());
+        assertEquals(11, c.getEnd() - c.getStart());
+        assertTrue(c.nextRepetition());
+        assertTrue(c.nextComponent());
+        assertTrue(c.valueEquals("M\u00fcller"));
+        assertEquals('r', c.getValue().charAt(5));
+        assertTrue(c.nextField());
+        assertTrue(c.valueEquals("plain"));
+    }
+
+    /**
+     * Segment IDs are handed out once per ID, including ones that aren't
+     * plain ASCII, and an ID of NULs is still an ID.
+     */
+    public void testStreamingSegmentIds() {
+        String rec = "MSH|^~\\&|A\r\u0000\u0000\u0000|1\rZ\u00e9Z|1\rZ\u00e9Z|2\r";
+        final List ids = new ArrayList();
+        new Hl7EventParser().parse(rec, new Hl7EventAdapter() {
+            public boolean startSegment(String id, int position) {
+                ids.add(id);
+                return false;
+            }
+        });
+        assertEquals(Arrays.asList(new String[] {"MSH", "\u0000\u0000\u0000", "Z\u00e9Z", "Z\u00e9Z"}),
+                ids);
+        assertSame(ids.get(2), ids.get(3));
+
+        Hl7Cursor c = new Hl7Cursor(rec);
+        assertTrue(c.nextSegment());
+        assertTrue(c.nextSegment());
+        assertEquals("\u0000\u0000\u0000", c.getSegmentId());
+        assertTrue(c.nextSegment("Z\u00e9Z"));
+        String first = c.getSegmentId();
+        assertTrue(c.nextSegment());
+        assertSame(first, c.getSegmentId());
+    }
+}